@@ -0,0 +1,91 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * End-to-end requests against a local HTTPS server, with the default and
+ * pooled transports.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(2)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ClientBenchmark {
+
+    @Param({ "default", "pooled" })
+    public String transport;
+
+    private LoopbackServer server;
+    private Client client;
+    private final List<Request> requests = new ArrayList<Request>();
+
+    @Setup
+    public void setUp() throws Exception {
+        server = new LoopbackServer();
+        client = new Client("SUBSCRIBER_ID", "SIGNING_KEY",
+                server.getAddress());
+        client.ignoreCertErrors();
+        if (transport.equals("pooled")) {
+            client.setTransport(new PooledTransport());
+        }
+        for (int i = 0; i < 100; i++) {
+            requests.add(new GetComponentInfoRequest(
+                    "pkg", null, "template.docx", false));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public String interview() throws Exception {
+        return client.sendRequest(new GetInterviewRequest("pkg", null, null,
+                "template.docx", "<AnswerSet/>", InterviewFormat.JavaScript,
+                null, null));
+    }
+
+    @Benchmark
+    public void assemble(Blackhole blackhole) throws Exception {
+        MimePartReader reader = client.sendRequestStreaming(
+                new AssembleDocumentRequest("pkg", null, null,
+                        "template.docx", "<AnswerSet/>", OutputFormat.Native));
+        try {
+            MimePart part;
+            while ((part = reader.nextPart()) != null) {
+                Util.copyStream(part.getContent(), Streams.nullStream);
+                blackhole.consume(part);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Benchmark
+    public List<BulkResult> bulk100() throws Exception {
+        return client.sendRequests(requests);
+    }
+}
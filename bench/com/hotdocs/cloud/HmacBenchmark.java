@@ -0,0 +1,68 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hmac.canonicalize, Hmac.calculateHmac and Signer.sign for an assemble
+ * request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(2)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class HmacBenchmark {
+
+    private List<Object> params;
+    private Signer signer;
+
+    @Setup
+    public void setUp() {
+        Map<String, String> settings = new HashMap<String, String>();
+        settings.put("UnansweredFormat", "Underscores");
+        settings.put("HonorCmpUnansweredFormat", "True");
+        settings.put("OutputOptions", "PdfTaggedPdf");
+        params = new ArrayList<Object>(Arrays.asList(
+                new Date(), "SUBSCRIBER_ID", "Employment Agreement",
+                "Employment Agreement.docx", Boolean.FALSE, "billing-ref",
+                OutputFormat.PDF, settings));
+        signer = new Signer("SIGNING_KEY");
+    }
+
+    @Benchmark
+    public String canonicalize() {
+        return Hmac.canonicalize(params);
+    }
+
+    @Benchmark
+    public String calculateHmac() throws HmacException {
+        return Hmac.calculateHmac("SIGNING_KEY", params);
+    }
+
+    @Benchmark
+    public String sign() throws HmacException {
+        return signer.sign(params);
+    }
+}
@@ -0,0 +1,132 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.KeyStore;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+/**
+ * A local HTTPS server that stands in for HotDocs Cloud Services in the
+ * end-to-end benchmarks. Package uploads succeed, assemble requests
+ * return a two-part multipart response, and every other request returns
+ * a small fixed body. The server uses a throwaway self-signed
+ * certificate, so clients must ignore certificate errors.
+ */
+class LoopbackServer {
+
+    static final String boundary = "bench-boundary";
+
+    private final HttpsServer server;
+    private final ExecutorService executor;
+
+    LoopbackServer() throws Exception {
+        // Without this, Nagle's algorithm and delayed ACKs add ~40 ms
+        // to every response.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpsServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(createSSLContext()));
+        executor = Executors.newFixedThreadPool(32);
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange);
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * @return The address to pass to the Client, e.g. localhost:54321
+     */
+    String getAddress() {
+        return "localhost:" + server.getAddress().getPort();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    private static void respond(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        byte[] buffer = new byte[8 * 1024];
+        while (in.read(buffer) != -1) {
+            // Discard the request body
+        }
+
+        String path = exchange.getRequestURI().getPath();
+        byte[] body;
+        if (exchange.getRequestMethod().equals("PUT")) {
+            body = new byte[0];
+        } else if (path.startsWith("/hdcs/assemble")) {
+            exchange.getResponseHeaders().add("Content-Type",
+                    "multipart/form-data; boundary=" + boundary);
+            body = ("\r\n--" + boundary + "\r\n"
+                    + "Content-Disposition: attachment; filename=doc.txt\r\n"
+                    + "\r\nAssembled document\r\n--" + boundary + "\r\n"
+                    + "Content-Disposition: attachment; filename=ans.xml\r\n"
+                    + "\r\n<AnswerSet/>\r\n--" + boundary + "--\r\n")
+                    .getBytes("UTF-8");
+        } else {
+            body = "<html><body>Interview</body></html>".getBytes("UTF-8");
+        }
+
+        exchange.sendResponseHeaders(200, body.length == 0 ? -1 : body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    // Makes a self-signed key pair with the JDK's keytool. The tests use
+    // it for their own servers too.
+    static SSLContext createSSLContext() throws Exception {
+        File keyStoreFile = File.createTempFile("bench", ".jks");
+        keyStoreFile.delete();
+        keyStoreFile.deleteOnExit();
+        char[] password = "benchmark".toCharArray();
+
+        String keytool = new File(System.getProperty("java.home"),
+                "bin" + File.separator + "keytool").getPath();
+        Process process = new ProcessBuilder(keytool, "-genkeypair",
+                "-alias", "bench", "-keyalg", "RSA", "-keysize", "2048",
+                "-dname", "CN=localhost", "-validity", "1",
+                "-keystore", keyStoreFile.getPath(), "-storetype", "JKS",
+                "-storepass", "benchmark", "-keypass", "benchmark")
+                .redirectErrorStream(true).start();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Util.copyStream(process.getInputStream(), output);
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool failed: " + output);
+        }
+
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream in = new FileInputStream(keyStoreFile)) {
+            keyStore.load(in, password);
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(
+                KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, password);
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(kmf.getKeyManagers(), null, null);
+        return ctx;
+    }
+}
@@ -0,0 +1,81 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * MultipartMimeParser.writePartsToStreams across part counts and sizes,
+ * given as "parts x bytes per part".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(2)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MultipartBenchmark {
+
+    @Param({ "1x1024", "10x1024", "100x1024", "1x1048576", "10x1048576",
+            "100x65536" })
+    public String shape;
+
+    private byte[] body;
+
+    private static final OutputStreamGetter nullStreamGetter =
+            new OutputStreamGetter() {
+                @Override
+                public OutputStream getStream(Map<String, String> headers) {
+                    return Streams.nullStream;
+                }
+            };
+
+    @Setup
+    public void setUp() throws IOException {
+        String[] parts = shape.split("x");
+        body = multipartBody(Integer.parseInt(parts[0]),
+                Integer.parseInt(parts[1]));
+    }
+
+    @Benchmark
+    public void writePartsToStreams() throws IOException {
+        new MultipartMimeParser().writePartsToStreams(
+                new ByteArrayInputStream(body), nullStreamGetter,
+                LoopbackServer.boundary);
+    }
+
+    private static byte[] multipartBody(int parts, int partSize)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] content = Streams.randomBytes(partSize);
+        for (int i = 0; i < parts; i++) {
+            out.write(("\r\n--" + LoopbackServer.boundary + "\r\n"
+                    + "Content-Disposition: attachment; filename=part" + i
+                    + "\r\nContent-Type: application/octet-stream\r\n\r\n")
+                    .getBytes("UTF-8"));
+            out.write(content);
+        }
+        out.write(("\r\n--" + LoopbackServer.boundary + "--\r\n")
+                .getBytes("UTF-8"));
+        return out.toByteArray();
+    }
+}
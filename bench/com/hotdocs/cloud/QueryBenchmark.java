@@ -0,0 +1,79 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * getQuery for each Request subclass.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(2)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class QueryBenchmark {
+
+    @Param({ "AssembleDocumentRequest", "CreateSessionRequest",
+            "GetInterviewRequest", "GetComponentInfoRequest",
+            "ResumeSessionRequest", "UploadPackageRequest" })
+    public String requestType;
+
+    private Request request;
+
+    @Setup
+    public void setUp() {
+        if (requestType.equals("AssembleDocumentRequest")) {
+            AssembleDocumentRequest assemble = new AssembleDocumentRequest(
+                    "Employment Agreement", "EmploymentAgreement.hdpkg",
+                    "billing-ref", "Employment Agreement.docx",
+                    "<AnswerSet/>", OutputFormat.PDF);
+            assemble.setSetting("UnansweredFormat", "Underscores");
+            assemble.setSetting("OutputOptions", "PdfTaggedPdf");
+            request = assemble;
+        } else if (requestType.equals("CreateSessionRequest")) {
+            CreateSessionRequest createSession = new CreateSessionRequest(
+                    "Employment Agreement", "EmploymentAgreement.hdpkg",
+                    "billing-ref", "<AnswerSet/>", InterviewFormat.JavaScript,
+                    OutputFormat.DOCX, "Theme", true);
+            createSession.setSetting("ShowAllResourceButtons", "true");
+            request = createSession;
+        } else if (requestType.equals("GetInterviewRequest")) {
+            request = new GetInterviewRequest(
+                    "Employment Agreement", "EmploymentAgreement.hdpkg",
+                    "billing-ref", "Employment Agreement.docx",
+                    "<AnswerSet/>", InterviewFormat.JavaScript,
+                    new String[] { "Employee Name", "Start Date" },
+                    "https://example.com/temp");
+        } else if (requestType.equals("GetComponentInfoRequest")) {
+            request = new GetComponentInfoRequest(
+                    "Employment Agreement", "EmploymentAgreement.hdpkg",
+                    "Employment Agreement.docx", true);
+        } else if (requestType.equals("ResumeSessionRequest")) {
+            request = new ResumeSessionRequest("snapshot");
+        } else {
+            request = new UploadPackageRequest("Employment Agreement",
+                    new FileInputStreamGetter("EmploymentAgreement.hdpkg"));
+        }
+    }
+
+    @Benchmark
+    public String getQuery() {
+        return request.getQuery();
+    }
+}
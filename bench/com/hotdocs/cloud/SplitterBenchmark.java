@@ -0,0 +1,57 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * StreamSplitter.writeUntilPattern over 16 MB with different buffer
+ * sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(2)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SplitterBenchmark {
+
+    @Param({ "1024", "8192", "65536" })
+    public int bufferSize;
+
+    private byte[] pattern;
+    private byte[] data;
+
+    @Setup
+    public void setUp() throws IOException {
+        pattern = ("\r\n--" + LoopbackServer.boundary).getBytes("UTF-8");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(Streams.randomBytes(16 * 1024 * 1024));
+        out.write(pattern);
+        data = out.toByteArray();
+    }
+
+    @Benchmark
+    public int writeUntilPattern() throws IOException {
+        StreamSplitter splitter = new StreamSplitter(bufferSize);
+        splitter.init(new ByteArrayInputStream(data));
+        return splitter.writeUntilPattern(Streams.nullStream, pattern);
+    }
+}
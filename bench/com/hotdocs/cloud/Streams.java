@@ -0,0 +1,39 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Streams and data shared by the benchmarks.
+ */
+class Streams {
+
+    /**
+     * Discards everything written to it.
+     */
+    static final OutputStream nullStream = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private Streams() {
+    }
+
+    /**
+     * @return The same pseudo-random bytes for the same size
+     */
+    static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+}
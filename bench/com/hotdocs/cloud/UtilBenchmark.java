@@ -0,0 +1,90 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Util.readString, and Util.copyStream from a file with a fixed 1 KB
+ * buffer (the old behaviour), the default buffer and a pooled buffer
+ * sized to the payload, across payload sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(2)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class UtilBenchmark {
+
+    @Param({ "1024", "65536", "1048576", "16777216" })
+    public int size;
+
+    private byte[] text;
+    private File file;
+    private final BufferPool pool = new BufferPool(BufferPool.defaultMinSize,
+            BufferPool.defaultMaxSize, true);
+
+    @Setup
+    public void setUp() throws IOException {
+        text = new byte[size];
+        Arrays.fill(text, (byte) 'x');
+        file = File.createTempFile("bench", ".bin");
+        Files.write(file.toPath(), text);
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public String readString() throws IOException {
+        return Util.readString(new ByteArrayInputStream(text),
+                StandardCharsets.UTF_8, size, Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    public void copyStreamSmallBuffer() throws IOException {
+        Util.copyStream(new FileInputStream(file), Streams.nullStream,
+                new byte[1024]);
+    }
+
+    @Benchmark
+    public void copyStreamDefaultBuffer() throws IOException {
+        Util.copyStream(new FileInputStream(file), Streams.nullStream);
+    }
+
+    @Benchmark
+    public void copyStreamPooledBuffer() throws IOException {
+        byte[] buffer = pool.acquire(size);
+        try {
+            Util.copyStream(new FileInputStream(file), Streams.nullStream,
+                    buffer);
+        } finally {
+            pool.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An InputStreamGetter whose answer XML is generated by an
+ * AnswerSetSource while the request is sent. The length isn't known in
+ * advance, so the client sends the XML with chunked transfer encoding,
+ * and the whole answer set is never held in memory.
+ */
+public class AnswerSetInputStreamGetter implements ContentWriter {
+
+    private AnswerSetSource source;
+    private String title;
+
+    public AnswerSetInputStreamGetter(AnswerSetSource source) {
+        this(source, "");
+    }
+
+    /**
+     * AnswerSetInputStreamGetter constructor
+     *
+     * @param source
+     *            Writes the answers
+     * @param title
+     *            The title of the answer set
+     */
+    public AnswerSetInputStreamGetter(AnswerSetSource source, String title) {
+        this.source = source;
+        this.title = title;
+    }
+
+    @Override
+    public int getLength() {
+        return -1;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        AnswerSetWriter writer = new AnswerSetWriter(out, title);
+        source.writeAnswers(writer);
+        writer.finish();
+    }
+
+    /**
+     * Generates the whole answer set in memory. The client doesn't call
+     * this; it is for callers that need the XML as a stream.
+     */
+    @Override
+    public InputStream getStream() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTo(out);
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+}
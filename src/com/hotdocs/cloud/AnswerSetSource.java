@@ -0,0 +1,24 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.io.IOException;
+
+/**
+ * Writes the answers of an answer set, one at a time.
+ */
+public interface AnswerSetSource {
+    /**
+     * Writes the answers. This is called each time the request body is
+     * written, which can be more than once, and must write the same
+     * answers each time. If the request may be hedged (see HedgePolicy),
+     * it may be called from two threads at once.
+     *
+     * @param writer
+     *            Writes the answers to the request
+     * @throws IOException
+     */
+    void writeAnswers(AnswerSetWriter writer) throws IOException;
+}
@@ -0,0 +1,300 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+
+/**
+ * Writes HotDocs answer XML to a stream one answer at a time, so a large
+ * answer set never has to be built as a string.
+ *
+ * Each answer starts with answer(name) and is followed by one value.
+ * The value is either a single text, number, date, true/false or
+ * multiple choice value, or a repeated value made of startRepeat, any
+ * number of values (including nested repeats) and endRepeat:
+ *
+ * <pre>
+ * writer.answer("Client Name").text("Jane Smith");
+ * writer.answer("Child Name").startRepeat()
+ *         .text("Alex").text("Sam").endRepeat();
+ * writer.finish();
+ * </pre>
+ *
+ * Passing null as a value writes an unanswered value of that type.
+ * Dates are written as d/M/yyyy, as HotDocs does. Characters that XML
+ * doesn't allow, such as most control characters and unpaired
+ * surrogates, are written as U+FFFD, the replacement character.
+ */
+public class AnswerSetWriter implements Closeable {
+
+    private final Writer out;
+    private boolean inAnswer = false;
+    private int repeatDepth = 0;
+    private boolean finished = false;
+
+    /**
+     * AnswerSetWriter constructor for an answer set with no title
+     *
+     * @param out
+     *            The stream to which the UTF-8 XML is written
+     * @throws IOException
+     */
+    public AnswerSetWriter(OutputStream out) throws IOException {
+        this(out, "");
+    }
+
+    /**
+     * AnswerSetWriter constructor
+     *
+     * @param out
+     *            The stream to which the UTF-8 XML is written
+     * @param title
+     *            The title of the answer set
+     * @throws IOException
+     */
+    public AnswerSetWriter(OutputStream out, String title)
+            throws IOException {
+        this.out = new BufferedWriter(
+                new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        this.out.write("<?xml version=\"1.0\" encoding=\"UTF-8\" "
+                + "standalone=\"yes\"?>\n<AnswerSet title=\"");
+        escape(title != null ? title : "");
+        this.out.write("\" version=\"1.1\">");
+    }
+
+    /**
+     * Starts an answer. The next value, or repeated value, is its value.
+     *
+     * @param name
+     *            The name of the variable
+     * @return This writer
+     * @throws IOException
+     */
+    public AnswerSetWriter answer(String name) throws IOException {
+        if (finished || inAnswer) {
+            throw new IllegalStateException(
+                    "The previous answer has no value.");
+        }
+        out.write("<Answer name=\"");
+        escape(name);
+        out.write("\">");
+        inAnswer = true;
+        return this;
+    }
+
+    // Values
+
+    public AnswerSetWriter text(String value) throws IOException {
+        return value("TextValue", value);
+    }
+
+    /**
+     * Writes a number value. Integral types are written as they are;
+     * other types are written in plain decimal notation.
+     *
+     * @param value
+     *            The number, or null if it is unanswered
+     * @return This writer
+     * @throws IOException
+     */
+    public AnswerSetWriter number(Number value) throws IOException {
+        String s = null;
+        if (value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte
+                || value instanceof BigInteger) {
+            s = value.toString();
+        } else if (value instanceof BigDecimal) {
+            s = ((BigDecimal) value).toPlainString();
+        } else if (value != null) {
+            double d = value.doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                throw new IllegalArgumentException(
+                        "A number answer must be finite.");
+            }
+            s = BigDecimal.valueOf(d).stripTrailingZeros().toPlainString();
+        }
+        return value("NumValue", s);
+    }
+
+    public AnswerSetWriter date(LocalDate value) throws IOException {
+        return value("DateValue", value == null ? null
+                : value.getDayOfMonth() + "/" + value.getMonthValue() + "/"
+                        + value.getYear());
+    }
+
+    public AnswerSetWriter trueFalse(Boolean value) throws IOException {
+        return value("TFValue", value == null ? null
+                : value ? "true" : "false");
+    }
+
+    /**
+     * Writes a multiple choice value.
+     *
+     * @param selections
+     *            The selected options, or none if it is unanswered
+     * @return This writer
+     * @throws IOException
+     */
+    public AnswerSetWriter multipleChoice(String... selections)
+            throws IOException {
+        if (selections == null || selections.length == 0) {
+            return value("MCValue", null);
+        }
+        checkValue();
+        out.write("<MCValue>");
+        for (String selection : selections) {
+            out.write("<SelValue>");
+            escape(selection);
+            out.write("</SelValue>");
+        }
+        out.write("</MCValue>");
+        endValue();
+        return this;
+    }
+
+    /**
+     * Starts a repeated value. Each value written until the matching
+     * endRepeat is the value for the next repetition.
+     *
+     * @return This writer
+     * @throws IOException
+     */
+    public AnswerSetWriter startRepeat() throws IOException {
+        checkValue();
+        out.write("<RptValue>");
+        repeatDepth++;
+        return this;
+    }
+
+    public AnswerSetWriter endRepeat() throws IOException {
+        if (repeatDepth == 0) {
+            throw new IllegalStateException("There is no repeat to end.");
+        }
+        out.write("</RptValue>");
+        repeatDepth--;
+        endValue();
+        return this;
+    }
+
+    /**
+     * Ends the answer set and flushes it to the stream, but leaves the
+     * stream open.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        if (inAnswer) {
+            throw new IllegalStateException("The last answer is incomplete.");
+        }
+        out.write("</AnswerSet>");
+        out.flush();
+        finished = true;
+    }
+
+    /**
+     * Ends the answer set and closes the stream.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    // Writes a simple value, or an unanswered value if it is null.
+    private AnswerSetWriter value(String element, String value)
+            throws IOException {
+        checkValue();
+        out.write('<');
+        out.write(element);
+        if (value == null) {
+            out.write(" unans=\"true\" />");
+        } else {
+            out.write('>');
+            escape(value);
+            out.write("</");
+            out.write(element);
+            out.write('>');
+        }
+        endValue();
+        return this;
+    }
+
+    private void checkValue() {
+        if (!inAnswer) {
+            throw new IllegalStateException(
+                    "A value must follow answer(name).");
+        }
+    }
+
+    // Ends the answer once its outermost value is complete.
+    private void endValue() throws IOException {
+        if (repeatDepth == 0) {
+            out.write("</Answer>");
+            inAnswer = false;
+        }
+    }
+
+    // Writes text with XML special characters escaped, in runs, and
+    // characters that XML doesn't allow replaced.
+    private void escape(String s) throws IOException {
+        int start = 0;
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            String entity;
+            char c = s.charAt(i);
+            switch (c) {
+            case '&':
+                entity = "&amp;";
+                break;
+            case '<':
+                entity = "&lt;";
+                break;
+            case '>':
+                entity = "&gt;";
+                break;
+            case '"':
+                entity = "&quot;";
+                break;
+            case '\r':
+                entity = "&#13;";
+                break;
+            case '\t':
+            case '\n':
+                continue;
+            default:
+                if (c < 0x20 || c == 0xfffe || c == 0xffff) {
+                    entity = "\ufffd";
+                } else if (Character.isHighSurrogate(c) && i + 1 < n
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    i++; // A pair, which is allowed
+                    continue;
+                } else if (Character.isSurrogate(c)) {
+                    entity = "\ufffd";
+                } else {
+                    continue;
+                }
+            }
+            out.write(s, start, i - start);
+            out.write(entity);
+            start = i + 1;
+        }
+        out.write(s, start, n - start);
+    }
+}
@@ -35,6 +35,22 @@ public class AssembleDocumentRequest extends Request {
         this.format = format;
     }
     
+    public void setAnswers(String answers) {
+        this.contentStreamGetter = new StringInputStreamGetter(answers);
+    }
+
+    /**
+     * Sets the source of the answer XML, which is read each time the
+     * request is sent. Use this to send answers that are already encoded,
+     * stored in a file or generated as they are read.
+     *
+     * @param answers
+     *            Gets the UTF-8 answer XML
+     */
+    public void setAnswers(InputStreamGetter answers) {
+        this.contentStreamGetter = answers;
+    }
+
     public void setSetting(String name, String value) {
         settings.put(name, value);
     }
@@ -66,6 +82,11 @@ public class AssembleDocumentRequest extends Request {
         return "POST";
     }
 
+    @Override
+    boolean isCompressible() {
+        return true;
+    }
+
     @Override
     Collection<Object> getHmacParams() {
         return Arrays.asList(
@@ -0,0 +1,47 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of a request whose response was written to a file or,
+ * for multipart responses, to a directory of files.
+ */
+public class AssemblyResult {
+
+    private final int statusCode;
+    private final String filePath;
+    private final List<String> files;
+
+    AssemblyResult(int statusCode, String filePath, List<String> files) {
+        this.statusCode = statusCode;
+        this.filePath = filePath;
+        this.files = Collections.unmodifiableList(files);
+    }
+
+    /**
+     * @return The HTTP status code
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return The file or directory passed to the request
+     */
+    public String getFilePath() {
+        return filePath;
+    }
+
+    /**
+     * @return The paths of the files that were written, which is empty
+     *         if the request failed
+     */
+    public List<String> getFiles() {
+        return files;
+    }
+}
@@ -0,0 +1,215 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Assembles one template against many answer sets.
+ *
+ * The first answer set is assembled on its own, so that if the package
+ * isn't in the Cloud Services cache it is uploaded exactly once. The
+ * rest are assembled concurrently, up to the concurrency limit, and each
+ * result is passed to a BatchCallback as soon as it is available or, in
+ * ordered mode, as soon as all earlier results have been passed on.
+ *
+ * The answer sets are read from the iterator as capacity frees up, so
+ * large batches never need to be held in memory.
+ */
+public class BatchAssembler {
+
+    private final Client client;
+    private final String packageId;
+    private final String packageFile;
+    private final String templateName;
+    private OutputFormat format = OutputFormat.Native;
+    private String billingRef;
+    private Map<String, String> settings = new HashMap<String, String>();
+    private int concurrency = 8;
+    private boolean ordered = false;
+
+    /**
+     * BatchAssembler constructor
+     *
+     * @param client
+     *            The client that sends the requests
+     * @param packageId
+     *            The ID of the package in the HotDocs Cloud Services cache
+     * @param packageFile
+     *            The local file path of the package
+     * @param templateName
+     *            The name of the template to assemble
+     */
+    public BatchAssembler(
+            Client client,
+            String packageId,
+            String packageFile,
+            String templateName) {
+        this.client = client;
+        this.packageId = packageId;
+        this.packageFile = packageFile;
+        this.templateName = templateName;
+    }
+
+    // Setters
+
+    public void setFormat(OutputFormat format) {
+        this.format = format;
+    }
+
+    public void setBillingRef(String billingRef) {
+        this.billingRef = billingRef;
+    }
+
+    public void setSetting(String name, String value) {
+        settings.put(name, value);
+    }
+
+    /**
+     * Sets the maximum number of assemblies in flight. The default is 8.
+     *
+     * @param concurrency
+     */
+    public void setConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException(
+                    "Concurrency must be at least 1.");
+        }
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Sets whether results are passed to the callback in the order the
+     * answer sets were read (true) or in the order they complete (false,
+     * the default).
+     *
+     * @param ordered
+     */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    /**
+     * Assembles the template once for each answer set and waits until
+     * every result has been passed to the callback. The output for the
+     * answer set at position N is written to outputDir/N, which is a
+     * directory if the response is multipart and a file otherwise.
+     *
+     * @param answerSets
+     *            The XML answer sets
+     * @param outputDir
+     *            The directory in which the output is written
+     * @param callback
+     *            Receives each result
+     * @throws InterruptedException
+     */
+    public void assemble(
+            Iterator<String> answerSets,
+            final String outputDir,
+            BatchCallback callback)
+            throws InterruptedException {
+        new File(outputDir).mkdirs();
+        final RequestTemplate template = new RequestTemplate(packageId,
+                packageFile, billingRef, templateName, format, settings);
+        final Delivery delivery = new Delivery(callback);
+        int index = 0;
+
+        // If the package needs uploading, this request uploads it.
+        if (answerSets.hasNext()) {
+            delivery.acquire();
+            assembleOne(template.newRequest(answerSets.next()), index++,
+                    outputDir, delivery);
+        }
+
+        BulkExecutor bulk = new BulkExecutor(concurrency);
+        try {
+            while (answerSets.hasNext()) {
+                final int i = index++;
+                final Request request = template.newRequest(answerSets.next());
+                delivery.acquire();
+                bulk.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        assembleOne(request, i, outputDir, delivery);
+                        return null;
+                    }
+                });
+            }
+        } finally {
+            bulk.shutdown();
+        }
+    }
+
+    private void assembleOne(
+            Request request,
+            int index,
+            String outputDir,
+            Delivery delivery) {
+        AssemblyResult result = null;
+        Exception exception = null;
+        try {
+            result = client.sendRequestToFile(request,
+                    new File(outputDir, Integer.toString(index)).getPath());
+        } catch (Exception ex) {
+            exception = ex;
+        }
+        delivery.deliver(index, result, exception);
+    }
+
+    /**
+     * Passes results to the callback one at a time, holding back early
+     * arrivals in ordered mode. In ordered mode the number of results
+     * held back is bounded, so one slow assembly can't let the backlog
+     * grow without limit.
+     */
+    private class Delivery {
+        private final BatchCallback callback;
+        private final Semaphore window;
+        private final Map<Integer, Object> pending =
+                new HashMap<Integer, Object>();
+        private int next = 0;
+
+        private Delivery(BatchCallback callback) {
+            this.callback = callback;
+            this.window = ordered ? new Semaphore(concurrency * 4) : null;
+        }
+
+        private void acquire() throws InterruptedException {
+            if (window != null) {
+                window.acquire();
+            }
+        }
+
+        private synchronized void deliver(
+                int index,
+                AssemblyResult result,
+                Exception exception) {
+            Object outcome = (exception != null) ? exception : result;
+            if (!ordered) {
+                call(index, outcome);
+                return;
+            }
+            pending.put(index, outcome);
+            while (pending.containsKey(next)) {
+                int i = next++;
+                window.release();
+                call(i, pending.remove(i));
+            }
+        }
+
+        private void call(int index, Object outcome) {
+            if (outcome instanceof Exception) {
+                callback.onFailure(index, (Exception) outcome);
+            } else {
+                callback.onResult(index, (AssemblyResult) outcome);
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+/**
+ * Receives the results of a BatchAssembler run. Calls are never made
+ * concurrently, but they may come from different threads.
+ */
+public interface BatchCallback {
+    /**
+     * Called when an assembly request has returned a response.
+     * 
+     * @param index
+     *            The position of the answer set in the batch
+     * @param result
+     *            The status code and the files written
+     */
+    void onResult(int index, AssemblyResult result);
+
+    /**
+     * Called when an assembly request has thrown an exception.
+     * 
+     * @param index
+     *            The position of the answer set in the batch
+     * @param exception
+     *            The exception
+     */
+    void onFailure(int index, Exception exception);
+}
@@ -0,0 +1,149 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Hands out byte arrays for copying request and response bodies, sized
+ * to the body when its length is known.
+ *
+ * Sizes are powers of two between a minimum and a maximum. A small
+ * answer set is copied with a small buffer, and a large package with a
+ * buffer big enough to keep the number of reads and writes down.
+ * Released buffers are kept, up to a fixed number of each size, and
+ * handed out again, so steady traffic doesn't allocate buffers.
+ */
+class BufferPool {
+
+    static final int defaultMinSize = 4 * 1024;
+    static final int defaultMaxSize = 256 * 1024;
+
+    // Smaller buffers can't hold a multipart boundary and part headers,
+    // and larger ones can't be rounded up to a power of two.
+    static final int minAllowedSize = 1024;
+    static final int maxAllowedSize = 1 << 30;
+
+    // The size used when the length of the body isn't known
+    private static final int unknownLengthSize = 64 * 1024;
+    private static final int maxPooledPerSize = 16;
+
+    private final int minSize;
+    private final int maxSize;
+    private final boolean pooling;
+    private final List<Queue<byte[]>> pools;
+    private final AtomicIntegerArray pooledCounts;
+
+    /**
+     * BufferPool constructor
+     *
+     * @param minSize
+     *            The smallest buffer size, rounded up to a power of two.
+     *            At least 1 KB.
+     * @param maxSize
+     *            The largest buffer size, rounded up to a power of two.
+     *            At most 1 GB, and at least the minimum.
+     * @param pooling
+     *            Whether released buffers are kept and reused
+     */
+    BufferPool(int minSize, int maxSize, boolean pooling) {
+        if (minSize < minAllowedSize || maxSize > maxAllowedSize
+                || maxSize < minSize) {
+            throw new IllegalArgumentException("The buffer sizes must be "
+                    + "between " + minAllowedSize + " and " + maxAllowedSize
+                    + " bytes, and the maximum must be at least the "
+                    + "minimum.");
+        }
+        this.minSize = roundUp(minSize);
+        this.maxSize = roundUp(maxSize);
+        this.pooling = pooling;
+        int sizeCount = Integer.numberOfTrailingZeros(this.maxSize)
+                - Integer.numberOfTrailingZeros(this.minSize) + 1;
+        pools = new ArrayList<Queue<byte[]>>(sizeCount);
+        for (int i = 0; i < sizeCount; i++) {
+            pools.add(new ConcurrentLinkedQueue<byte[]>());
+        }
+        pooledCounts = new AtomicIntegerArray(sizeCount);
+    }
+
+    int getMinSize() {
+        return minSize;
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    boolean isPooling() {
+        return pooling;
+    }
+
+    /**
+     * Gets the buffer size for a body of the given length.
+     *
+     * @param expectedLength
+     *            The length of the body, or -1 if it isn't known
+     */
+    int sizeFor(long expectedLength) {
+        long size = expectedLength < 0 ? unknownLengthSize : expectedLength;
+        if (size <= minSize) {
+            return minSize;
+        }
+        if (size >= maxSize) {
+            return maxSize;
+        }
+        return roundUp((int) size);
+    }
+
+    /**
+     * Gets a buffer for a body of the given length. Pass it to release
+     * when it is no longer needed.
+     *
+     * @param expectedLength
+     *            The length of the body, or -1 if it isn't known
+     */
+    byte[] acquire(long expectedLength) {
+        int size = sizeFor(expectedLength);
+        if (pooling) {
+            int i = indexOf(size);
+            byte[] buffer = pools.get(i).poll();
+            if (buffer != null) {
+                pooledCounts.decrementAndGet(i);
+                return buffer;
+            }
+        }
+        return new byte[size];
+    }
+
+    /**
+     * Returns a buffer from acquire to the pool.
+     */
+    void release(byte[] buffer) {
+        if (!pooling || buffer.length < minSize || buffer.length > maxSize
+                || Integer.bitCount(buffer.length) != 1) {
+            return;
+        }
+        int i = indexOf(buffer.length);
+        if (pooledCounts.incrementAndGet(i) <= maxPooledPerSize) {
+            pools.get(i).offer(buffer);
+        } else {
+            pooledCounts.decrementAndGet(i);
+        }
+    }
+
+    private int indexOf(int size) {
+        return Integer.numberOfTrailingZeros(size)
+                - Integer.numberOfTrailingZeros(minSize);
+    }
+
+    private static int roundUp(int size) {
+        int rounded = Integer.highestOneBit(size);
+        return rounded == size ? size : rounded << 1;
+    }
+}
@@ -0,0 +1,113 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many blocking requests at once with a limit on how many are in
+ * flight. Each task runs on its own virtual thread when the JVM supports
+ * them (Java 21 and later), and on a fixed pool of platform threads sized
+ * to the limit otherwise.
+ */
+class BulkExecutor {
+
+    private final Semaphore permits;
+    private final ExecutorService executor;
+
+    /**
+     * BulkExecutor constructor
+     * 
+     * @param concurrency
+     *            The maximum number of tasks that run at the same time
+     */
+    BulkExecutor(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException(
+                    "Concurrency must be at least 1.");
+        }
+        permits = new Semaphore(concurrency);
+        executor = newExecutor(concurrency);
+    }
+
+    /**
+     * Submits a task, first waiting until fewer than the maximum number of
+     * tasks are running.
+     * 
+     * @param task
+     * @return A future for the task's result
+     * @throws InterruptedException
+     */
+    <T> Future<T> submit(final Callable<T> task) throws InterruptedException {
+        permits.acquire();
+        try {
+            return executor.submit(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    try {
+                        return task.call();
+                    } finally {
+                        permits.release();
+                    }
+                }
+            });
+        } catch (RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Waits for the submitted tasks to finish, then releases the threads.
+     * 
+     * @throws InterruptedException
+     */
+    void shutdown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return Whether tasks will run on virtual threads
+     */
+    static boolean isVirtualThreadSupported() {
+        return getVirtualThreadFactory() != null;
+    }
+
+    private static ExecutorService newExecutor(int concurrency) {
+        Method factory = getVirtualThreadFactory();
+        if (factory != null) {
+            try {
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException ex) {
+                // Fall through to platform threads.
+            }
+        }
+        return Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "hotdocs-cloud-bulk");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    // Looked up reflectively, so the library still runs on older JVMs.
+    private static Method getVirtualThreadFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+/**
+ * The outcome of one request sent with Client.sendRequests.
+ */
+public class BulkResult {
+
+    private final Request request;
+    private final String response;
+    private final Exception exception;
+
+    BulkResult(Request request, String response, Exception exception) {
+        this.request = request;
+        this.response = response;
+        this.exception = exception;
+    }
+
+    /**
+     * @return The request that was sent
+     */
+    public Request getRequest() {
+        return request;
+    }
+
+    /**
+     * @return The response body, or null if the request failed
+     */
+    public String getResponse() {
+        return response;
+    }
+
+    /**
+     * @return The exception the request failed with, or null
+     */
+    public Exception getException() {
+        return exception;
+    }
+
+    /**
+     * @return Whether the request succeeded
+     */
+    public boolean isSuccess() {
+        return exception == null;
+    }
+}
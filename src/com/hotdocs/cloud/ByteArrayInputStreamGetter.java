@@ -0,0 +1,57 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An InputStreamGetter that gets a stream from bytes that are already
+ * encoded, e.g. UTF-8 answer XML. The array is not copied, so it must
+ * not be changed while requests that use it are being sent. As a request
+ * body, it is written to the connection in one call.
+ */
+public class ByteArrayInputStreamGetter implements ContentWriter {
+
+    private byte[] bytes;
+    private int offset;
+    private int length;
+
+    public ByteArrayInputStreamGetter(byte[] bytes) {
+        this(bytes, 0, bytes.length);
+    }
+
+    public ByteArrayInputStreamGetter(byte[] bytes, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > bytes.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public long getContentLength() {
+        return length;
+    }
+
+    @Override
+    public InputStream getStream() {
+        return new ByteArrayInputStream(bytes, offset, length);
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, offset, length);
+    }
+
+}
@@ -0,0 +1,107 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStreamGetter that gets a stream from the remaining bytes of a
+ * ByteBuffer, which may be direct. Each stream reads from its own view
+ * of the buffer, so the buffer's position is never changed and the
+ * bytes can be sent more than once. As a request body, a heap buffer is
+ * written to the connection in one call.
+ */
+public class ByteBufferInputStreamGetter implements ContentWriter {
+
+    private static final int copyBufferSize = 64 * 1024;
+
+    private ByteBuffer buffer;
+
+    public ByteBufferInputStreamGetter(ByteBuffer buffer) {
+        this.buffer = buffer.slice();
+    }
+
+    @Override
+    public int getLength() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public long getContentLength() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+            return;
+        }
+        ByteBuffer view = buffer.duplicate();
+        byte[] b = new byte[Math.min(view.remaining(), copyBufferSize)];
+        while (view.hasRemaining()) {
+            int len = Math.min(b.length, view.remaining());
+            view.get(b, 0, len);
+            out.write(b, 0, len);
+        }
+    }
+
+    @Override
+    public InputStream getStream() {
+        if (buffer.hasArray()) {
+            return new ByteArrayInputStream(buffer.array(),
+                    buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+        }
+        return new ByteBufferInputStream(buffer.duplicate());
+    }
+
+    /**
+     * An InputStream that reads a buffer without copying it to the heap.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+}
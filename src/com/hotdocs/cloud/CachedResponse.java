@@ -0,0 +1,109 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+/**
+ * A response held in a ResponseCache: the decompressed body, its content
+ * type, the validators the server sent with it, if any, and the time at
+ * which it stops being fresh.
+ */
+public final class CachedResponse {
+
+    // Roughly what an entry costs besides its body and strings
+    private static final int overhead = 96;
+
+    private final byte[] body;
+    private final String contentType;
+    private final String eTag;
+    private final String lastModified;
+    private final long expires;
+
+    /**
+     * CachedResponse constructor
+     *
+     * @param body
+     *            The response body, which must not be modified afterwards
+     * @param contentType
+     *            The Content-Type header, or null
+     * @param eTag
+     *            The ETag header, or null
+     * @param lastModified
+     *            The Last-Modified header, or null
+     * @param expires
+     *            The time, in milliseconds since the epoch, at which the
+     *            response stops being fresh
+     */
+    public CachedResponse(
+            byte[] body,
+            String contentType,
+            String eTag,
+            String lastModified,
+            long expires) {
+        this.body = body;
+        this.contentType = contentType;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+        this.expires = expires;
+    }
+
+    // Getters
+
+    /**
+     * @return The response body, which must not be modified
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return The time, in milliseconds since the epoch, at which the
+     *         response stops being fresh
+     */
+    public long getExpires() {
+        return expires;
+    }
+
+    /**
+     * @return The approximate number of bytes the response takes up in
+     *         memory
+     */
+    public long getSize() {
+        return body.length + overhead
+                + 2L * (length(contentType) + length(eTag)
+                        + length(lastModified));
+    }
+
+    boolean isFresh(long now) {
+        return now < expires;
+    }
+
+    // Whether the response can be revalidated instead of fetched again.
+    boolean hasValidators() {
+        return eTag != null || lastModified != null;
+    }
+
+    // The same response, fresh until a new time, after the server has
+    // said it hasn't changed.
+    CachedResponse withExpires(long expires) {
+        return new CachedResponse(body, contentType, eTag, lastModified,
+                expires);
+    }
+
+    private static int length(String s) {
+        return s == null ? 0 : s.length();
+    }
+}
@@ -0,0 +1,148 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Receives the canonicalized form of a request's parameters from
+ * Hmac.canonicalize, one piece at a time, so that it can be hashed
+ * without first being built into a string.
+ *
+ * Separators are held back until more content follows, which drops the
+ * trailing '\n' without having to remove it afterwards. Numbers and
+ * dates are written digit by digit, and map keys are sorted in a
+ * reusable array, so a writer that is reused doesn't allocate.
+ */
+abstract class CanonicalWriter {
+
+    private boolean separatorPending;
+    private String[] keys = new String[8];
+
+    /**
+     * Prepares the writer for a new set of parameters.
+     */
+    void reset() {
+        separatorPending = false;
+    }
+
+    /**
+     * Ends a parameter or map entry with '\n'.
+     */
+    void separator() {
+        flushSeparator();
+        separatorPending = true;
+    }
+
+    void text(String s) {
+        flushSeparator();
+        writeString(s);
+    }
+
+    void number(int value) {
+        flushSeparator();
+        long v = value;
+        if (v < 0) {
+            writeAscii('-');
+            v = -v;
+        }
+        long divisor = 1;
+        while (divisor * 10 <= v) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            writeAscii((char) ('0' + (v / divisor) % 10));
+        }
+    }
+
+    /**
+     * Writes a date in UTC as "yyyy-MM-ddTHH:mm:ssZ".
+     */
+    void date(Date date) {
+        flushSeparator();
+        long seconds = Math.floorDiv(date.getTime(), 1000L);
+        long days = Math.floorDiv(seconds, 86400L);
+        int secondOfDay = (int) Math.floorMod(seconds, 86400L);
+
+        // Convert days since 1970-01-01 to a civil date. This is the
+        // days_from_civil inverse from Howard Hinnant's date algorithms.
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524
+                - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra
+                - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        digits(year, 4);
+        writeAscii('-');
+        digits(month, 2);
+        writeAscii('-');
+        digits(day, 2);
+        writeAscii('T');
+        digits(secondOfDay / 3600, 2);
+        writeAscii(':');
+        digits(secondOfDay / 60 % 60, 2);
+        writeAscii(':');
+        digits(secondOfDay % 60, 2);
+        writeAscii('Z');
+    }
+
+    /**
+     * Writes "key=value\n" for each map entry, sorted by key.
+     */
+    void map(Map<String, String> map) {
+        int count = map.size();
+        if (keys.length < count) {
+            keys = new String[Math.max(count, keys.length * 2)];
+        }
+        int i = 0;
+        for (String key : map.keySet()) {
+            keys[i++] = key;
+        }
+        Arrays.sort(keys, 0, count);
+        for (i = 0; i < count; i++) {
+            text(keys[i]);
+            writeAscii('=');
+            writeString(map.get(keys[i]));
+            separator();
+            keys[i] = null;
+        }
+    }
+
+    // Writes a non-negative number, zero-padded to a minimum width.
+    private void digits(long value, int width) {
+        long divisor = 1;
+        for (int i = 1; i < width || divisor * 10 <= value; i++) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            writeAscii((char) ('0' + (value / divisor) % 10));
+        }
+    }
+
+    private void flushSeparator() {
+        if (separatorPending) {
+            separatorPending = false;
+            writeAscii('\n');
+        }
+    }
+
+    /**
+     * Writes a single ASCII character.
+     */
+    protected abstract void writeAscii(char c);
+
+    /**
+     * Writes a string, which may be null.
+     */
+    protected abstract void writeString(String s);
+}
@@ -0,0 +1,248 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Stops a Client from sending requests to an address that is failing, so
+ * that during an outage callers fail at once instead of each waiting for
+ * a timeout, and the service isn't kept busy while it recovers.
+ *
+ * Each address has its own circuit, which starts closed. A failure is a
+ * connection that can't be opened, is reset or times out, or a 502, 503
+ * or 504 response. After failureThreshold failures in a row, the circuit
+ * opens, and requests throw CircuitOpenException without being sent.
+ * After openDuration, the circuit is half-open: a few requests are sent
+ * as probes while the rest still fail fast. If a probe succeeds, the
+ * circuit closes; if it fails, the circuit opens again.
+ *
+ * Each attempt of a retried request counts on its own. A request that
+ * runs out of its total timeout, e.g. while it waits for a RequestLimiter,
+ * doesn't count as a failure. Clients that share a breaker share its
+ * circuits.
+ */
+public class CircuitBreaker {
+
+    private static final int defaultFailureThreshold = 5;
+    private static final long defaultOpenDuration = 30 * 1000;
+    private static final int defaultHalfOpenProbes = 1;
+
+    /**
+     * The state of a circuit.
+     */
+    public enum State {
+        Closed, Open, HalfOpen
+    }
+
+    private final int failureThreshold;
+    private final long openDuration;
+    private final int halfOpenProbes;
+    private final ConcurrentMap<String, Circuit> circuits =
+            new ConcurrentHashMap<String, Circuit>();
+
+    /**
+     * CircuitBreaker constructor with the defaults: the circuit opens
+     * after 5 failures in a row, stays open for 30 seconds, and then
+     * sends 1 probe.
+     */
+    public CircuitBreaker() {
+        this(defaultFailureThreshold, defaultOpenDuration,
+                defaultHalfOpenProbes);
+    }
+
+    /**
+     * CircuitBreaker constructor
+     *
+     * @param failureThreshold
+     *            The number of failures in a row that opens the circuit
+     * @param openDuration
+     *            Milliseconds the circuit stays open before probing
+     * @param halfOpenProbes
+     *            The number of probes that may be in flight at once while
+     *            the circuit is half-open
+     */
+    public CircuitBreaker(
+            int failureThreshold,
+            long openDuration,
+            int halfOpenProbes) {
+        if (failureThreshold < 1 || halfOpenProbes < 1) {
+            throw new IllegalArgumentException(
+                    "The failure threshold and probes must be at least 1.");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+        this.halfOpenProbes = halfOpenProbes;
+    }
+
+    /**
+     * @param address
+     * @return The state of the address's circuit
+     */
+    public State getState(String address) {
+        Circuit circuit = circuits.get(address);
+        return circuit == null ? State.Closed : circuit.getState();
+    }
+
+    /**
+     * Closes the address's circuit, e.g. once an outage is known to be
+     * over.
+     *
+     * @param address
+     */
+    public void reset(String address) {
+        circuits.remove(address);
+    }
+
+    /**
+     * Lets a request to the address go ahead, or throws if the circuit
+     * is open. Each call must be followed by one call to record or
+     * cancel.
+     *
+     * @param address
+     * @return Whether the request is a half-open probe
+     * @throws CircuitOpenException
+     */
+    boolean acquire(String address) throws CircuitOpenException {
+        Circuit circuit = circuits.get(address);
+        if (circuit == null) {
+            Circuit created = new Circuit();
+            circuit = circuits.putIfAbsent(address, created);
+            if (circuit == null) {
+                circuit = created;
+            }
+        }
+        return circuit.acquire(address);
+    }
+
+    /**
+     * Records the outcome of a request that acquire let go ahead.
+     *
+     * @param address
+     * @param probe
+     *            What acquire returned
+     * @param failed
+     */
+    void record(String address, boolean probe, boolean failed) {
+        Circuit circuit = circuits.get(address);
+        if (circuit != null) {
+            circuit.record(probe, failed);
+        }
+    }
+
+    /**
+     * Records that a request that acquire let go ahead failed for a
+     * reason that says nothing about the service, such as a missing
+     * package file.
+     *
+     * @param address
+     * @param probe
+     *            What acquire returned
+     */
+    void cancel(String address, boolean probe) {
+        Circuit circuit = circuits.get(address);
+        if (circuit != null && probe) {
+            circuit.cancelProbe();
+        }
+    }
+
+    // Whether an exception shows the service to be failing. Running out
+    // of the total timeout doesn't, since it may have been spent waiting
+    // in the client.
+    static boolean isFailure(IOException ex) {
+        if (ex instanceof TotalTimeoutException) {
+            return false;
+        }
+        return ex instanceof SocketException
+                || ex instanceof SocketTimeoutException
+                || ex instanceof EOFException;
+    }
+
+    // Whether a response status shows the service to be failing.
+    static boolean isFailure(int status) {
+        return status == 502 || status == 503 || status == 504;
+    }
+
+    /**
+     * The state of one address.
+     */
+    private class Circuit {
+        private State state = State.Closed;
+        private int failures;
+        private long openedAt;
+        private int probes;
+
+        synchronized State getState() {
+            if (state == State.Open
+                    && System.currentTimeMillis() - openedAt >= openDuration) {
+                return State.HalfOpen;
+            }
+            return state;
+        }
+
+        synchronized boolean acquire(String address)
+                throws CircuitOpenException {
+            if (state == State.Open) {
+                long left = openedAt + openDuration
+                        - System.currentTimeMillis();
+                if (left > 0) {
+                    throw new CircuitOpenException("Requests to " + address
+                            + " are failing, so none will be sent for "
+                            + left + " ms.");
+                }
+                state = State.HalfOpen;
+                probes = 0;
+            }
+            if (state == State.HalfOpen) {
+                if (probes >= halfOpenProbes) {
+                    throw new CircuitOpenException("Requests to " + address
+                            + " are failing, and are being probed.");
+                }
+                probes++;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized void record(boolean probe, boolean failed) {
+            if (probe) {
+                if (state == State.HalfOpen) {
+                    probes--;
+                    if (failed) {
+                        open();
+                    } else {
+                        state = State.Closed;
+                        failures = 0;
+                    }
+                }
+            } else if (state == State.Closed) {
+                if (!failed) {
+                    failures = 0;
+                } else if (++failures >= failureThreshold) {
+                    open();
+                }
+            }
+            // Requests that were let through before the circuit opened
+            // don't change it.
+        }
+
+        synchronized void cancelProbe() {
+            if (state == State.HalfOpen) {
+                probes--;
+            }
+        }
+
+        private void open() {
+            state = State.Open;
+            openedAt = System.currentTimeMillis();
+            failures = 0;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of sending a request while the CircuitBreaker for its
+ * address is open, because recent requests to it have failed.
+ */
+@SuppressWarnings("serial")
+public class CircuitOpenException extends IOException {
+    public CircuitOpenException(String message) {
+        super(message);
+    }
+}
@@ -8,18 +8,40 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
-import java.net.URI;
+import java.net.SocketTimeoutException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
-import java.text.SimpleDateFormat;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
-import java.util.TimeZone;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.HttpsURLConnection;
 
@@ -28,13 +50,42 @@ import javax.net.ssl.HttpsURLConnection;
  */
 public class Client {
 
+    private static final DateTimeFormatter httpDateFormat = DateTimeFormatter
+            .ofPattern("EEE, d MMM yyyy HH:mm:ss z", Locale.US)
+            .withZone(ZoneId.of("GMT"));
+
     private String subscriberId;
-    private String signingKey;
+    private Signer signer;
     private String address;
     private String proxy;
     private int proxyPort;
     private boolean areCertErrorsIgnored = false;
-    private MultipartMimeParser multipartParser = new MultipartMimeParser();
+    private Transport transport = new UrlConnectionTransport();
+    private Executor executor;
+    private int bulkConcurrency = 16;
+    private PackageRegistry packageRegistry = new PackageRegistry();
+    private boolean preUpload = false;
+    private Compression requestCompression = Compression.None;
+    private int compressionThreshold = 1024;
+    private boolean acceptCompression = false;
+    private int maxResponseSize = 16 * 1024 * 1024;
+    private BufferPool buffers = new BufferPool(BufferPool.defaultMinSize,
+            BufferPool.defaultMaxSize, true);
+    private volatile MetricsCollector metricsCollector;
+    private RetryPolicy retryPolicy;
+    private RequestLimiter requestLimiter;
+    private CircuitBreaker circuitBreaker;
+    private HedgePolicy hedgePolicy;
+    private ScheduledExecutorService scheduler;
+    private ExecutorService hedgeExecutor;
+    private ResponseCache responseCache;
+    private long cacheTimeToLive;
+    private Timeouts timeouts = Timeouts.defaults;
+    private final ConcurrentMap<Class<?>, Timeouts> requestTimeouts =
+            new ConcurrentHashMap<Class<?>, Timeouts>();
+    private final ConcurrentMap<String, CompletableFuture<Integer>>
+            uploadsInFlight =
+                    new ConcurrentHashMap<String, CompletableFuture<Integer>>();
 
     /**
      * Client constructor
@@ -77,7 +128,7 @@ public class Client {
             String proxy,
             int proxyPort) {
         this.subscriberId = subscriberId;
-        this.signingKey = signingKey;
+        this.signer = new Signer(signingKey);
         this.address = address;
         this.proxy = proxy;
         this.proxyPort = proxyPort;
@@ -103,12 +154,22 @@ public class Client {
     public int sendRequest(Request request, StringBuilder responseBuffer)
             throws URISyntaxException, IOException, HmacException {
         responseBuffer.setLength(0);
-        HttpURLConnection conn = sendRequestImpl(request);
-        if (Util.getResponseStream(conn) != null) {
-            responseBuffer
-                    .append(Util.readString(Util.getResponseStream(conn)));
+        RequestMetrics metrics = new RequestMetrics(request);
+        try {
+            HttpURLConnection conn = sendRequestImpl(request, metrics);
+            long start = System.nanoTime();
+            InputStream responseStream = Util.getResponseStream(conn, metrics);
+            if (responseStream != null) {
+                responseBuffer.append(readResponseString(conn, responseStream));
+            }
+            metrics.addSince(Phase.ReadResponse, start);
+            return conn.getResponseCode();
+        } catch (Exception ex) {
+            metrics.setException(ex);
+            throw ex;
+        } finally {
+            complete(metrics);
         }
-        return conn.getResponseCode();
     }
 
     /**
@@ -131,18 +192,7 @@ public class Client {
      */
     public int sendRequest(Request request, String filePath)
             throws URISyntaxException, IOException, HmacException {
-        HttpURLConnection conn = sendRequestImpl(request);
-        if (Util.httpOk(conn)) {
-            if (conn.getContentType().startsWith("multipart")) {
-                handleMultipart(conn, filePath);
-            }
-            else {
-                FileOutputStream outStream = new FileOutputStream(filePath);
-                Util.copyStream(Util.getResponseStream(conn), outStream);
-            }
-        }
-
-        return conn.getResponseCode();
+        return sendRequestToFile(request, filePath).getStatusCode();
     }
 
     /**
@@ -163,11 +213,320 @@ public class Client {
      */
     public String sendRequest(Request request)
             throws URISyntaxException, IOException, HmacException {
-        HttpURLConnection conn = sendRequestImpl(request);
+        RequestMetrics metrics = new RequestMetrics(request);
+        try {
+            ResponseCache cache = responseCache;
+            if (cache != null && isCacheable(request)) {
+                CachedResponse response = sendCached(cache, request, metrics);
+                Charset charset = Util.getCharset(response.getContentType());
+                return new String(response.getBody(), charset);
+            }
+            HttpURLConnection conn = sendRequestImpl(request, metrics);
+            if (!Util.httpOk(conn)) {
+                int status = conn.getResponseCode();
+                transport.release(conn);
+                throw new IOException("HTTP error " + status);
+            }
+            long start = System.nanoTime();
+            String response = readResponseString(conn,
+                    Util.getResponseStream(conn, metrics));
+            metrics.addSince(Phase.ReadResponse, start);
+            return response;
+        } catch (Exception ex) {
+            metrics.setException(ex);
+            throw ex;
+        } finally {
+            complete(metrics);
+        }
+    }
+
+    /**
+     * Sends a request to HotDocs Cloud Services and returns the response
+     * body as bytes, without decoding it. HTTP errors result in an
+     * IOException being thrown.
+     * 
+     * If the request refers to a package that is not in the
+     * Cloud Services cache, this method will automatically
+     * upload the package and retry the request.
+     * 
+     * @param request
+     *            The request to send
+     * @return The response body
+     * @throws URISyntaxException
+     * @throws IOException
+     * @throws HmacException
+     */
+    public byte[] sendRequestForBytes(Request request)
+            throws URISyntaxException, IOException, HmacException {
+        RequestMetrics metrics = new RequestMetrics(request);
+        try {
+            ResponseCache cache = responseCache;
+            if (cache != null && isCacheable(request)) {
+                // The cached body is shared, so the caller gets a copy.
+                return sendCached(cache, request, metrics).getBody().clone();
+            }
+            HttpURLConnection conn = sendRequestImpl(request, metrics);
+            if (!Util.httpOk(conn)) {
+                int status = conn.getResponseCode();
+                transport.release(conn);
+                throw new IOException("HTTP error " + status);
+            }
+            long start = System.nanoTime();
+            byte[] response = Util.readBytes(
+                    Util.getResponseStream(conn, metrics),
+                    getExpectedLength(conn), maxResponseSize);
+            metrics.addSince(Phase.ReadResponse, start);
+            return response;
+        } catch (Exception ex) {
+            metrics.setException(ex);
+            throw ex;
+        } finally {
+            complete(metrics);
+        }
+    }
+
+    /**
+     * Sends a request to HotDocs Cloud Services and returns a reader for
+     * the parts of the response. Each part's content is read straight from
+     * the connection as the caller consumes it, so assembled documents can
+     * be passed on without being held in memory or written to disk. A
+     * response that isn't multipart is returned as a single part. HTTP
+     * errors result in an IOException being thrown.
+     * 
+     * If the request refers to a package that is not in the
+     * Cloud Services cache, this method will automatically
+     * upload the package and retry the request.
+     * 
+     * @param request
+     *            The request to send
+     * @return A reader for the response parts, which must be closed
+     * @throws URISyntaxException
+     * @throws IOException
+     * @throws HmacException
+     */
+    public MimePartReader sendRequestStreaming(Request request)
+            throws URISyntaxException, IOException, HmacException {
+        RequestMetrics metrics = new RequestMetrics(request);
+        try {
+            return sendRequestStreamingImpl(request, metrics);
+        } catch (Exception ex) {
+            metrics.setException(ex);
+            throw ex;
+        } finally {
+            complete(metrics);
+        }
+    }
+
+    // Sends the request and opens a reader for the response. The response
+    // is read after the request completes, so it isn't timed.
+    private MimePartReader sendRequestStreamingImpl(Request request,
+            RequestMetrics metrics)
+            throws URISyntaxException, IOException, HmacException {
+        HttpURLConnection conn = sendRequestImpl(request, metrics);
         if (!Util.httpOk(conn)) {
-            throw new IOException("HTTP error " + conn.getResponseCode());
+            int status = conn.getResponseCode();
+            transport.release(conn);
+            throw new IOException("HTTP error " + status);
+        }
+
+        String contentType = conn.getContentType();
+        if (contentType != null && contentType.startsWith("multipart")) {
+            return new MimePartReader(Util.getResponseStream(conn),
+                    Util.getNamedValue(contentType, ";", "boundary"),
+                    new byte[buffers.sizeFor(getExpectedLength(conn))]);
+        }
+
+        Map<String, String> headers = new HashMap<String, String>();
+        if (contentType != null) {
+            headers.put("Content-Type", contentType);
+        }
+        String disp = conn.getHeaderField("Content-Disposition");
+        if (disp != null) {
+            headers.put("Content-Disposition", disp);
         }
-        return Util.readString(Util.getResponseStream(conn));
+        return new MimePartReader(Util.getResponseStream(conn), headers);
+    }
+
+    /**
+     * Sends a request to HotDocs Cloud Services on the client's executor
+     * and completes the returned future with the response body. HTTP
+     * errors complete the future exceptionally with an IOException.
+     * 
+     * If the request refers to a package that is not in the
+     * Cloud Services cache, the package is uploaded and the request
+     * retried before the future completes.
+     * 
+     * @param request
+     *            The request to send
+     * @return A future for the response body
+     */
+    public CompletableFuture<String> sendRequestAsync(final Request request) {
+        return supplyAsync(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return sendRequest(request);
+            }
+        });
+    }
+
+    /**
+     * Sends a request to HotDocs Cloud Services on the client's executor
+     * and writes the resulting content to a file or files, as
+     * sendRequest(Request, String) does.
+     * 
+     * @param request
+     *            The request to send
+     * @param filePath
+     *            The output file, or the output directory for multipart
+     *            content
+     * @return A future for the status code and the files written
+     */
+    public CompletableFuture<AssemblyResult> sendRequestAsync(
+            final Request request,
+            final String filePath) {
+        return supplyAsync(new Callable<AssemblyResult>() {
+            @Override
+            public AssemblyResult call() throws Exception {
+                return sendRequestToFile(request, filePath);
+            }
+        });
+    }
+
+    /**
+     * Sends many requests to HotDocs Cloud Services at once and waits for
+     * all of them to finish. Each request runs on its own virtual thread
+     * when the JVM supports them, or on a pool of platform threads
+     * otherwise. No more than the bulk concurrency limit are in flight
+     * at any time.
+     * 
+     * If a request refers to a package that is not in the
+     * Cloud Services cache, the package is uploaded and the request
+     * retried, as with sendRequest(Request).
+     * 
+     * @param requests
+     *            The requests to send
+     * @return One result per request, in the same order
+     * @throws InterruptedException
+     */
+    public List<BulkResult> sendRequests(List<? extends Request> requests)
+            throws InterruptedException {
+        BulkExecutor bulk = new BulkExecutor(bulkConcurrency);
+        List<Future<String>> futures = new ArrayList<Future<String>>();
+        try {
+            for (final Request request : requests) {
+                futures.add(bulk.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return sendRequest(request);
+                    }
+                }));
+            }
+        } finally {
+            bulk.shutdown();
+        }
+
+        List<BulkResult> results = new ArrayList<BulkResult>();
+        for (int i = 0; i < futures.size(); i++) {
+            Request request = requests.get(i);
+            try {
+                results.add(new BulkResult(
+                        request, futures.get(i).get(), null));
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof Error) {
+                    throw (Error) ex.getCause();
+                }
+                results.add(new BulkResult(
+                        request, null, (Exception) ex.getCause()));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Sets the maximum number of requests that sendRequests keeps in
+     * flight. The default is 16.
+     * 
+     * @param bulkConcurrency
+     */
+    public void setBulkConcurrency(int bulkConcurrency) {
+        if (bulkConcurrency < 1) {
+            throw new IllegalArgumentException(
+                    "Concurrency must be at least 1.");
+        }
+        this.bulkConcurrency = bulkConcurrency;
+    }
+
+    /**
+     * @return The maximum number of requests that sendRequests keeps
+     *         in flight
+     */
+    public int getBulkConcurrency() {
+        return bulkConcurrency;
+    }
+
+    /**
+     * Sets the executor that runs asynchronous requests. By default,
+     * each client creates a cached pool of daemon threads the first
+     * time it is needed.
+     * 
+     * @param executor
+     */
+    public synchronized void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @return The executor that runs asynchronous requests
+     */
+    public synchronized Executor getExecutor() {
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "hotdocs-cloud-client");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    // Gets the daemon thread that starts hedge attempts when their delay
+    // is up.
+    private synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r,
+                                    "hotdocs-cloud-client-hedge");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return scheduler;
+    }
+
+    // Gets the daemon threads that send hedge attempts. They don't share
+    // the client's executor, since a request waiting there for its hedge
+    // could hold the thread that the hedge needs. The hedge policy limits
+    // how many there are.
+    private synchronized ExecutorService getHedgeExecutor() {
+        if (hedgeExecutor == null) {
+            hedgeExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r,
+                            "hotdocs-cloud-client-hedge-attempt");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return hedgeExecutor;
     }
 
     /**
@@ -179,23 +538,308 @@ public class Client {
         areCertErrorsIgnored = true;
     }
 
-    // Gets an HttpURLConnection according to the provided Request object.
-    private HttpURLConnection getConn(Request request)
-            throws URISyntaxException, IOException, HmacException {
-        String path = String.format("%s/%s", request.getPathPrefix(),
-                subscriberId);
+    /**
+     * Sets the transport used to open connections to HotDocs Cloud
+     * Services. The default is a UrlConnectionTransport; use a
+     * PooledTransport to keep connections open across requests.
+     * 
+     * @param transport
+     */
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * @return The transport used to open connections
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Sets the registry of packages known to be in the HotDocs Cloud
+     * Services cache. Registries may be shared between clients that use
+     * the same subscription.
+     * 
+     * @param packageRegistry
+     */
+    public void setPackageRegistry(PackageRegistry packageRegistry) {
+        this.packageRegistry = packageRegistry;
+    }
+
+    /**
+     * @return The registry of packages known to be in the cache
+     */
+    public PackageRegistry getPackageRegistry() {
+        return packageRegistry;
+    }
+
+    /**
+     * Sets whether a request for a package that isn't in the package
+     * registry uploads the package before the request is sent, instead of
+     * waiting for the request to fail with 404. This saves a round trip
+     * for new packages, at the cost of an unneeded upload when the
+     * package is in the cache but this client hasn't seen it yet.
+     * 
+     * @param preUpload
+     */
+    public void setPreUpload(boolean preUpload) {
+        this.preUpload = preUpload;
+    }
+
+    /**
+     * Sets how the bodies of requests that carry answers or session
+     * snapshots are compressed. The default is Compression.None.
+     * 
+     * @param requestCompression
+     */
+    public void setRequestCompression(Compression requestCompression) {
+        this.requestCompression = requestCompression;
+    }
+
+    public Compression getRequestCompression() {
+        return requestCompression;
+    }
+
+    /**
+     * Sets the body size, in bytes, below which request bodies are sent
+     * uncompressed, because compressing them saves too little to be worth
+     * it. Bodies of unknown length are always compressed. The default is
+     * 1024.
+     * 
+     * @param compressionThreshold
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Sets whether the client asks HotDocs Cloud Services to compress
+     * responses with gzip or deflate. Compressed responses are always
+     * decompressed, whether or not they were asked for. The default is
+     * false.
+     * 
+     * @param acceptCompression
+     */
+    public void setAcceptCompression(boolean acceptCompression) {
+        this.acceptCompression = acceptCompression;
+    }
+
+    /**
+     * Sets the maximum size, in bytes, of a response body that is read
+     * into memory by sendRequest(Request), sendRequest(Request,
+     * StringBuilder) or sendRequestForBytes. Longer responses result in an
+     * IOException. Responses written to files or streamed aren't limited.
+     * The default is 16 MB.
+     * 
+     * @param maxResponseSize
+     */
+    public void setMaxResponseSize(int maxResponseSize) {
+        this.maxResponseSize = maxResponseSize;
+    }
+
+    public int getMaxResponseSize() {
+        return maxResponseSize;
+    }
+
+    /**
+     * Sets the range of buffer sizes used to copy request and response
+     * bodies. Each copy uses a buffer sized to the body when its length
+     * is known, rounded up to a power of two and kept within this range.
+     * The defaults are 4 KB and 256 KB.
+     * 
+     * @param minBufferSize
+     *            At least 1 KB, so a buffer can hold a multipart boundary
+     * @param maxBufferSize
+     *            At most 1 GB, and at least minBufferSize
+     * @throws IllegalArgumentException
+     *             If a size is out of range
+     */
+    public void setBufferSizes(int minBufferSize, int maxBufferSize) {
+        buffers = new BufferPool(minBufferSize, maxBufferSize,
+                buffers.isPooling());
+    }
+
+    /**
+     * Sets whether copy buffers are kept and reused across requests. The
+     * default is true.
+     * 
+     * @param bufferPooling
+     */
+    public void setBufferPooling(boolean bufferPooling) {
+        buffers = new BufferPool(buffers.getMinSize(), buffers.getMaxSize(),
+                bufferPooling);
+    }
+
+    /**
+     * Sets the collector that receives the metrics of each request: the
+     * time spent in each phase, the bytes sent and received, the status
+     * code, and whether the package was uploaded and the request retried.
+     * Use a HistogramMetrics for percentiles per request type and phase,
+     * and a JmxMetrics to publish them. The default is null, for none.
+     * 
+     * @param metricsCollector
+     */
+    public void setMetricsCollector(MetricsCollector metricsCollector) {
+        this.metricsCollector = metricsCollector;
+    }
+
+    public MetricsCollector getMetricsCollector() {
+        return metricsCollector;
+    }
+
+    /**
+     * Sets the policy for retrying requests that fail for reasons that
+     * may pass, such as a reset connection or a 503 response. The default
+     * is null, so failures are returned to the caller as they happen.
+     * 
+     * @param retryPolicy
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Sets the limiter that controls how fast, and how many at once,
+     * requests are sent. Each attempt, including each retry, waits for
+     * the limiter. The default is null, for no limits.
+     * 
+     * @param requestLimiter
+     */
+    public void setRequestLimiter(RequestLimiter requestLimiter) {
+        this.requestLimiter = requestLimiter;
+    }
+
+    public RequestLimiter getRequestLimiter() {
+        return requestLimiter;
+    }
+
+    /**
+     * Sets the circuit breaker that stops requests from being sent while
+     * HotDocs Cloud Services is failing. The default is null, for none.
+     * 
+     * @param circuitBreaker
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Sets the policy for hedging slow requests: sending a second attempt
+     * when the first is slow to get a response, and using whichever
+     * responds first. Hedge attempts run on threads of their own, not on
+     * the client's executor, and their metrics are passed to the metrics
+     * collector too. The default is null, for no hedging.
+     * 
+     * @param hedgePolicy
+     */
+    public void setHedgePolicy(HedgePolicy hedgePolicy) {
+        this.hedgePolicy = hedgePolicy;
+    }
+
+    public HedgePolicy getHedgePolicy() {
+        return hedgePolicy;
+    }
+
+    /**
+     * Sets the cache for responses to GetComponentInfoRequests and
+     * GetInterviewRequests, which depend only on the request. A repeated
+     * request gets its response from the cache, without being sent, until
+     * the response is older than the time to live, or than the max-age in
+     * the server's Cache-Control header if that is shorter. After that, a
+     * response with an ETag or Last-Modified date is revalidated with a
+     * conditional request, and used again if the server says it hasn't
+     * changed; one without is fetched again.
+     * 
+     * The request's answers are part of the cache key, so only requests
+     * whose answers are held in memory, as a String, byte array or byte
+     * buffer, are cached. Answers from a file, a Supplier or an
+     * AnswerSetSource would have to be read or generated once more just
+     * to look them up, so those requests are always sent.
+     * 
+     * Only sendRequest(Request) and sendRequestForBytes, and the
+     * asynchronous and bulk methods that use them, go through the cache.
+     * The default is null, for no caching.
+     * 
+     * @param responseCache
+     *            The cache, e.g. a MemoryResponseCache, or null
+     * @param timeToLive
+     *            The longest time, in milliseconds, for which a response
+     *            is used without being revalidated
+     */
+    public void setResponseCache(ResponseCache responseCache,
+            long timeToLive) {
+        if (timeToLive < 0) {
+            throw new IllegalArgumentException(
+                    "The time to live must not be negative.");
+        }
+        this.responseCache = responseCache;
+        this.cacheTimeToLive = timeToLive;
+    }
+
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
 
-        if (request.getPackageId() != null) {
-            path += "/" + request.getPackageId();
+    /**
+     * Sets the timeouts for requests of types that have none of their
+     * own. The default is Timeouts.defaults.
+     * 
+     * @param timeouts
+     */
+    public void setTimeouts(Timeouts timeouts) {
+        if (timeouts == null) {
+            throw new IllegalArgumentException("The timeouts can't be null.");
         }
+        this.timeouts = timeouts;
+    }
 
-        if (request.getTemplateName() != null) {
-            path += "/" + request.getTemplateName();
+    /**
+     * Sets the timeouts for requests of a type, e.g. a long read timeout
+     * for AssembleDocumentRequest and a short one for
+     * GetComponentInfoRequest. The timeouts apply to subclasses of the
+     * type too.
+     * 
+     * @param requestType
+     * @param timeouts
+     *            The timeouts, or null to use the client's timeouts
+     */
+    public void setTimeouts(Class<? extends Request> requestType,
+            Timeouts timeouts) {
+        if (timeouts == null) {
+            requestTimeouts.remove(requestType);
+        } else {
+            requestTimeouts.put(requestType, timeouts);
         }
+    }
 
-        // Use the URI constructor to percent-encode the URL
-        URL httpsUrl = (new URI("https", address, path, request.getQuery(),
-                null)).toURL();
+    /**
+     * @param requestType
+     * @return The timeouts for requests of the type
+     */
+    public Timeouts getTimeouts(Class<? extends Request> requestType) {
+        for (Class<?> type = requestType; type != null;
+                type = type.getSuperclass()) {
+            Timeouts typeTimeouts = requestTimeouts.get(type);
+            if (typeTimeouts != null) {
+                return typeTimeouts;
+            }
+        }
+        return timeouts;
+    }
+
+    // Gets an HttpURLConnection according to the provided Request object.
+    private HttpURLConnection getConn(Request request, RequestMetrics metrics)
+            throws URISyntaxException, IOException, HmacException {
+        URL httpsUrl = request.getUrl(address, subscriberId);
 
         Proxy httpsProxy = Proxy.NO_PROXY;
         if (proxy != null && !proxy.equals("")) {
@@ -203,68 +847,614 @@ public class Client {
                     new InetSocketAddress(proxy, proxyPort));
         }
 
-        HttpsURLConnection conn = (HttpsURLConnection) httpsUrl
-                .openConnection(httpsProxy);
+        HttpURLConnection conn = transport.openConnection(httpsUrl,
+                httpsProxy);
+        metrics.setConnection(conn);
+        applyTimeouts(conn, request, metrics);
+        long start = System.nanoTime();
         signAndDate(conn, request.getHmacParams());
+        metrics.addSince(Phase.Sign, start);
 
         String method = request.getMethod();
 
         conn.setRequestMethod(method);
         conn.setAllowUserInteraction(false);
 
-        if (areCertErrorsIgnored) {
-            Util.setConnToIgnoreHostNameErrors(conn);
+        if (acceptCompression) {
+            conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        }
+
+        CachedResponse revalidating = metrics.getRevalidating();
+        if (revalidating != null) {
+            if (revalidating.getETag() != null) {
+                conn.setRequestProperty("If-None-Match",
+                        revalidating.getETag());
+            }
+            if (revalidating.getLastModified() != null) {
+                conn.setRequestProperty("If-Modified-Since",
+                        revalidating.getLastModified());
+            }
+        }
+
+        if (areCertErrorsIgnored && conn instanceof HttpsURLConnection) {
+            Util.setConnToIgnoreHostNameErrors((HttpsURLConnection) conn);
         }
 
         if (method.equals("POST") || method.equals("PUT")) {
             conn.setDoOutput(true);
-            InputStream contentStream = request.getContentStream();
+            InputStreamGetter content = request.getContentStreamGetter();
+            if (content != null) {
+                writeContent(conn, content, request.isCompressible()
+                        ? requestCompression : Compression.None, metrics);
+                return conn;
+            }
+            conn.setFixedLengthStreamingMode(0);
+        }
+
+        connect(conn, metrics);
+        return conn;
+    }
+
+    // Writes the request body, compressing it if it is long enough.
+    private void writeContent(
+            HttpURLConnection conn,
+            InputStreamGetter content,
+            Compression compression,
+            RequestMetrics metrics)
+            throws IOException {
+        long length;
+        InputStream contentStream = null;
+        if (content instanceof ContentWriter) {
+            length = ((ContentWriter) content).getContentLength();
+        } else {
+            // Open the stream first, so that if it fails, nothing is sent.
+            contentStream = content.getStream();
+            length = content.getLength();
+        }
+
+        try {
+            if (length > -1 && length < compressionThreshold) {
+                compression = Compression.None;
+            }
+            if (compression != Compression.None) {
+                conn.setRequestProperty("Content-Encoding",
+                        compression.getContentEncoding());
+                setStreamingMode(conn, -1);
+            } else {
+                setStreamingMode(conn, length);
+            }
+
+            connect(conn, metrics);
+            long start = System.nanoTime();
+            OutputStream out = compression.compress(
+                    metrics.countSent(conn.getOutputStream()));
+            try {
+                if (contentStream != null) {
+                    copyStream(contentStream, out, length);
+                } else {
+                    ((ContentWriter) content).writeTo(out);
+                }
+            } catch (IOException | RuntimeException ex) {
+                // Don't send a partial body as if it were complete.
+                conn.disconnect();
+                throw ex;
+            }
+            out.close();
+            metrics.addSince(Phase.SendBody, start);
+        } finally {
+            // Connecting may fail before the stream is read.
             if (contentStream != null) {
-                int length = request.getContentStreamGetter().getLength();
-                if (length > -1)
-                {
-                    conn.setFixedLengthStreamingMode(length);
+                contentStream.close();
+            }
+        }
+    }
+
+    // Sets the connection's timeouts, cut to the time left before the
+    // request's total timeout.
+    private void applyTimeouts(HttpURLConnection conn, Request request,
+            RequestMetrics metrics) throws TotalTimeoutException {
+        Timeouts requestTimeouts = getTimeouts(request.getClass());
+        int connectTimeout = requestTimeouts.getConnectTimeout();
+        int readTimeout = requestTimeouts.getReadTimeout();
+        long remaining = checkRemainingMillis(request, metrics);
+        if (remaining < Integer.MAX_VALUE) {
+            connectTimeout = connectTimeout == 0 ? (int) remaining
+                    : Math.min(connectTimeout, (int) remaining);
+            readTimeout = readTimeout == 0 ? (int) remaining
+                    : Math.min(readTimeout, (int) remaining);
+        }
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
+    }
+
+    // Gets the milliseconds left before the request's total timeout, or
+    // Long.MAX_VALUE if it has none, and fails if none are left.
+    private long checkRemainingMillis(Request request,
+            RequestMetrics metrics) throws TotalTimeoutException {
+        long remaining = getRemainingMillis(request, metrics);
+        if (remaining <= 0) {
+            throw newTotalTimeout(request);
+        }
+        return remaining;
+    }
+
+    private TotalTimeoutException newTotalTimeout(Request request) {
+        return new TotalTimeoutException("The request took longer than "
+                + getTimeouts(request.getClass()).getTotalTimeout() + " ms.");
+    }
+
+    // Gets the milliseconds left before the request's total timeout, or
+    // Long.MAX_VALUE if it has none.
+    private long getRemainingMillis(Request request, RequestMetrics metrics) {
+        long total = getTimeouts(request.getClass()).getTotalTimeout();
+        return total == 0 ? Long.MAX_VALUE
+                : total - metrics.getElapsedMillis();
+    }
+
+    // Opens the connection, so the time it takes is kept apart from the
+    // time spent sending the body and waiting for the response.
+    private static void connect(HttpURLConnection conn,
+            RequestMetrics metrics) throws IOException {
+        long start = System.nanoTime();
+        conn.connect();
+        metrics.addSince(Phase.Connect, start);
+    }
+
+    // Waits for the response headers and returns the status code.
+    private static int awaitResponse(HttpURLConnection conn,
+            RequestMetrics metrics) throws IOException {
+        long start = System.nanoTime();
+        int status = conn.getResponseCode();
+        metrics.addSince(Phase.Wait, start);
+        return status;
+    }
+
+    // Finishes a request's metrics and passes them to the collector.
+    private void complete(RequestMetrics metrics) {
+        metrics.finish();
+        MetricsCollector collector = metricsCollector;
+        if (collector != null) {
+            try {
+                collector.requestCompleted(metrics);
+            } catch (RuntimeException ex) {
+                // A faulty collector mustn't fail the request.
+            }
+        }
+    }
+
+    // Streams a body of known length with a Content-Length header, and
+    // one of unknown length with chunked transfer encoding, so that
+    // HttpURLConnection doesn't buffer the whole body to measure it.
+    private static void setStreamingMode(HttpURLConnection conn, long length) {
+        if (length > -1) {
+            conn.setFixedLengthStreamingMode(length);
+        } else {
+            conn.setChunkedStreamingMode(0);
+        }
+    }
+
+    // Gets the response to a cacheable request from the cache if it is
+    // fresh. Otherwise sends the request, conditionally if the cached
+    // response can be revalidated, and caches the new or revalidated
+    // response. HTTP errors result in an IOException being thrown.
+    private CachedResponse sendCached(ResponseCache cache, Request request,
+            RequestMetrics metrics)
+            throws URISyntaxException, IOException, HmacException {
+        String key = getCacheKey(request);
+        CachedResponse cached = cache.get(key);
+        if (cached != null && cached.isFresh(System.currentTimeMillis())) {
+            metrics.setCacheHit();
+            return cached;
+        }
+        if (cached != null && cached.hasValidators()) {
+            metrics.setRevalidating(cached);
+        }
+
+        HttpURLConnection conn = sendRequestImpl(request, metrics);
+        int status = conn.getResponseCode();
+        if (status == 304 && metrics.getRevalidating() != null) {
+            // Not modified, so the cached response is good for longer.
+            long expires = getCacheExpires(conn);
+            transport.release(conn);
+            metrics.setCacheHit();
+            if (expires < 0) {
+                cache.remove(key);
+                return cached;
+            }
+            CachedResponse revalidated = cached.withExpires(expires);
+            cache.put(key, revalidated);
+            return revalidated;
+        }
+        if (status / 100 != 2) {
+            transport.release(conn);
+            throw new IOException("HTTP error " + status);
+        }
+
+        long start = System.nanoTime();
+        byte[] body = Util.readBytes(Util.getResponseStream(conn, metrics),
+                getExpectedLength(conn), maxResponseSize);
+        metrics.addSince(Phase.ReadResponse, start);
+        CachedResponse response = new CachedResponse(body,
+                conn.getContentType(), conn.getHeaderField("ETag"),
+                conn.getHeaderField("Last-Modified"), getCacheExpires(conn));
+        if (response.getExpires() < 0) {
+            cache.remove(key);
+        } else {
+            cache.put(key, response);
+        }
+        return response;
+    }
+
+    // Whether a request's response may come from the cache. The body is
+    // part of the key, so it is only cached if the body is in memory and
+    // can be digested without being read or generated again.
+    private static boolean isCacheable(Request request) {
+        if (!request.isCacheable()) {
+            return false;
+        }
+        InputStreamGetter content = request.getContentStreamGetter();
+        return content == null
+                || content instanceof StringInputStreamGetter
+                || content instanceof ByteArrayInputStreamGetter
+                || content instanceof ByteBufferInputStreamGetter;
+    }
+
+    // Gets the key under which a request's response is cached: its method
+    // and URL, which hold the subscriber, package, template and options,
+    // and the digest of its body, which holds the answers.
+    private String getCacheKey(Request request)
+            throws URISyntaxException, IOException {
+        StringBuilder key = new StringBuilder();
+        key.append(request.getMethod()).append(' ')
+                .append(request.getUrl(address, subscriberId));
+
+        InputStreamGetter content = request.getContentStreamGetter();
+        if (content != null) {
+            final MessageDigest md = Util.newSha256();
+            OutputStream digestStream = new OutputStream() {
+                @Override
+                public void write(int b) {
+                    md.update((byte) b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    md.update(b, off, len);
                 }
-                Util.copyStream(contentStream, conn.getOutputStream());
+            };
+            if (content instanceof ContentWriter) {
+                ((ContentWriter) content).writeTo(digestStream);
             } else {
-                conn.setFixedLengthStreamingMode(0);
+                Util.copyStream(content.getStream(), digestStream);
             }
+            key.append(' ').append(Util.toHex(md.digest()));
         }
+        return key.toString();
+    }
 
-        return conn;
+    // Gets the time until which a response is fresh: the cache's time to
+    // live from now, or less if the server's Cache-Control header says
+    // so. Returns -1 if the server says the response mustn't be stored.
+    private long getCacheExpires(HttpURLConnection conn) {
+        long timeToLive = cacheTimeToLive;
+        String cacheControl = conn.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.ROOT);
+                if (directive.equals("no-store")) {
+                    return -1;
+                } else if (directive.equals("no-cache")) {
+                    timeToLive = 0;
+                } else if (directive.startsWith("max-age=")) {
+                    try {
+                        long maxAge = Long.parseLong(
+                                directive.substring(8).trim());
+                        if (maxAge < Long.MAX_VALUE / 1000) {
+                            timeToLive = Math.min(timeToLive,
+                                    Math.max(maxAge, 0) * 1000);
+                        }
+                    } catch (NumberFormatException ex) {
+                        // Ignore a malformed max-age.
+                    }
+                }
+            }
+        }
+        return System.currentTimeMillis() + timeToLive;
+    }
+
+    // Common implementation of sendRequest. Sends the request, and if the
+    // hedge policy covers it and it is slow to get a response, sends a
+    // hedge attempt too and uses whichever responds first.
+    private HttpURLConnection sendRequestImpl(Request request,
+            RequestMetrics metrics)
+            throws URISyntaxException, IOException, HmacException {
+        HedgePolicy policy = hedgePolicy;
+        Class<?> hedgedType = policy == null
+                ? null : policy.getHedgedType(request);
+        if (hedgedType == null) {
+            return sendWithRetries(request, metrics);
+        }
+
+        long start = System.nanoTime();
+        Hedge hedge = new Hedge(policy, request, metrics);
+        ScheduledFuture<?> timer = getScheduler().schedule(hedge,
+                policy.getDelay(hedgedType), TimeUnit.MILLISECONDS);
+        HttpURLConnection conn;
+        try {
+            conn = sendWithRetries(request, metrics);
+        } catch (Exception ex) {
+            // If the hedge was sent, it may still get a response.
+            long failed = System.nanoTime();
+            timer.cancel(false);
+            HttpURLConnection hedgeConn = hedge.awaitAfterFailure();
+            if (hedgeConn == null) {
+                if (hedge.isSent()) {
+                    metrics.setHedged(false);
+                }
+                throw ex;
+            }
+            // The request had no response when it was cancelled or
+            // failed, so its time until then is a lower bound on its
+            // response time. Leaving it out would let the delay fall to
+            // the response times of the requests that weren't hedged.
+            policy.record(hedgedType, failed - start);
+            metrics.setHedged(true);
+            metrics.setStatusCode(hedgeConn.getResponseCode());
+            return hedgeConn;
+        }
+        timer.cancel(false);
+        policy.record(hedgedType, System.nanoTime() - start);
+
+        if (hedge.primaryResponded()) {
+            if (hedge.isSent()) {
+                metrics.setHedged(false);
+            }
+            return conn;
+        }
+        // The hedge responded first.
+        conn.disconnect();
+        HttpURLConnection hedgeConn = hedge.getConn();
+        metrics.setHedged(true);
+        metrics.setStatusCode(hedgeConn.getResponseCode());
+        return hedgeConn;
     }
 
-    // Common implementation of sendRequest
-    private HttpURLConnection sendRequestImpl(Request request)
+    // Sends the request, and sends it again for as long as the retry
+    // policy allows.
+    private HttpURLConnection sendWithRetries(Request request,
+            RequestMetrics metrics)
             throws URISyntaxException, IOException, HmacException {
-        HttpURLConnection conn = getConn(request);
+        RetryPolicy policy = retryPolicy;
+        for (int attempt = 1; ; attempt++) {
+            HttpURLConnection conn;
+            try {
+                conn = sendGuarded(request, metrics);
+            } catch (IOException ex) {
+                if (policy == null || metrics.isCancelled()) {
+                    throw ex;
+                }
+                long delay = policy.getDelay(request, ex, attempt);
+                if (delay < 0
+                        || delay >= getRemainingMillis(request, metrics)) {
+                    throw ex;
+                }
+                backOff(delay, metrics);
+                continue;
+            }
 
-        if (conn.getResponseCode() == 404
-                && request.getPackageStreamGetter() != null) {
+            if (policy == null || Util.httpOk(conn)) {
+                return conn;
+            }
+            long delay = policy.getDelay(request, conn, attempt);
+            if (delay < 0 || delay >= getRemainingMillis(request, metrics)) {
+                return conn;
+            }
+            transport.release(conn);
+            backOff(delay, metrics);
+        }
+    }
+
+    // Waits before a retry. A hedge loser is woken when it is cancelled,
+    // and fails when it tries again.
+    private static void backOff(long delay, RequestMetrics metrics)
+            throws InterruptedIOException {
+        metrics.addRetry();
+        try {
+            metrics.sleep(delay);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted while waiting to retry.");
+        }
+    }
+
+    // Sends the request once if the circuit breaker allows it, and tells
+    // the breaker how it went.
+    private HttpURLConnection sendGuarded(Request request,
+            RequestMetrics metrics)
+            throws URISyntaxException, IOException, HmacException {
+        CircuitBreaker breaker = circuitBreaker;
+        if (breaker == null) {
+            return sendLimited(request, metrics);
+        }
+
+        // A cancelled hedge attempt, or one out of time, mustn't take the
+        // breaker's probe.
+        metrics.checkCancelled();
+        checkRemainingMillis(request, metrics);
+        boolean probe = breaker.acquire(address);
+        boolean recorded = false;
+        try {
+            HttpURLConnection conn = sendLimited(request, metrics);
+            breaker.record(address, probe,
+                    CircuitBreaker.isFailure(conn.getResponseCode()));
+            recorded = true;
+            return conn;
+        } catch (IOException ex) {
+            // A hedge loser fails because it was disconnected, which
+            // says nothing about the service.
+            if (CircuitBreaker.isFailure(ex) && !metrics.isCancelled()) {
+                breaker.record(address, probe, true);
+                recorded = true;
+            }
+            throw ex;
+        } finally {
+            if (!recorded) {
+                breaker.cancel(address, probe);
+            }
+        }
+    }
+
+    // Sends the request once within the limits of the request limiter,
+    // and tells the limiter how it went.
+    private HttpURLConnection sendLimited(Request request,
+            RequestMetrics metrics)
+            throws URISyntaxException, IOException, HmacException {
+        RequestLimiter limiter = requestLimiter;
+        if (limiter == null) {
+            return sendAttempt(request, metrics);
+        }
+
+        long start = System.nanoTime();
+        boolean acquired = limiter.acquire(
+                checkRemainingMillis(request, metrics), metrics);
+        metrics.addSince(Phase.Throttle, start);
+        if (!acquired) {
+            metrics.checkCancelled();
+            throw newTotalTimeout(request);
+        }
+        if (metrics.isCancelled()) {
+            limiter.cancel();
+            metrics.checkCancelled();
+        }
+        // The limiter goes by the time spent waiting for the response,
+        // which grows as the service gets busy. Connecting is left out,
+        // since a new connection's handshake is slow whatever the load.
+        long waitBefore = Math.max(metrics.getNanos(Phase.Wait), 0);
+        boolean overloaded = false;
+        boolean timedOut = false;
+        try {
+            HttpURLConnection conn = sendAttempt(request, metrics);
+            int status = conn.getResponseCode();
+            overloaded = status == 429 || status == 503;
+            return conn;
+        } catch (TotalTimeoutException ex) {
+            // The request's own deadline ran out, which says nothing
+            // about the service's load.
+            timedOut = true;
+            throw ex;
+        } catch (SocketTimeoutException ex) {
+            overloaded = true;
+            throw ex;
+        } finally {
+            if (timedOut) {
+                limiter.cancel();
+            } else {
+                limiter.release(metrics.getRequestType(),
+                        Math.max(metrics.getNanos(Phase.Wait), 0)
+                                - waitBefore,
+                        overloaded);
+            }
+        }
+    }
+
+    // Sends the request once, uploading the package and sending it again
+    // if the package isn't in the HDCS cache.
+    private HttpURLConnection sendAttempt(Request request,
+            RequestMetrics metrics)
+            throws URISyntaxException, IOException, HmacException {
+        boolean hasPackage = request.getPackageStreamGetter() != null;
+
+        metrics.checkCancelled();
+        if (hasPackage && preUpload
+                && !packageRegistry.contains(request.getPackageId())) {
+            // We haven't seen this package in the HDCS cache, so upload it
+            // before sending the request.
+            Upload upload = uploadPackage(request, metrics);
+            if (upload.conn != null) {
+                // Return the response from the upload.
+                metrics.setStatusCode(upload.status);
+                return upload.conn;
+            }
+        }
+
+        HttpURLConnection conn = getConn(request, metrics);
+
+        if (awaitResponse(conn, metrics) == 404 && hasPackage) {
             // The package isn't in the HDCS cache, so upload it
-            HttpURLConnection uploadConn = getConn(new UploadPackageRequest(
-                    request.getPackageId(),
-                    request.getPackageStreamGetter()));
+            packageRegistry.remove(request.getPackageId());
+            Upload upload = uploadPackage(request, metrics);
 
-            if (Util.httpOk(uploadConn)) {
-                uploadConn.disconnect();
-                conn.disconnect();
+            if (upload.status / 100 == 2) {
+                transport.release(conn);
                 // The upload succeeded, so retry the original request.
-                conn = getConn(request);
-            } else if (uploadConn.getResponseCode() != 409) {
-                conn.disconnect();
-                conn = uploadConn; // Return the response from the upload.
-            } else {
-                uploadConn.disconnect();
+                metrics.addRetry();
+                conn = getConn(request, metrics);
+                awaitResponse(conn, metrics);
+            } else if (upload.conn != null) {
+                transport.release(conn);
+                conn = upload.conn; // Return the response from the upload.
             }
 
             // If the upload status is 409, then the package was already in the
             // cache, so we'll return the response from the original request.
         }
 
+        if (hasPackage && Util.httpOk(conn)) {
+            packageRegistry.add(request.getPackageId());
+        }
+
+        metrics.setStatusCode(conn.getResponseCode());
         return conn;
     }
 
+    // Uploads the request's package and returns the upload status. If
+    // another thread is already uploading the same package, this waits
+    // for that upload and returns its status instead. Either way, the
+    // time is added to the request's PackageUpload phase.
+    private Upload uploadPackage(Request request, RequestMetrics metrics)
+            throws URISyntaxException, IOException, HmacException {
+        long start = System.nanoTime();
+        metrics.setPackageUploaded();
+        try {
+            return uploadPackage(request);
+        } finally {
+            metrics.addSince(Phase.PackageUpload, start);
+        }
+    }
+
+    private Upload uploadPackage(Request request)
+            throws URISyntaxException, IOException, HmacException {
+        String packageId = String.valueOf(request.getPackageId());
+        CompletableFuture<Integer> upload = new CompletableFuture<Integer>();
+        CompletableFuture<Integer> inFlight =
+                uploadsInFlight.putIfAbsent(packageId, upload);
+        if (inFlight != null) {
+            return new Upload(inFlight.join(), null);
+        }
+
+        int status = -1;
+        try {
+            UploadPackageRequest uploadRequest = new UploadPackageRequest(
+                    request.getPackageId(), request.getPackageStreamGetter());
+            // The upload's own phases are timed apart from the request's.
+            HttpURLConnection uploadConn = getConn(uploadRequest,
+                    new RequestMetrics(uploadRequest));
+            status = uploadConn.getResponseCode();
+
+            // 409 means the package was already in the cache.
+            if (status / 100 == 2 || status == 409) {
+                packageRegistry.add(request.getPackageId());
+                transport.release(uploadConn);
+                return new Upload(status, null);
+            }
+            return new Upload(status, uploadConn);
+        } finally {
+            uploadsInFlight.remove(packageId, upload);
+            upload.complete(status);
+        }
+    }
+
     // Adds HMAC and date headers to a connection
     private void signAndDate(URLConnection conn, Collection<Object> params)
             throws HmacException {
@@ -274,22 +1464,246 @@ public class Client {
         p.add(timestamp);
         p.add(subscriberId);
         p.addAll(params);
-        String signature = Hmac.calculateHmac(signingKey, p);
+        String signature = signer.sign(p);
         conn.setRequestProperty("Authorization", signature);
 
-        SimpleDateFormat dateFormat = new SimpleDateFormat(
-                "EEE, d MMM yyyy HH:mm:ss z");
-        dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
-        conn.setRequestProperty("x-hd-date", dateFormat.format(timestamp));
+        conn.setRequestProperty("x-hd-date",
+                httpDateFormat.format(timestamp.toInstant()));
     }
 
-    // 
-    private void handleMultipart(HttpURLConnection conn, String dir)
-            throws IOException {
+    // Reads a response body into a string, in its declared charset.
+    private String readResponseString(HttpURLConnection conn,
+            InputStream stream) throws IOException {
+        return Util.readString(stream,
+                Util.getCharset(conn.getContentType()),
+                getExpectedLength(conn), maxResponseSize);
+    }
+
+    // Gets the length of the response body, if the server declared it. A
+    // compressed body's Content-Length is its compressed length, so it
+    // isn't used to size the buffer.
+    private static long getExpectedLength(HttpURLConnection conn) {
+        return conn.getContentEncoding() == null
+                ? conn.getContentLengthLong() : -1;
+    }
+
+    // Common implementation of sendRequest(Request, String)
+    AssemblyResult sendRequestToFile(Request request, String filePath)
+            throws URISyntaxException, IOException, HmacException {
+        RequestMetrics metrics = new RequestMetrics(request);
+        try {
+            HttpURLConnection conn = sendRequestImpl(request, metrics);
+            List<String> files = new ArrayList<String>();
+            if (Util.httpOk(conn)) {
+                long start = System.nanoTime();
+                if (conn.getContentType().startsWith("multipart")) {
+                    files = handleMultipart(conn, filePath, metrics);
+                }
+                else {
+                    FileOutputStream outStream =
+                            new FileOutputStream(filePath);
+                    copyStream(Util.getResponseStream(conn, metrics),
+                            outStream, getExpectedLength(conn));
+                    files.add(filePath);
+                }
+                metrics.addSince(Phase.ReadResponse, start);
+            }
+
+            return new AssemblyResult(conn.getResponseCode(), filePath,
+                    files);
+        } catch (Exception ex) {
+            metrics.setException(ex);
+            throw ex;
+        } finally {
+            complete(metrics);
+        }
+    }
+
+    // Runs a task on the executor, completing the future with its result
+    // or with the exception it throws.
+    private <T> CompletableFuture<T> supplyAsync(final Callable<T> task) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.complete(task.call());
+                } catch (Throwable ex) {
+                    future.completeExceptionally(ex);
+                }
+            }
+        });
+        return future;
+    }
+
+    // Writes multipart content to files in a directory. Each call gets its
+    // own parser, so concurrent requests don't share parser state.
+    private List<String> handleMultipart(HttpURLConnection conn, String dir,
+            RequestMetrics metrics) throws IOException {
         new File(dir).mkdir();
-        multipartParser.writePartsToStreams(
-                conn.getInputStream(),
-                new FileOutputStreamGetter(dir),
-                Util.getNamedValue(conn.getContentType(), ";", "boundary"));
+        FileOutputStreamGetter streamGetter = new FileOutputStreamGetter(dir);
+        byte[] buffer = buffers.acquire(getExpectedLength(conn));
+        try {
+            new MultipartMimeParser(buffer).writePartsToStreams(
+                    Util.getResponseStream(conn, metrics),
+                    streamGetter,
+                    Util.getNamedValue(conn.getContentType(), ";", "boundary"));
+        } finally {
+            buffers.release(buffer);
+        }
+        return streamGetter.getFiles();
+    }
+
+    // Copies one stream to another, and closes both, with a buffer from
+    // the pool sized to the expected length.
+    private void copyStream(InputStream from, OutputStream to,
+            long expectedLength) throws IOException {
+        byte[] buffer = buffers.acquire(expectedLength);
+        try {
+            Util.copyStream(from, to, buffer);
+        } finally {
+            buffers.release(buffer);
+        }
+    }
+
+    /**
+     * A race between a request and its hedge attempt. The request runs on
+     * the caller's thread; once the hedge delay is up, the hedge runs on
+     * the hedge executor. The first to get a response wins, and the other
+     * is cancelled. The hedge's metrics go to the collector when it
+     * finishes.
+     */
+    private class Hedge implements Runnable {
+        private final HedgePolicy policy;
+        private final Request request;
+        private final RequestMetrics primaryMetrics;
+        private final RequestMetrics hedgeMetrics;
+        private boolean started;
+        private boolean sent; // Not given up before sending
+        private boolean finished;
+        private boolean primaryDone; // The request won or gave up
+        private boolean abandoned; // The request failed before the delay
+        private HttpURLConnection conn; // The hedge's, if it won
+
+        private Hedge(HedgePolicy policy, Request request,
+                RequestMetrics primaryMetrics) {
+            this.policy = policy;
+            this.request = request;
+            this.primaryMetrics = primaryMetrics;
+            this.hedgeMetrics = new RequestMetrics(request, true);
+            hedgeMetrics.setRevalidating(primaryMetrics.getRevalidating());
+        }
+
+        // Starts the hedge, on the scheduler thread, once the delay is up.
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (primaryDone || abandoned || !policy.startHedge()) {
+                    return;
+                }
+                started = true;
+            }
+            try {
+                getHedgeExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        send();
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                policy.endHedge();
+                finish(null);
+            }
+        }
+
+        private void send() {
+            synchronized (this) {
+                // The request may have won while this was queued.
+                if (primaryDone || hedgeMetrics.isCancelled()) {
+                    policy.endHedge();
+                    finish(null);
+                    return;
+                }
+                sent = true;
+            }
+            HttpURLConnection hedgeConn = null;
+            try {
+                hedgeConn = sendWithRetries(request, hedgeMetrics);
+            } catch (Exception ex) {
+                // The request may still get a response.
+                hedgeMetrics.setException(ex);
+            } finally {
+                policy.endHedge();
+            }
+            finish(hedgeConn);
+            complete(hedgeMetrics);
+        }
+
+        private synchronized void finish(HttpURLConnection hedgeConn) {
+            finished = true;
+            if (hedgeConn != null) {
+                if (primaryDone) {
+                    hedgeConn.disconnect();
+                } else {
+                    conn = hedgeConn;
+                    primaryMetrics.cancel();
+                }
+            }
+            notifyAll();
+        }
+
+        synchronized boolean isSent() {
+            return sent;
+        }
+
+        synchronized HttpURLConnection getConn() {
+            return conn;
+        }
+
+        // Called when the request gets a response. Returns whether it won,
+        // and if so, cancels the hedge.
+        synchronized boolean primaryResponded() {
+            if (conn != null) {
+                return false;
+            }
+            primaryDone = true;
+            if (started && !finished) {
+                hedgeMetrics.cancel();
+            }
+            return true;
+        }
+
+        // Called when the request fails. Waits for the hedge, if it was
+        // sent, and returns its connection if it got a response.
+        synchronized HttpURLConnection awaitAfterFailure()
+                throws InterruptedIOException {
+            abandoned = true;
+            try {
+                while (started && !finished) {
+                    wait();
+                }
+            } catch (InterruptedException ex) {
+                primaryDone = true;
+                hedgeMetrics.cancel();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                        "Interrupted while waiting for a hedged request.");
+            }
+            return conn;
+        }
+    }
+
+    /**
+     * The outcome of a package upload. The connection is only set when
+     * this thread's upload failed, so its response can be returned.
+     */
+    private static class Upload {
+        private final int status;
+        private final HttpURLConnection conn;
+
+        private Upload(int status, HttpURLConnection conn) {
+            this.status = status;
+            this.conn = conn;
+        }
     }
 }
@@ -0,0 +1,94 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression options for request bodies
+ */
+public enum Compression {
+    None(null), Gzip("gzip"), Deflate("deflate");
+
+    private static final int bufferSize = 8192;
+
+    private final String contentEncoding;
+
+    private Compression(String contentEncoding) {
+        this.contentEncoding = contentEncoding;
+    }
+
+    /**
+     * @return The value of the Content-Encoding header, or null for None
+     */
+    String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    // Wraps a stream so that what is written to it is compressed.
+    OutputStream compress(OutputStream out) throws IOException {
+        switch (this) {
+        case Gzip:
+            return new GZIPOutputStream(out, bufferSize);
+        case Deflate:
+            return new DeflaterOutputStream(out);
+        default:
+            return out;
+        }
+    }
+
+    /**
+     * Wraps a response stream so that it is decompressed according to
+     * its Content-Encoding. Unknown encodings are returned as they are.
+     */
+    static InputStream decompress(String contentEncoding, InputStream in)
+            throws IOException {
+        if (in == null || contentEncoding == null) {
+            return in;
+        }
+        String encoding = contentEncoding.trim();
+        if (encoding.equalsIgnoreCase("gzip")
+                || encoding.equalsIgnoreCase("x-gzip")) {
+            return new GZIPInputStream(in, bufferSize);
+        }
+        if (encoding.equalsIgnoreCase("deflate")) {
+            // "deflate" should be zlib-wrapped, but some servers send raw
+            // deflate data, so check for a zlib header.
+            PushbackInputStream pushback = new PushbackInputStream(in, 2);
+            int cmf = pushback.read();
+            int flg = pushback.read();
+            if (flg != -1) {
+                pushback.unread(flg);
+            }
+            if (cmf != -1) {
+                pushback.unread(cmf);
+            }
+            boolean zlib = cmf != -1 && flg != -1 && (cmf & 0x0f) == 8
+                    && ((cmf << 8) | flg) % 31 == 0;
+            // An InflaterInputStream only ends an Inflater it made
+            // itself, so this one is ended when the stream is closed.
+            final Inflater inflater = new Inflater(!zlib);
+            return new InflaterInputStream(pushback, inflater, bufferSize) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+        return in;
+    }
+}
@@ -0,0 +1,34 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An InputStreamGetter that can also write its content straight to an
+ * output stream. The client uses writeTo to send the request body, so
+ * content that is generated as it is sent never has to be buffered or
+ * read back through an InputStream, and files can be copied without an
+ * intermediate stream.
+ */
+public interface ContentWriter extends InputStreamGetter {
+    /**
+     * @return The length of the content, or -1 if the length is unknown.
+     *         Unlike getLength, this can exceed 2 GB.
+     */
+    long getContentLength();
+
+    /**
+     * Writes the content. This may be called more than once, e.g. when a
+     * request is resent after its package is uploaded, and must write the
+     * same content each time.
+     *
+     * @param out
+     *            The stream to write to, which the caller closes
+     * @throws IOException
+     */
+    void writeTo(OutputStream out) throws IOException;
+}
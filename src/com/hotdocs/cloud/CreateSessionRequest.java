@@ -81,6 +81,18 @@ public class CreateSessionRequest extends Request {
         this.contentStreamGetter = new StringInputStreamGetter(answers);
     }
 
+    /**
+     * Sets the source of the answer XML, which is read each time the
+     * request is sent. Use this to send answers that are already encoded,
+     * stored in a file or generated as they are read.
+     *
+     * @param answers
+     *            Gets the UTF-8 answer XML
+     */
+    public void setAnswers(InputStreamGetter answers) {
+        this.contentStreamGetter = answers;
+    }
+
     public void setInterviewFormat(InterviewFormat interviewFormat) {
         this.interviewFormat = interviewFormat;
     }
@@ -144,6 +156,11 @@ public class CreateSessionRequest extends Request {
         return "POST";
     }
 
+    @Override
+    boolean isCompressible() {
+        return true;
+    }
+
     @Override
     Collection<Object> getHmacParams() {
         return Arrays.asList(packageId, billingRef,
@@ -0,0 +1,251 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A ResponseCache kept in files in a directory, so that responses
+ * survive a restart and more of them can be kept than fit in memory.
+ * It is usually the second tier of a MemoryResponseCache.
+ *
+ * Each response is a file named for the digest of its key. The cache is
+ * bounded by the total size of its files; when it is full, the files
+ * least recently read or written are deleted first. A file that can't be
+ * read, e.g. because it is damaged, is treated as missing and deleted.
+ * Temporary files left by a put that never finished, e.g. because the
+ * process was killed, are deleted when the files are first counted.
+ */
+public class DiskResponseCache implements ResponseCache {
+
+    private static final int version = 1;
+    private static final String suffix = ".response";
+    private static final String tempPrefix = "put";
+    private static final String tempSuffix = ".tmp";
+    // A temporary file this old isn't being written by a put.
+    private static final long staleTempMillis = 60 * 1000;
+
+    private final File directory;
+    private final long maxBytes;
+    private long size = -1; // Counted when first needed
+
+    /**
+     * DiskResponseCache constructor
+     *
+     * @param directory
+     *            The directory for the cache files, which is created if
+     *            it doesn't exist
+     * @param maxBytes
+     *            The most bytes of files to keep
+     */
+    public DiskResponseCache(String directory, long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException(
+                    "The size must not be negative.");
+        }
+        this.directory = new File(directory);
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public CachedResponse get(String key) {
+        File file = getFile(key);
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != version || !in.readUTF().equals(key)) {
+                return null;
+            }
+            String contentType = readString(in);
+            String eTag = readString(in);
+            String lastModified = readString(in);
+            long expires = in.readLong();
+            // Check the length before allocating, since a damaged file
+            // could ask for any amount.
+            int length = in.readInt();
+            if (length < 0 || length > file.length()) {
+                throw new IOException("Invalid body length: " + length);
+            }
+            byte[] body = new byte[length];
+            in.readFully(body);
+
+            // Eviction goes by the modification time, so mark it as used.
+            file.setLastModified(System.currentTimeMillis());
+            return new CachedResponse(body, contentType, eTag, lastModified,
+                    expires);
+        } catch (FileNotFoundException ex) {
+            return null;
+        } catch (IOException | RuntimeException ex) {
+            // The file is damaged, so it would only miss again.
+            remove(key);
+            return null;
+        }
+    }
+
+    @Override
+    public void put(String key, CachedResponse response) {
+        if (response.getSize() > maxBytes) {
+            return;
+        }
+        File temp = null;
+        try {
+            directory.mkdirs();
+            // Write to a temporary file first, so that a reader never
+            // sees half a response.
+            temp = File.createTempFile(tempPrefix, tempSuffix, directory);
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(version);
+                out.writeUTF(key);
+                writeString(out, response.getContentType());
+                writeString(out, response.getETag());
+                writeString(out, response.getLastModified());
+                out.writeLong(response.getExpires());
+                out.writeInt(response.getBody().length);
+                out.write(response.getBody());
+            }
+
+            synchronized (this) {
+                File file = getFile(key);
+                long previous = file.length();
+                Files.move(temp.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+                temp = null;
+                if (size >= 0) {
+                    size += file.length() - previous;
+                }
+                evict();
+            }
+        } catch (IOException ex) {
+            // The response just isn't cached.
+        } finally {
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void remove(String key) {
+        File file = getFile(key);
+        long length = file.length();
+        if (file.delete() && size >= 0) {
+            size -= length;
+        }
+    }
+
+    /**
+     * Deletes every response file.
+     */
+    public synchronized void clear() {
+        for (File file : listFiles()) {
+            file.delete();
+        }
+        size = 0;
+    }
+
+    /**
+     * @return The number of bytes of response files
+     */
+    public synchronized long getSize() {
+        if (size < 0) {
+            deleteStaleTempFiles();
+            size = 0;
+            for (File file : listFiles()) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    // Deletes the temporary files of puts that never finished, which
+    // would otherwise take up space that maxBytes doesn't count.
+    private void deleteStaleTempFiles() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long staleBefore = System.currentTimeMillis() - staleTempMillis;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(tempPrefix) && name.endsWith(tempSuffix)
+                    && file.lastModified() < staleBefore) {
+                file.delete();
+            }
+        }
+    }
+
+    // Deletes the least recently used files until the total fits.
+    private void evict() {
+        if (getSize() <= maxBytes) {
+            return;
+        }
+        File[] files = listFiles();
+        final long[] lastModified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            // Read each file's time once, since a get may touch it while
+            // the files are sorted.
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(lastModified[a], lastModified[b]);
+            }
+        });
+        for (int i = 0; i < order.length && size > maxBytes; i++) {
+            File file = files[order[i]];
+            long length = file.length();
+            if (file.delete()) {
+                size -= length;
+            }
+        }
+    }
+
+    private File[] listFiles() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        int n = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(suffix)) {
+                files[n++] = file;
+            }
+        }
+        return Arrays.copyOf(files, n);
+    }
+
+    private File getFile(String key) {
+        return new File(directory, Util.toHex(Util.newSha256().digest(
+                key.getBytes(StandardCharsets.UTF_8))) + suffix);
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+            throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -7,12 +7,19 @@ package com.hotdocs.cloud;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Paths;
 
 /**
  * An InputStreamGetter that gets a stream from a file.
+ *
+ * When the file is sent as a request body, such as a package upload, it
+ * is read from its channel in blocks of up to 64 KB and written straight
+ * to the connection, without opening a stream.
  */
-public class FileInputStreamGetter implements InputStreamGetter {
+public class FileInputStreamGetter implements ContentWriter {
 
     private String filePath;
     
@@ -20,10 +27,19 @@ public class FileInputStreamGetter implements InputStreamGetter {
         this.filePath = filePath;
     }
 
+    /**
+     * @return The length of the file, or -1 if it is 2 GB or more
+     */
     @Override
     public int getLength() {
+        long length = getContentLength();
+        return length <= Integer.MAX_VALUE ? (int) length : -1;
+    }
+
+    @Override
+    public long getContentLength() {
         File file = new File(filePath);
-        return (int)file.length();
+        return file.length();
     }
 
     @Override
@@ -31,4 +47,13 @@ public class FileInputStreamGetter implements InputStreamGetter {
         return new FileInputStream(filePath);
     }
 
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        Util.writeFile(Paths.get(filePath), out);
+    }
+
+    String getFilePath() {
+        return filePath;
+    }
+
 }
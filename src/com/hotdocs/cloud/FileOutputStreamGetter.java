@@ -4,6 +4,8 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -12,6 +14,7 @@ import java.util.Map;
 class FileOutputStreamGetter implements OutputStreamGetter {
     
     private String dir;
+    private List<String> files = new ArrayList<String>();
     
     FileOutputStreamGetter(String dir) {
         this.dir = dir;
@@ -29,10 +32,19 @@ class FileOutputStreamGetter implements OutputStreamGetter {
         if (disp != null) {
             fileName = Util.getNamedValue(disp, ";", "filename");
             if (fileName != null) {
-                return new FileOutputStream(new File(dir, fileName));
+                File file = new File(dir, fileName);
+                files.add(file.getPath());
+                return new FileOutputStream(file);
             }
         }
         return null;
     }
 
+    /**
+     * @return The paths of the files that have been opened
+     */
+    List<String> getFiles() {
+        return files;
+    }
+
 }
@@ -45,6 +45,12 @@ public class GetComponentInfoRequest extends Request {
         return "GET";
     }
 
+    // Component info depends only on the package and template.
+    @Override
+    boolean isCacheable() {
+        return true;
+    }
+
     @Override
     Collection<Object> getHmacParams() {
         return Arrays.asList(
@@ -41,6 +41,22 @@ public class GetInterviewRequest extends Request {
         this.tempImageUrl = tempImageUrl;
     }
     
+    public void setAnswers(String answers) {
+        this.contentStreamGetter = new StringInputStreamGetter(answers);
+    }
+
+    /**
+     * Sets the source of the answer XML, which is read each time the
+     * request is sent. Use this to send answers that are already encoded,
+     * stored in a file or generated as they are read.
+     *
+     * @param answers
+     *            Gets the UTF-8 answer XML
+     */
+    public void setAnswers(InputStreamGetter answers) {
+        this.contentStreamGetter = answers;
+    }
+
     public void setSetting(String name, String value) {
         settings.put(name, value);
     }
@@ -82,6 +98,24 @@ public class GetInterviewRequest extends Request {
         return "POST";
     }
 
+    @Override
+    boolean isCompressible() {
+        return true;
+    }
+
+    // Getting an interview changes nothing on the server.
+    @Override
+    boolean isIdempotent() {
+        return true;
+    }
+
+    // An interview depends only on the package, template, answers and
+    // options.
+    @Override
+    boolean isCacheable() {
+        return true;
+    }
+
     @Override
     Collection<Object> getHmacParams() {
         return Arrays.asList(
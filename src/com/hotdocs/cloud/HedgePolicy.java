@@ -0,0 +1,212 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides when a Client sends a second, "hedge", attempt of a request
+ * whose response is slow to arrive, so that the occasional slow response
+ * doesn't hold up a user. Whichever attempt gets a response first is
+ * used, and the other is disconnected.
+ *
+ * The hedge is sent once the first attempt has waited longer than the
+ * given percentile of recent response times for its request type, e.g.
+ * the 95th, so about 5% of requests are hedged. Until there are enough
+ * response times to go by, the initial delay is used. The delay is never
+ * less than the minimum delay.
+ *
+ * Only idempotent requests of the types given are hedged. By default
+ * that is GetInterviewRequest. A request that isn't idempotent, such as
+ * CreateSessionRequest, is never hedged unless its type is passed to
+ * hedgeNonIdempotent, since the attempt that loses may still take
+ * effect: a session request that loses may still create a session. A
+ * limit on the hedges in flight at once keeps a general slowdown from
+ * doubling the load on HotDocs Cloud Services.
+ *
+ * Both attempts send the same request at the same time, so a hedged
+ * request's content must be readable twice at once: its InputStreamGetter
+ * must return a new stream with the same content on each call, from any
+ * thread. The getters for strings, byte arrays, byte buffers and files
+ * do. A SupplierInputStreamGetter's supplier, or an AnswerSetSource, must
+ * be safe to call from two threads at once; one backed by a stream that
+ * can only be read once can't be hedged.
+ *
+ * Clients that share a policy share its response times.
+ */
+public class HedgePolicy {
+
+    private static final double defaultPercentile = 95;
+    private static final long defaultInitialDelay = 1000;
+    private static final long defaultMinDelay = 50;
+    private static final int defaultMaxHedgesInFlight = 8;
+    private static final int minSamples = 100;
+    private static final int windowSize = 1000;
+
+    private final double percentile;
+    private final long initialDelay;
+    private final long minDelay;
+    private final int maxHedgesInFlight;
+    private final Set<Class<?>> requestTypes;
+    private final Set<Class<?>> nonIdempotentTypes = Collections.newSetFromMap(
+            new ConcurrentHashMap<Class<?>, Boolean>());
+    private final ConcurrentMap<Class<?>, Window> windows =
+            new ConcurrentHashMap<Class<?>, Window>();
+    private final AtomicInteger hedgesInFlight = new AtomicInteger();
+
+    /**
+     * HedgePolicy constructor with the defaults: GetInterviewRequests are
+     * hedged at the 95th percentile, with a 1 second initial delay, a
+     * 50 ms minimum delay, and up to 8 hedges in flight.
+     */
+    public HedgePolicy() {
+        this(defaultPercentile, defaultInitialDelay, defaultMinDelay,
+                defaultMaxHedgesInFlight, GetInterviewRequest.class);
+    }
+
+    /**
+     * HedgePolicy constructor
+     *
+     * @param percentile
+     *            The percentile of response times after which a hedge is
+     *            sent, between 0 and 100
+     * @param initialDelay
+     *            Milliseconds to wait before hedging while there are too
+     *            few response times to go by
+     * @param minDelay
+     *            The shortest wait in milliseconds before hedging
+     * @param maxHedgesInFlight
+     *            The most hedges that may be in flight at once
+     * @param requestTypes
+     *            The request types to hedge, including subclasses. Only
+     *            their idempotent requests are hedged.
+     */
+    public HedgePolicy(
+            double percentile,
+            long initialDelay,
+            long minDelay,
+            int maxHedgesInFlight,
+            Class<?>... requestTypes) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException(
+                    "The percentile must be between 0 and 100.");
+        }
+        this.percentile = percentile;
+        this.initialDelay = initialDelay;
+        this.minDelay = minDelay;
+        this.maxHedgesInFlight = maxHedgesInFlight;
+        this.requestTypes = new HashSet<Class<?>>(Arrays.asList(requestTypes));
+    }
+
+    /**
+     * Hedges requests of the given types, including subclasses, even
+     * though they aren't idempotent. Both attempts may take effect on
+     * the server; for example, a hedged CreateSessionRequest that loses
+     * may still create a session, which is left to expire unused.
+     *
+     * @param requestTypes
+     *            The request types to hedge
+     */
+    public void hedgeNonIdempotent(Class<?>... requestTypes) {
+        nonIdempotentTypes.addAll(Arrays.asList(requestTypes));
+    }
+
+    // Gets the hedged type the request belongs to, or null if it isn't
+    // hedged.
+    Class<?> getHedgedType(Request request) {
+        boolean idempotent = request.isIdempotent();
+        for (Class<?> type = request.getClass(); type != null;
+                type = type.getSuperclass()) {
+            if (nonIdempotentTypes.contains(type)
+                    || (idempotent && requestTypes.contains(type))) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param requestType
+     * @return Milliseconds to wait for a response before hedging
+     */
+    long getDelay(Class<?> requestType) {
+        Window window = windows.get(requestType);
+        Histogram histogram = window == null ? null : window.get();
+        long delay = histogram == null ? initialDelay
+                : histogram.getPercentile(percentile) / 1000000;
+        return Math.max(delay, minDelay);
+    }
+
+    /**
+     * Records how long a request of the type took to get a response.
+     *
+     * @param requestType
+     * @param nanos
+     */
+    void record(Class<?> requestType, long nanos) {
+        Window window = windows.get(requestType);
+        if (window == null) {
+            Window created = new Window();
+            window = windows.putIfAbsent(requestType, created);
+            if (window == null) {
+                window = created;
+            }
+        }
+        window.record(nanos);
+    }
+
+    // Takes a place for a hedge, if there is one.
+    boolean startHedge() {
+        while (true) {
+            int n = hedgesInFlight.get();
+            if (n >= maxHedgesInFlight) {
+                return false;
+            }
+            if (hedgesInFlight.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void endHedge() {
+        hedgesInFlight.decrementAndGet();
+    }
+
+    /**
+     * The response times of one request type. Times are recorded in a
+     * histogram that is replaced once it is full, so the delay follows
+     * the recent response times rather than all of them.
+     */
+    private static class Window {
+        private volatile Histogram current = new Histogram();
+        private volatile Histogram previous;
+
+        void record(long nanos) {
+            Histogram histogram = current;
+            histogram.record(nanos);
+            if (histogram.getCount() >= windowSize && current == histogram) {
+                previous = histogram;
+                current = new Histogram();
+            }
+        }
+
+        // Gets the full histogram, or the current one if it has enough
+        // times, or null if there aren't enough yet.
+        Histogram get() {
+            Histogram histogram = previous;
+            if (histogram != null) {
+                return histogram;
+            }
+            histogram = current;
+            return histogram.getCount() >= minSamples ? histogram : null;
+        }
+    }
+}
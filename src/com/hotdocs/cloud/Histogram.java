@@ -0,0 +1,137 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative long values, such as latencies in
+ * nanoseconds, that many threads can record into without locking.
+ *
+ * Values are counted in log-linear buckets: each power of two is split
+ * into 16 equal buckets, so a percentile is within 1/16 (6.25%) of the
+ * true value. Recording is one atomic increment per counter, and the
+ * histogram takes under 8 KB whatever the range of the values.
+ *
+ * Reads that run at the same time as records see a consistent enough
+ * picture for monitoring, but not an atomic snapshot.
+ */
+public class Histogram {
+
+    private static final int subBucketBits = 4;
+    private static final int subBucketCount = 1 << subBucketBits;
+    private static final int bucketCount =
+            (63 - subBucketBits + 1) * subBucketCount;
+
+    private final AtomicLongArray counts = new AtomicLongArray(bucketCount);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value. Negative values are recorded as zero.
+     * 
+     * @param value
+     */
+    public void record(long value) {
+        value = Math.max(value, 0);
+        counts.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+            // Another thread raised the maximum; try again.
+        }
+    }
+
+    /**
+     * @return The number of values recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return The largest value recorded, or 0 if there are none
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return The mean of the values recorded, or 0 if there are none
+     */
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Gets the value below which the given percentage of the recorded
+     * values fall, e.g. getPercentile(99) for the p99.
+     * 
+     * @param percentile
+     *            Between 0 and 100
+     * @return The highest value in the bucket that holds the percentile,
+     *         or 0 if there are no values
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException(
+                    "The percentile must be between 0 and 100.");
+        }
+        long total = 0;
+        for (int i = 0; i < bucketCount; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max((long) Math.ceil(total * percentile / 100), 1);
+        long seen = 0;
+        for (int i = 0; i < bucketCount; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueIn(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Clears the histogram. Values recorded while it is being cleared may
+     * be partly lost.
+     */
+    public void reset() {
+        for (int i = 0; i < bucketCount; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    // Values below 16 get a bucket each. Above that, the bucket is given
+    // by the position of the highest bit and the 4 bits below it.
+    static int indexOf(long value) {
+        if (value < subBucketCount) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - subBucketBits;
+        int subBucket = (int) (value >>> shift) - subBucketCount;
+        return (shift + 1) * subBucketCount + subBucket;
+    }
+
+    static long highestValueIn(int index) {
+        if (index < subBucketCount) {
+            return index;
+        }
+        int shift = index / subBucketCount - 1;
+        long lowest = (long) (subBucketCount + index % subBucketCount)
+                << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,262 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A MetricsCollector that keeps a Histogram of each phase's time, in
+ * nanoseconds, and running totals for each request type:
+ *
+ * <pre>
+ * HistogramMetrics metrics = new HistogramMetrics();
+ * client.setMetricsCollector(metrics);
+ * ...
+ * long p99 = metrics.getHistogram("AssembleDocumentRequest", Phase.Wait)
+ *         .getPercentile(99);
+ * </pre>
+ *
+ * A phase's histogram only holds the requests that went through it, so
+ * PackageUpload shows how long uploads take when they happen.
+ *
+ * Hedge attempts add their bytes to the totals of their request type,
+ * and their phase times to histograms of their own, so that the request
+ * histograms only hold requests.
+ */
+public class HistogramMetrics implements MetricsCollector {
+
+    private final ConcurrentMap<String, TypeMetrics> types =
+            new ConcurrentHashMap<String, TypeMetrics>();
+
+    @Override
+    public void requestCompleted(RequestMetrics metrics) {
+        TypeMetrics type = types.get(metrics.getRequestType());
+        if (type == null) {
+            TypeMetrics created = new TypeMetrics();
+            type = types.putIfAbsent(metrics.getRequestType(), created);
+            if (type == null) {
+                type = created;
+            }
+        }
+        type.record(metrics);
+    }
+
+    /**
+     * @return The request types seen so far, e.g. AssembleDocumentRequest
+     */
+    public Set<String> getRequestTypes() {
+        return Collections.unmodifiableSet(types.keySet());
+    }
+
+    /**
+     * @param requestType
+     * @param phase
+     * @return The histogram of the phase's time in nanoseconds, or null
+     *         if no request of the type has been seen
+     */
+    public Histogram getHistogram(String requestType, Phase phase) {
+        TypeMetrics type = types.get(requestType);
+        return type == null ? null : type.phases[phase.ordinal()];
+    }
+
+    /**
+     * @param requestType
+     * @param phase
+     * @return The histogram of the phase's time in nanoseconds for hedge
+     *         attempts, or null if no request of the type has been seen
+     */
+    public Histogram getHedgeHistogram(String requestType, Phase phase) {
+        TypeMetrics type = types.get(requestType);
+        return type == null ? null : type.hedgePhases[phase.ordinal()];
+    }
+
+    /**
+     * @param requestType
+     * @return The number of requests of the type
+     */
+    public long getRequestCount(String requestType) {
+        TypeMetrics type = types.get(requestType);
+        return type == null ? 0 : type.requests.get();
+    }
+
+    /**
+     * @param requestType
+     * @return The number of requests of the type that threw an exception
+     *         or got an HTTP error status
+     */
+    public long getErrorCount(String requestType) {
+        TypeMetrics type = types.get(requestType);
+        return type == null ? 0 : type.errors.get();
+    }
+
+    /**
+     * @param requestType
+     * @return The number of requests of the type that needed their
+     *         package uploaded
+     */
+    public long getPackageUploadCount(String requestType) {
+        TypeMetrics type = types.get(requestType);
+        return type == null ? 0 : type.packageUploads.get();
+    }
+
+    /**
+     * @param requestType
+     * @return The number of times requests of the type were sent again
+     */
+    public long getRetryCount(String requestType) {
+        TypeMetrics type = types.get(requestType);
+        return type == null ? 0 : type.retries.get();
+    }
+
+    /**
+     * @param requestType
+     * @return The number of requests of the type that were hedged
+     */
+    public long getHedgeCount(String requestType) {
+        TypeMetrics type = types.get(requestType);
+        return type == null ? 0 : type.hedges.get();
+    }
+
+    /**
+     * @param requestType
+     * @return The number of hedged requests of the type whose response
+     *         came from the hedge
+     */
+    public long getHedgeWinCount(String requestType) {
+        TypeMetrics type = types.get(requestType);
+        return type == null ? 0 : type.hedgeWins.get();
+    }
+
+    /**
+     * @param requestType
+     * @return The number of requests of the type whose response came from
+     *         the response cache
+     */
+    public long getCacheHitCount(String requestType) {
+        TypeMetrics type = types.get(requestType);
+        return type == null ? 0 : type.cacheHits.get();
+    }
+
+    /**
+     * @param requestType
+     * @return The request body bytes sent for requests of the type
+     */
+    public long getBytesSent(String requestType) {
+        TypeMetrics type = types.get(requestType);
+        return type == null ? 0 : type.bytesSent.get();
+    }
+
+    /**
+     * @param requestType
+     * @return The response body bytes received for requests of the type
+     */
+    public long getBytesReceived(String requestType) {
+        TypeMetrics type = types.get(requestType);
+        return type == null ? 0 : type.bytesReceived.get();
+    }
+
+    /**
+     * @param requestType
+     * @return The number of responses with each status code, in order of
+     *         status code. Requests that got no response aren't counted.
+     */
+    public Map<Integer, Long> getStatusCounts(String requestType) {
+        Map<Integer, Long> counts = new TreeMap<Integer, Long>();
+        TypeMetrics type = types.get(requestType);
+        if (type != null) {
+            for (Map.Entry<Integer, AtomicLong> entry
+                    : type.statusCodes.entrySet()) {
+                counts.put(entry.getKey(), entry.getValue().get());
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Clears all the metrics.
+     */
+    public void reset() {
+        types.clear();
+    }
+
+    /**
+     * The metrics for one request type.
+     */
+    private static class TypeMetrics {
+        private final Histogram[] phases =
+                new Histogram[Phase.values().length];
+        private final Histogram[] hedgePhases =
+                new Histogram[Phase.values().length];
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong packageUploads = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicLong hedges = new AtomicLong();
+        private final AtomicLong hedgeWins = new AtomicLong();
+        private final AtomicLong cacheHits = new AtomicLong();
+        private final AtomicLong bytesSent = new AtomicLong();
+        private final AtomicLong bytesReceived = new AtomicLong();
+        private final ConcurrentMap<Integer, AtomicLong> statusCodes =
+                new ConcurrentHashMap<Integer, AtomicLong>();
+
+        private TypeMetrics() {
+            for (int i = 0; i < phases.length; i++) {
+                phases[i] = new Histogram();
+                hedgePhases[i] = new Histogram();
+            }
+        }
+
+        private void record(RequestMetrics metrics) {
+            Histogram[] histograms =
+                    metrics.isHedgeAttempt() ? hedgePhases : phases;
+            for (Phase phase : Phase.values()) {
+                long nanos = metrics.getNanos(phase);
+                if (nanos > -1) {
+                    histograms[phase.ordinal()].record(nanos);
+                }
+            }
+            bytesSent.addAndGet(metrics.getBytesSent());
+            bytesReceived.addAndGet(metrics.getBytesReceived());
+            if (metrics.isHedgeAttempt()) {
+                return;
+            }
+            requests.incrementAndGet();
+            int status = metrics.getStatusCode();
+            if (metrics.getException() != null || status >= 400) {
+                errors.incrementAndGet();
+            }
+            if (metrics.isPackageUploaded()) {
+                packageUploads.incrementAndGet();
+            }
+            retries.addAndGet(metrics.getRetries());
+            if (metrics.isHedged()) {
+                hedges.incrementAndGet();
+            }
+            if (metrics.isHedgeWon()) {
+                hedgeWins.incrementAndGet();
+            }
+            if (metrics.isCacheHit()) {
+                cacheHits.incrementAndGet();
+            }
+            if (status > -1) {
+                AtomicLong count = statusCodes.get(status);
+                if (count == null) {
+                    AtomicLong created = new AtomicLong();
+                    count = statusCodes.putIfAbsent(status, created);
+                    if (count == null) {
+                        count = created;
+                    }
+                }
+                count.incrementAndGet();
+            }
+        }
+    }
+}
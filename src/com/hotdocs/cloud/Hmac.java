@@ -4,24 +4,20 @@
 
 package com.hotdocs.cloud;
 
-import java.io.UnsupportedEncodingException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Map;
-import java.util.TimeZone;
-import java.util.concurrent.ConcurrentSkipListMap;
-
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-import javax.xml.bind.DatatypeConverter;
 
 /**
  * A utility class that calculates the HMAC for a
  * HotDocs Cloud Services request.
  */
 class Hmac {
+
+    // The Signer for the most recently used key. Callers almost always
+    // sign with one key, so this avoids a new Mac on every call without
+    // keeping a Signer for every key ever seen.
+    private static volatile Signer lastSigner;
+
     /**
      * Canonicalizes a collection of parameters into a string.
      * The canonicalization algorithm is as follows:
@@ -39,50 +35,62 @@ class Hmac {
      * @return The canonicalized string
      */
     static String canonicalize(Iterable<Object> params) {
-        SimpleDateFormat dateFormat =
-                new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-        dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+        final StringBuilder sb = new StringBuilder();
+        canonicalize(params, new CanonicalWriter() {
+            @Override
+            protected void writeAscii(char c) {
+                sb.append(c);
+            }
+
+            @Override
+            protected void writeString(String s) {
+                sb.append(s);
+            }
+        });
+        return sb.toString();
+    }
 
-        // Build the string
-        StringBuilder sb = new StringBuilder();
+    /**
+     * Canonicalizes a collection of parameters into a CanonicalWriter,
+     * using the algorithm described above.
+     * 
+     * @param params
+     *            Objects that are combined to form the canonicalized string
+     * @param writer
+     *            Receives the canonicalized string
+     */
+    static void canonicalize(Iterable<Object> params, CanonicalWriter writer) {
+        writer.reset();
         for (Object p : params) {
-            if (p instanceof String || p instanceof Integer) {
-                sb.append(p.toString());
+            if (p instanceof String) {
+                writer.text((String) p);
+            } else if (p instanceof Integer) {
+                writer.number((Integer) p);
             } else if (p instanceof Boolean) {
-                sb.append((Boolean) p ? "True" : "False");
+                writer.text((Boolean) p ? "True" : "False");
             } else if (p instanceof Enum) {
-                sb.append(((Enum<?>) p).name());
+                writer.text(((Enum<?>) p).name());
             } else if (p instanceof Date) {
-                sb.append(dateFormat.format((Date) p));
+                writer.date((Date) p);
             } else if (p instanceof Map<?, ?>) {
                 @SuppressWarnings("unchecked")
                 Map<String, String> map = (Map<String, String>) p;
                 if (!map.isEmpty()) {
-                    Map<String, String> sorted =
-                            new ConcurrentSkipListMap<String, String>(map);
-                    for (Map.Entry<String, String> entry : sorted.entrySet()) {
-                        sb.append(entry.getKey());
-                        sb.append('=');
-                        sb.append(entry.getValue());
-                        sb.append('\n');
-                    }
+                    // Each entry ends with its own separator.
+                    writer.map(map);
                     continue;
                 }
             }
-            sb.append('\n');
-        }
-
-        // Remove trailing \n
-        if (sb.length() > 0) {
-            sb.deleteCharAt(sb.length() - 1);
+            writer.separator();
         }
-
-        return sb.toString();
     }
 
     /**
      * Creates a BASE64-encoded HMAC-SHA1 hash from a
      * collection of parameters and a security token.
+     * The Signer for the last key used is kept, so repeated calls with
+     * the same key reuse its Macs; alternating between keys creates a new
+     * Signer, and Mac, each time. Clients sign with their own Signer.
      * 
      * @param signingKey
      *            The subscriber's unique signing key
@@ -95,24 +103,11 @@ class Hmac {
             String signingKey,
             Iterable<Object> params)
             throws HmacException {
-        try {
-            SecretKeySpec key = new SecretKeySpec(
-                    signingKey.getBytes("UTF-8"), "HmacSHA1");
-
-            String stringToSign = canonicalize(params);
-            byte[] bytesToSign = stringToSign.getBytes("UTF-8");
-
-            Mac mac = Mac.getInstance("HmacSHA1");
-            mac.init(key);
-            byte[] signature = mac.doFinal(bytesToSign);
-
-            return DatatypeConverter.printBase64Binary(signature);
-        } catch (
-                UnsupportedEncodingException
-                | NoSuchAlgorithmException
-                | InvalidKeyException ex) {
-            throw new HmacException(ex.getClass().getName()
-                    + ": " + ex.getMessage());
+        Signer signer = lastSigner;
+        if (signer == null || !signer.hasKey(signingKey)) {
+            signer = new Signer(signingKey);
+            lastSigner = signer;
         }
+        return signer.sign(params);
     }
 }
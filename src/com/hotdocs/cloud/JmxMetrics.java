@@ -0,0 +1,231 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Publishes a HistogramMetrics as a JMX MBean, so the client's metrics
+ * can be watched in JConsole or collected by a JMX agent:
+ *
+ * <pre>
+ * HistogramMetrics metrics = new HistogramMetrics();
+ * client.setMetricsCollector(metrics);
+ * JmxMetrics.register(metrics, "production");
+ * </pre>
+ *
+ * Each request type seen so far has read-only attributes named
+ * RequestType.Phase.statistic, with times in milliseconds, e.g.
+ * AssembleDocumentRequest.Wait.p99, where the statistic is count, mean,
+ * p50, p90, p99 or max. Each type also has the attributes requests,
+ * errors, packageUploads, retries, hedges, hedgeWins, cacheHits,
+ * bytesSent and bytesReceived, and status.NNN for each status code, e.g.
+ * AssembleDocumentRequest.errors.
+ */
+public class JmxMetrics implements DynamicMBean {
+
+    private static final String[] phaseStatistics =
+            { "count", "mean", "p50", "p90", "p99", "max" };
+    private static final String[] typeStatistics = { "requests", "errors",
+            "packageUploads", "retries", "hedges", "hedgeWins", "cacheHits",
+            "bytesSent", "bytesReceived" };
+
+    private final HistogramMetrics metrics;
+
+    /**
+     * JmxMetrics constructor
+     * 
+     * @param metrics
+     *            The metrics to publish
+     */
+    public JmxMetrics(HistogramMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, under the
+     * name com.hotdocs.cloud:type=ClientMetrics,name=[name].
+     * 
+     * @param metrics
+     * @param name
+     *            A name that tells this client's metrics apart from others
+     * @return The name the MBean was registered under
+     * @throws JMException
+     */
+    public static ObjectName register(HistogramMetrics metrics, String name)
+            throws JMException {
+        ObjectName objectName = new ObjectName("com.hotdocs.cloud:"
+                + "type=ClientMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(
+                new JmxMetrics(metrics), objectName);
+        return objectName;
+    }
+
+    @Override
+    public Object getAttribute(String attribute)
+            throws AttributeNotFoundException {
+        int dot = attribute.indexOf('.');
+        if (dot > 0) {
+            String type = attribute.substring(0, dot);
+            String rest = attribute.substring(dot + 1);
+            if (metrics.getRequestTypes().contains(type)) {
+                Object value = getTypeAttribute(type, rest);
+                if (value != null) {
+                    return value;
+                }
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException ex) {
+                // Attributes that can't be read are left out of the list.
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute)
+            throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(
+                "The attribute " + attribute.getName() + " is read-only.");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params,
+            String[] signature) throws ReflectionException {
+        if (actionName.equals("reset")
+                && (params == null || params.length == 0)) {
+            metrics.reset();
+            return null;
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes =
+                new ArrayList<MBeanAttributeInfo>();
+        for (String type : new TreeSet<String>(metrics.getRequestTypes())) {
+            for (Phase phase : Phase.values()) {
+                for (String statistic : phaseStatistics) {
+                    boolean isCount = statistic.equals("count");
+                    attributes.add(new MBeanAttributeInfo(
+                            type + "." + phase + "." + statistic,
+                            isCount ? "long" : "double",
+                            isCount ? "Requests that went through " + phase
+                                    : phase + " time, " + statistic
+                                            + ", in milliseconds",
+                            true, false, false));
+                }
+            }
+            for (String statistic : typeStatistics) {
+                attributes.add(new MBeanAttributeInfo(type + "." + statistic,
+                        "long", statistic, true, false, false));
+            }
+            for (Integer status : metrics.getStatusCounts(type).keySet()) {
+                attributes.add(new MBeanAttributeInfo(
+                        type + ".status." + status, "long",
+                        "Responses with status " + status,
+                        true, false, false));
+            }
+        }
+        MBeanOperationInfo reset = new MBeanOperationInfo("reset",
+                "Clears the metrics", null, "void",
+                MBeanOperationInfo.ACTION);
+        return new MBeanInfo(getClass().getName(),
+                "HotDocs Cloud Services client metrics",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+                null, new MBeanOperationInfo[] { reset }, null);
+    }
+
+    // Gets an attribute of a request type, or null if there is none.
+    private Object getTypeAttribute(String type, String attribute) {
+        if (attribute.startsWith("status.")) {
+            try {
+                Long count = metrics.getStatusCounts(type).get(
+                        Integer.valueOf(attribute.substring(7)));
+                return count != null ? count : Long.valueOf(0);
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+        switch (attribute) {
+        case "requests":
+            return metrics.getRequestCount(type);
+        case "errors":
+            return metrics.getErrorCount(type);
+        case "packageUploads":
+            return metrics.getPackageUploadCount(type);
+        case "retries":
+            return metrics.getRetryCount(type);
+        case "hedges":
+            return metrics.getHedgeCount(type);
+        case "hedgeWins":
+            return metrics.getHedgeWinCount(type);
+        case "cacheHits":
+            return metrics.getCacheHitCount(type);
+        case "bytesSent":
+            return metrics.getBytesSent(type);
+        case "bytesReceived":
+            return metrics.getBytesReceived(type);
+        }
+
+        int dot = attribute.indexOf('.');
+        if (dot < 0) {
+            return null;
+        }
+        Phase phase;
+        try {
+            phase = Phase.valueOf(attribute.substring(0, dot));
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+        Histogram histogram = metrics.getHistogram(type, phase);
+        switch (attribute.substring(dot + 1)) {
+        case "count":
+            return histogram.getCount();
+        case "mean":
+            return histogram.getMean() / 1e6;
+        case "p50":
+            return histogram.getPercentile(50) / 1e6;
+        case "p90":
+            return histogram.getPercentile(90) / 1e6;
+        case "p99":
+            return histogram.getPercentile(99) / 1e6;
+        case "max":
+            return histogram.getMax() / 1e6;
+        default:
+            return null;
+        }
+    }
+}
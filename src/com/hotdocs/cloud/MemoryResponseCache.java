@@ -0,0 +1,136 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A ResponseCache held in memory, bounded by the total size of its
+ * responses. When it is full, the least recently used responses are
+ * evicted first.
+ *
+ * It may be backed by a second tier, such as a DiskResponseCache, which
+ * is written through to and read from on a miss. A response found in the
+ * second tier is kept in memory again, so the responses in use stay in
+ * memory and the rest are a disk read away rather than a request.
+ */
+public class MemoryResponseCache implements ResponseCache {
+
+    private final long maxBytes;
+    private final ResponseCache secondTier;
+    private final LinkedHashMap<String, CachedResponse> entries =
+            new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+    private long size = 0;
+
+    /**
+     * MemoryResponseCache constructor
+     *
+     * @param maxBytes
+     *            The most bytes of responses to hold
+     */
+    public MemoryResponseCache(long maxBytes) {
+        this(maxBytes, null);
+    }
+
+    /**
+     * MemoryResponseCache constructor
+     *
+     * @param maxBytes
+     *            The most bytes of responses to hold in memory
+     * @param secondTier
+     *            A cache for responses that don't fit in memory, or null
+     */
+    public MemoryResponseCache(long maxBytes, ResponseCache secondTier) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException(
+                    "The size must not be negative.");
+        }
+        this.maxBytes = maxBytes;
+        this.secondTier = secondTier;
+    }
+
+    @Override
+    public CachedResponse get(String key) {
+        CachedResponse response;
+        synchronized (this) {
+            response = entries.get(key);
+        }
+        if (response == null && secondTier != null) {
+            response = secondTier.get(key);
+            if (response != null) {
+                store(key, response);
+            }
+        }
+        return response;
+    }
+
+    @Override
+    public void put(String key, CachedResponse response) {
+        store(key, response);
+        if (secondTier != null) {
+            secondTier.put(key, response);
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        synchronized (this) {
+            CachedResponse removed = entries.remove(key);
+            if (removed != null) {
+                size -= removed.getSize();
+            }
+        }
+        if (secondTier != null) {
+            secondTier.remove(key);
+        }
+    }
+
+    /**
+     * Removes every response held in memory. The second tier is left as
+     * it is.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * @return The approximate number of bytes of responses held in memory
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * @return The number of responses held in memory
+     */
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    // Holds a response in memory, evicting the least recently used ones
+    // to make room. A response bigger than the whole cache isn't held.
+    private synchronized void store(String key, CachedResponse response) {
+        CachedResponse previous = entries.remove(key);
+        if (previous != null) {
+            size -= previous.getSize();
+        }
+        long responseSize = response.getSize();
+        if (responseSize > maxBytes) {
+            return;
+        }
+
+        Iterator<Map.Entry<String, CachedResponse>> it =
+                entries.entrySet().iterator();
+        while (size + responseSize > maxBytes && it.hasNext()) {
+            size -= it.next().getValue().getSize();
+            it.remove();
+        }
+        entries.put(key, response);
+        size += responseSize;
+    }
+}
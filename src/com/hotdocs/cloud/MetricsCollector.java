@@ -0,0 +1,24 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+/**
+ * Receives the metrics of each request a Client sends. Implementations
+ * are called on the thread that sent the request, possibly by many
+ * threads at once, so they must be thread-safe and should be quick.
+ *
+ * HistogramMetrics is a ready-made implementation.
+ */
+public interface MetricsCollector {
+    /**
+     * Called once each request has completed, successfully or not, and
+     * once each hedge attempt has finished; see
+     * RequestMetrics.isHedgeAttempt.
+     *
+     * @param metrics
+     *            The request's metrics
+     */
+    void requestCompleted(RequestMetrics metrics);
+}
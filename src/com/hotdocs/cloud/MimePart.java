@@ -0,0 +1,68 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * One part of a response read with a MimePartReader: the part headers
+ * and a stream of the part content. The content stream reads directly
+ * from the response, so it must be read before the next part is
+ * requested.
+ */
+public class MimePart {
+
+    private final Map<String, String> headers;
+    private final InputStream content;
+
+    MimePart(Map<String, String> headers, InputStream content) {
+        this.headers = Collections.unmodifiableMap(headers);
+        this.content = content;
+    }
+
+    /**
+     * @return The part headers
+     */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @param name
+     * @return The value of the named header, ignoring case, or null
+     */
+    public String getHeader(String name) {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (header.getKey().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The Content-Type header, or null
+     */
+    public String getContentType() {
+        return getHeader("Content-Type");
+    }
+
+    /**
+     * @return The filename value of the Content-Disposition header, or null
+     */
+    public String getFileName() {
+        String disp = getHeader("Content-Disposition");
+        return disp != null ? Util.getNamedValue(disp, ";", "filename") : null;
+    }
+
+    /**
+     * @return The part content
+     */
+    public InputStream getContent() {
+        return content;
+    }
+}
@@ -0,0 +1,127 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Reads the parts of a HotDocs Cloud Services response one at a time,
+ * straight from the connection, without buffering whole parts in memory
+ * or on disk. A response that isn't multipart is read as a single part.
+ *
+ * Typical use:
+ * 
+ * <pre>
+ * try (MimePartReader reader = client.sendRequestStreaming(request)) {
+ *     MimePart part;
+ *     while ((part = reader.nextPart()) != null) {
+ *         store(part.getFileName(), part.getContent());
+ *     }
+ * }
+ * </pre>
+ */
+public class MimePartReader implements Closeable {
+
+    private final InputStream streamIn;
+    private final MultipartMimeParser parser;
+    private MimePart singlePart;
+    private PartStream current;
+    private boolean done;
+
+    // Reads a multipart stream.
+    MimePartReader(InputStream streamIn, String boundary) throws IOException {
+        this(streamIn, boundary, null);
+    }
+
+    // Reads a multipart stream, searching for boundaries in the given
+    // buffer, or in one of the default size if it is null.
+    MimePartReader(InputStream streamIn, String boundary, byte[] buffer)
+            throws IOException {
+        this.streamIn = streamIn;
+        this.parser = buffer != null
+                ? new MultipartMimeParser(buffer) : new MultipartMimeParser();
+        parser.start(streamIn, boundary);
+    }
+
+    // Reads a stream that isn't multipart as one part.
+    MimePartReader(InputStream streamIn, Map<String, String> headers) {
+        this.streamIn = streamIn;
+        this.parser = null;
+        this.singlePart = new MimePart(headers, streamIn);
+    }
+
+    /**
+     * Returns the next part. Any unread content of the previous part is
+     * skipped.
+     * 
+     * @return The next part, or null if there are no more parts
+     * @throws IOException
+     */
+    public MimePart nextPart() throws IOException {
+        if (parser == null) {
+            MimePart part = singlePart;
+            singlePart = null;
+            return part;
+        }
+        if (current != null) {
+            current.skipRest();
+            current = null;
+            done = !parser.endPart();
+        }
+        if (done) {
+            return null;
+        }
+        Map<String, String> headers = parser.getHeaders();
+        current = new PartStream();
+        return new MimePart(headers, current);
+    }
+
+    /**
+     * Closes the response stream.
+     */
+    @Override
+    public void close() throws IOException {
+        done = true;
+        streamIn.close();
+    }
+
+    /**
+     * The content of the current part, which ends at the next boundary.
+     */
+    private class PartStream extends InputStream {
+        private boolean ended;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (ended || current != this) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            int count = parser.readPart(b, off, len);
+            if (count == -1) {
+                ended = true;
+            }
+            return count;
+        }
+
+        private void skipRest() throws IOException {
+            byte[] buffer = new byte[8 * 1024];
+            while (read(buffer, 0, buffer.length) != -1) {
+                // Discard
+            }
+        }
+    }
+}
@@ -35,12 +35,25 @@ class MultipartMimeParser {
     private static final byte DASH = 0x2d;
 
     private ScratchPadOutputStream scratchPad = new ScratchPadOutputStream();
-    private StreamSplitter splitter = new StreamSplitter();
+    private final StreamSplitter splitter;
+    private byte[] boundaryBytes;
 
     /**
      * MultipartMimeParser constructor
      */
     MultipartMimeParser() {
+        splitter = new StreamSplitter();
+    }
+
+    /**
+     * MultipartMimeParser constructor
+     * 
+     * @param buffer
+     *            The buffer in which the stream is searched for boundaries.
+     *            It must be longer than the boundary.
+     */
+    MultipartMimeParser(byte[] buffer) {
+        splitter = new StreamSplitter(buffer);
     }
 
     /**
@@ -58,44 +71,75 @@ class MultipartMimeParser {
             OutputStreamGetter outputStreamGetter,
             String boundary)
             throws IOException {
-        byte[] boundaryBytes = ("\r\n--" + boundary).getBytes("UTF-8");
-        splitter.init(streamIn);
-
-        // Discard everything until the first boundary, and skip the CR-LF.
-        splitter.writeUntilPattern(null, boundaryBytes);
-        splitter.writeBytes(null, 2);
+        start(streamIn, boundary);
 
+        boolean morePartsFollow;
         do {
             // Get the output stream and copy the input stream to it
             // until we find the boundary in the input stream.
-            OutputStream streamOut = outputStreamGetter
-                    .getStream(getHeaders(streamIn));
+            OutputStream streamOut = outputStreamGetter.getStream(getHeaders());
             splitter.writeUntilPattern(streamOut, boundaryBytes);
-
-            // Grab the 2 bytes that follow the boundary.
-            scratchPad.reset();
-            splitter.writeBytes(scratchPad, 2);
+            morePartsFollow = endPart();
 
             // Close the stream.
             if (streamOut != null) {
                 streamOut.close();
             }
+        } while (morePartsFollow);
+    }
 
-            // The two bytes will be CR-LF for normal boundaries,
-            // but they will be "--" for the terminating boundary.
-        } while (scratchPad.getBuf()[0] != DASH
-                || scratchPad.getBuf()[1] != DASH);
+    /**
+     * Starts parsing a multipart stream, skipping everything up to the
+     * headers of the first part.
+     * 
+     * @param streamIn
+     * @param boundary
+     * @throws IOException
+     */
+    void start(InputStream streamIn, String boundary) throws IOException {
+        boundaryBytes = ("\r\n--" + boundary).getBytes("UTF-8");
+        splitter.init(streamIn);
+
+        // Discard everything until the first boundary, and skip the CR-LF.
+        splitter.writeUntilPattern(null, boundaryBytes);
+        splitter.writeBytes(null, 2);
+    }
+
+    /**
+     * Reads content of the current part into an array.
+     * 
+     * @param b
+     * @param off
+     * @param len
+     * @return The number of bytes read, or -1 at the end of the part.
+     * @throws IOException
+     */
+    int readPart(byte[] b, int off, int len) throws IOException {
+        return splitter.readUntilPattern(b, off, len, boundaryBytes);
+    }
+
+    /**
+     * Reads what follows the boundary at the end of a part.
+     * 
+     * @return Whether more parts follow
+     * @throws IOException
+     */
+    boolean endPart() throws IOException {
+        // Grab the 2 bytes that follow the boundary. They will be CR-LF
+        // for normal boundaries, but "--" for the terminating boundary.
+        scratchPad.reset();
+        splitter.writeBytes(scratchPad, 2);
+        return scratchPad.getBuf()[0] != DASH
+                || scratchPad.getBuf()[1] != DASH;
     }
 
     /**
      * Gets the MIME part headers and returns them in a name-value table.
      * 
-     * @param streamIn
      * @return
      * @throws IOException
      */
-    private Map<String, String> getHeaders(InputStream streamIn)
-            throws IOException {
+    Map<String, String> getHeaders() throws IOException {
         Map<String, String> headers = new HashMap<String, String>();
         String line;
 
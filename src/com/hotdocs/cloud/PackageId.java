@@ -0,0 +1,116 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Derives package IDs from the SHA-256 digest of the package content, so
+ * that a package gets a new ID exactly when its content changes.
+ *
+ * Digests of package files are cached by path, modification time and
+ * size, so a file is only read again after it has been modified.
+ */
+public class PackageId {
+
+    private static final int maxCachedFiles = 1000;
+
+    private static final ConcurrentMap<String, CachedDigest> digests =
+            new ConcurrentHashMap<String, CachedDigest>();
+
+    private PackageId() {
+    }
+
+    /**
+     * Returns a package ID derived from the content of a package file.
+     * 
+     * @param packageFile
+     *            The local file path of the package
+     * @return The lowercase hex SHA-256 digest of the file
+     * @throws IOException
+     */
+    public static String fromFile(String packageFile) throws IOException {
+        File file = new File(packageFile);
+        String path = file.getCanonicalPath();
+        long lastModified = file.lastModified();
+        long length = file.length();
+
+        CachedDigest cached = digests.get(path);
+        if (cached != null && cached.lastModified == lastModified
+                && cached.length == length) {
+            return cached.digest;
+        }
+
+        String digest = digest(new FileInputStreamGetter(packageFile));
+        if (digests.size() >= maxCachedFiles) {
+            digests.clear();
+        }
+        digests.put(path, new CachedDigest(lastModified, length, digest));
+        return digest;
+    }
+
+    /**
+     * Returns a package ID derived from the content of a package stream.
+     * Digests are only cached for FileInputStreamGetters.
+     * 
+     * @param packageStreamGetter
+     *            Provides the package content
+     * @return The lowercase hex SHA-256 digest of the content
+     * @throws IOException
+     */
+    public static String fromStream(InputStreamGetter packageStreamGetter)
+            throws IOException {
+        if (packageStreamGetter instanceof FileInputStreamGetter) {
+            return fromFile(((FileInputStreamGetter) packageStreamGetter)
+                    .getFilePath());
+        }
+        return digest(packageStreamGetter);
+    }
+
+    /**
+     * Returns a package ID made of a readable prefix and the digest of a
+     * package file, e.g. "EmploymentAgreement-3f2a...".
+     * 
+     * @param prefix
+     * @param packageFile
+     * @return The package ID
+     * @throws IOException
+     */
+    public static String fromFile(String prefix, String packageFile)
+            throws IOException {
+        return prefix + "-" + fromFile(packageFile);
+    }
+
+    private static String digest(InputStreamGetter streamGetter)
+            throws IOException {
+        MessageDigest md = Util.newSha256();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream stream = streamGetter.getStream()) {
+            int len;
+            while ((len = stream.read(buffer)) != -1) {
+                md.update(buffer, 0, len);
+            }
+        }
+
+        return Util.toHex(md.digest());
+    }
+
+    private static class CachedDigest {
+        private final long lastModified;
+        private final long length;
+        private final String digest;
+
+        private CachedDigest(long lastModified, long length, String digest) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.digest = digest;
+        }
+    }
+}
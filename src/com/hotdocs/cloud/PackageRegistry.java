@@ -0,0 +1,106 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers which packages a Client has recently seen in the HotDocs
+ * Cloud Services cache, either because it uploaded them or because a
+ * request that used them succeeded.
+ *
+ * Entries expire after a time to live, and the least recently used
+ * entry is dropped when the registry is full. A package that the
+ * registry knows about may still have been evicted from the cloud
+ * cache, in which case the Client falls back to uploading it on 404.
+ */
+public class PackageRegistry {
+
+    private static final int defaultMaxSize = 1000;
+    private static final long defaultTimeToLive = 60 * 60 * 1000;
+
+    private final long timeToLive;
+    private final Map<String, Long> entries;
+
+    /**
+     * PackageRegistry constructor with room for 1000 packages and a
+     * one hour time to live.
+     */
+    public PackageRegistry() {
+        this(defaultMaxSize, defaultTimeToLive);
+    }
+
+    /**
+     * PackageRegistry constructor
+     * 
+     * @param maxSize
+     *            The maximum number of packages remembered
+     * @param timeToLive
+     *            Milliseconds for which a package is remembered
+     */
+    public PackageRegistry(final int maxSize, long timeToLive) {
+        this.timeToLive = timeToLive;
+        this.entries = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> e) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param packageId
+     * @return Whether the package is believed to be in the cloud cache
+     */
+    public synchronized boolean contains(String packageId) {
+        Long added = entries.get(packageId);
+        if (added == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - added >= timeToLive) {
+            entries.remove(packageId);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records that the package is in the cloud cache.
+     * 
+     * @param packageId
+     */
+    public synchronized void add(String packageId) {
+        if (packageId != null) {
+            entries.put(packageId, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Forgets the package, e.g. because the cloud cache no longer has it.
+     * 
+     * @param packageId
+     */
+    public synchronized void remove(String packageId) {
+        entries.remove(packageId);
+    }
+
+    /**
+     * Forgets all packages.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return The number of packages remembered, including any that have
+     *         expired but not yet been dropped
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+}
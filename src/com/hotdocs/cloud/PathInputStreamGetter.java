@@ -0,0 +1,53 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * An InputStreamGetter that streams a file, such as answer XML that was
+ * written to disk, without reading it into memory first. When it is
+ * sent as a request body, the file is read from its channel in blocks of
+ * up to 64 KB and written straight to the connection.
+ */
+public class PathInputStreamGetter implements ContentWriter {
+
+    private Path path;
+
+    public PathInputStreamGetter(Path path) {
+        this.path = path;
+    }
+
+    @Override
+    public int getLength() {
+        long length = getContentLength();
+        return length <= Integer.MAX_VALUE ? (int) length : -1;
+    }
+
+    @Override
+    public long getContentLength() {
+        try {
+            return Files.size(path);
+        } catch (IOException ex) {
+            // getStream or writeTo will report the problem.
+            return -1;
+        }
+    }
+
+    @Override
+    public InputStream getStream() throws IOException {
+        return Files.newInputStream(path);
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        Util.writeFile(path, out);
+    }
+
+}
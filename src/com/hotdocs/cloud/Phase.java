@@ -0,0 +1,22 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+/**
+ * The phases of a request that RequestMetrics times.
+ *
+ * Throttle: waiting for the client's RequestLimiter.
+ * Sign: computing the HMAC and setting the headers.
+ * Connect: opening (or leasing) the connection.
+ * SendBody: writing the request body.
+ * Wait: waiting for the response headers, i.e. for HotDocs Cloud Services
+ * to do the work.
+ * ReadResponse: reading and parsing the response body.
+ * PackageUpload: uploading a package that wasn't in the cache.
+ * Total: the whole request, including any upload and retries.
+ */
+public enum Phase {
+    Throttle, Sign, Connect, SendBody, Wait, ReadResponse, PackageUpload, Total
+}
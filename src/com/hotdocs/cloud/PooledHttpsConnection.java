@@ -0,0 +1,601 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Proxy;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * A minimal HTTP/1.1 HttpsURLConnection that runs over a socket leased
+ * from a PooledTransport. The socket goes back to the pool when the
+ * response body has been read to the end or closed, and is closed
+ * instead if the response can't be delimited or disconnect is called.
+ *
+ * Redirects are not followed.
+ */
+class PooledHttpsConnection extends HttpsURLConnection {
+
+    // Body lengths that aren't byte counts
+    private static final long chunkedLength = -1;
+    private static final long noRequestBody = -2; // No Content-Length sent
+    private static final long untilClosed = -3; // Response ends at close
+    private static final int maxDrain = 64 * 1024;
+
+    private final Proxy proxy;
+    private final PooledTransport transport;
+    private volatile PooledTransport.PooledSocket socket;
+    private Map<String, List<String>> requestHeaders;
+    private boolean requestSent;
+    private RequestBodyStream requestBody;
+    private List<String[]> responseHeaders;
+    private ResponseBodyStream responseBody;
+
+    PooledHttpsConnection(URL url, Proxy proxy, PooledTransport transport) {
+        super(url);
+        this.proxy = proxy;
+        this.transport = transport;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (connected) {
+            return;
+        }
+        // Request properties can't be read once we are connected.
+        requestHeaders = getRequestProperties();
+        lease(true);
+        connected = true;
+    }
+
+    // May be called from another thread to cancel the request, so the
+    // socket is closed but left in place; the thread using it gets a
+    // SocketException rather than a NullPointerException.
+    @Override
+    public void disconnect() {
+        PooledTransport.PooledSocket s = socket;
+        if (s != null) {
+            transport.discard(s, this);
+        }
+    }
+
+    @Override
+    public boolean usingProxy() {
+        return proxy != null && proxy.type() != Proxy.Type.DIRECT;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (!doOutput) {
+            throw new ProtocolException(
+                    "Cannot write output without calling setDoOutput(true).");
+        }
+        if (requestBody != null) {
+            return requestBody;
+        }
+        if (responseHeaders != null) {
+            throw new ProtocolException(
+                    "Cannot write output after reading input.");
+        }
+        connect();
+        long length = fixedContentLengthLong != -1
+                ? fixedContentLengthLong : fixedContentLength;
+        if (length < 0) {
+            length = chunkedLength;
+        }
+        writeHead(length);
+        requestBody = new RequestBodyStream(socket.out, length);
+        return requestBody;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        readResponse();
+        if (responseCode == 404 || responseCode == 410) {
+            throw new FileNotFoundException(url.toString());
+        }
+        if (responseCode >= 400) {
+            throw new IOException("Server returned HTTP response code: "
+                    + responseCode + " for URL: " + url);
+        }
+        return responseBody;
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        if (responseHeaders != null && responseCode >= 400) {
+            return responseBody;
+        }
+        return null;
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        readResponse();
+        return responseCode;
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+        if (!tryReadResponse()) {
+            return null;
+        }
+        // If a header is repeated, the last value wins.
+        for (int i = responseHeaders.size() - 1; i > 0; i--) {
+            String[] header = responseHeaders.get(i);
+            if (header[0].equalsIgnoreCase(name)) {
+                return header[1];
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String getHeaderFieldKey(int n) {
+        if (!tryReadResponse() || n >= responseHeaders.size()) {
+            return null;
+        }
+        return responseHeaders.get(n)[0];
+    }
+
+    @Override
+    public String getHeaderField(int n) {
+        if (!tryReadResponse() || n >= responseHeaders.size()) {
+            return null;
+        }
+        return responseHeaders.get(n)[1];
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        Map<String, List<String>> fields =
+                new LinkedHashMap<String, List<String>>();
+        if (tryReadResponse()) {
+            for (String[] header : responseHeaders) {
+                List<String> values = fields.get(header[0]);
+                if (values == null) {
+                    values = new ArrayList<String>();
+                    fields.put(header[0], values);
+                }
+                values.add(header[1]);
+            }
+        }
+        return Collections.unmodifiableMap(fields);
+    }
+
+    @Override
+    public String getCipherSuite() {
+        return getSession().getCipherSuite();
+    }
+
+    @Override
+    public Certificate[] getLocalCertificates() {
+        return getSession().getLocalCertificates();
+    }
+
+    @Override
+    public Certificate[] getServerCertificates()
+            throws SSLPeerUnverifiedException {
+        return getSession().getPeerCertificates();
+    }
+
+    /**
+     * Returns the socket to the pool if the response can be drained
+     * cheaply, and closes it otherwise.
+     */
+    void release() {
+        if (socket == null) {
+            return;
+        }
+        if (responseBody == null) {
+            disconnect();
+            return;
+        }
+        try {
+            responseBody.drain();
+        } catch (IOException ex) {
+            disconnect();
+        }
+    }
+
+    /**
+     * Reads a CRLF-terminated ASCII line without buffering past it.
+     *
+     * @return The line, or null at end of stream
+     */
+    static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) b);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+
+    private SSLSession getSession() {
+        if (socket == null) {
+            throw new IllegalStateException("Connection is not open.");
+        }
+        return socket.socket.getSession();
+    }
+
+    private void lease(boolean allowReuse) throws IOException {
+        socket = transport.lease(this, url, proxy, getSSLSocketFactory(),
+                getHostnameVerifier(), getConnectTimeout(), allowReuse);
+        socket.socket.setSoTimeout(getReadTimeout());
+    }
+
+    private void writeHead(long contentLength) throws IOException {
+        StringBuilder head = new StringBuilder();
+        String file = url.getFile();
+        head.append(method).append(' ')
+                .append(file.isEmpty() ? "/" : file).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+            head.append(':').append(url.getPort());
+        }
+        head.append("\r\n");
+        if (!requestHeaders.containsKey("User-Agent")) {
+            head.append("User-Agent: Java/")
+                    .append(System.getProperty("java.version"))
+                    .append("\r\n");
+        }
+        for (Map.Entry<String, List<String>> entry
+                : requestHeaders.entrySet()) {
+            for (String value : entry.getValue()) {
+                head.append(entry.getKey()).append(": ")
+                        .append(value).append("\r\n");
+            }
+        }
+        if (contentLength == chunkedLength) {
+            head.append("Transfer-Encoding: chunked\r\n");
+        } else if (contentLength != noRequestBody) {
+            head.append("Content-Length: ").append(contentLength)
+                    .append("\r\n");
+        }
+        head.append("\r\n");
+        socket.out.write(head.toString().getBytes("ISO-8859-1"));
+        requestSent = true;
+    }
+
+    private boolean tryReadResponse() {
+        try {
+            readResponse();
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    private void readResponse() throws IOException {
+        if (responseHeaders != null) {
+            return;
+        }
+        connect();
+        if (requestBody != null) {
+            requestBody.close();
+        }
+
+        String statusLine;
+        do {
+            statusLine = readStatusLine();
+            responseHeaders = new ArrayList<String[]>();
+            responseHeaders.add(new String[] { null, statusLine });
+            String line;
+            while ((line = readLine(socket.in)) != null && !line.isEmpty()) {
+                String[] header = line.split(":", 2);
+                if (header.length == 2) {
+                    responseHeaders.add(new String[] {
+                            header[0].trim(), header[1].trim() });
+                }
+            }
+            String[] status = statusLine.split(" ", 3);
+            try {
+                responseCode = Integer.parseInt(status[1]);
+            } catch (NumberFormatException
+                    | ArrayIndexOutOfBoundsException ex) {
+                disconnect();
+                throw new ProtocolException(
+                        "Invalid status line: " + statusLine);
+            }
+            responseMessage = status.length > 2 ? status[2] : "";
+        } while (responseCode / 100 == 1); // Skip 100 Continue
+
+        boolean keepAlive = statusLine.startsWith("HTTP/1.1")
+                && !"close".equalsIgnoreCase(getHeaderField("Connection"));
+        String contentLength = getHeaderField("Content-Length");
+        long length;
+        if (method.equals("HEAD")
+                || responseCode == 204 || responseCode == 304) {
+            length = 0;
+        } else if ("chunked".equalsIgnoreCase(
+                getHeaderField("Transfer-Encoding"))) {
+            length = chunkedLength;
+        } else if (contentLength != null) {
+            length = parseLength(contentLength, 10);
+            if (length < 0) {
+                disconnect();
+                throw new ProtocolException(
+                        "Invalid Content-Length: " + contentLength);
+            }
+        } else {
+            // The body is delimited by the server closing the socket.
+            length = untilClosed;
+            keepAlive = false;
+        }
+        responseBody = new ResponseBodyStream(length, keepAlive);
+    }
+
+    // Sends the request head if it hasn't been sent, and reads the status
+    // line. If a reused socket turns out to have been closed by the server
+    // and no request body has been streamed, the request is resent on a
+    // new socket.
+    private String readStatusLine() throws IOException {
+        while (true) {
+            boolean canResend = socket.reused && requestBody == null;
+            try {
+                if (!requestSent) {
+                    long length = fixedContentLengthLong != -1
+                            ? fixedContentLengthLong : fixedContentLength;
+                    writeHead(doOutput ? Math.max(length, 0) : noRequestBody);
+                }
+                socket.out.flush();
+                String statusLine = readLine(socket.in);
+                if (statusLine != null) {
+                    return statusLine;
+                }
+                if (!canResend) {
+                    throw new EOFException(
+                            "Unexpected end of file from server");
+                }
+            } catch (IOException ex) {
+                // A read timeout means the server is slow, not that the
+                // socket was closed, so resending would only wait again.
+                if (!canResend || ex instanceof SocketTimeoutException) {
+                    disconnect();
+                    throw ex;
+                }
+            }
+            disconnect();
+            requestSent = false;
+            lease(false);
+        }
+    }
+
+    // Returns -1 if the value isn't a valid non-negative length.
+    private static long parseLength(String value, int radix) {
+        try {
+            long length = Long.parseLong(value, radix);
+            return length >= 0 ? length : -1;
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    // Called once the response body has been consumed or abandoned.
+    private void finish(boolean reusable) {
+        if (socket != null) {
+            if (reusable) {
+                transport.recycle(socket, this);
+            } else {
+                transport.discard(socket, this);
+            }
+            socket = null;
+        }
+    }
+
+    /**
+     * Writes the request body with a fixed length or chunked encoding.
+     */
+    private class RequestBodyStream extends OutputStream {
+        private final OutputStream out;
+        private final long length;
+        private long written;
+        private boolean closed;
+
+        private RequestBodyStream(OutputStream out, long length) {
+            this.out = out;
+            this.length = length;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream is closed.");
+            }
+            if (len == 0) {
+                return;
+            }
+            if (length == chunkedLength) {
+                out.write((Integer.toHexString(len) + "\r\n")
+                        .getBytes("ISO-8859-1"));
+                out.write(b, off, len);
+                out.write('\r');
+                out.write('\n');
+            } else {
+                if (written + len > length) {
+                    throw new IOException(
+                            "Too many bytes written to the request body.");
+                }
+                out.write(b, off, len);
+            }
+            written += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        // Finishes the body, but leaves the socket open.
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (length == chunkedLength) {
+                out.write("0\r\n\r\n".getBytes("ISO-8859-1"));
+            } else if (written != length) {
+                disconnect();
+                throw new IOException("Request body is " + written
+                        + " bytes, but " + length + " were promised.");
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Reads a response body delimited by Content-Length, chunked encoding
+     * or the end of the stream, and returns the socket when it's done.
+     */
+    private class ResponseBodyStream extends InputStream {
+        private final boolean keepAlive;
+        private final boolean chunked;
+        private long remaining; // In the body, or in the current chunk
+        private boolean done;
+
+        private ResponseBodyStream(long length, boolean keepAlive) {
+            this.keepAlive = keepAlive;
+            this.chunked = (length == chunkedLength);
+            this.remaining = chunked ? 0 : length;
+            if (length == 0) {
+                done = true;
+                finish(keepAlive);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (done || socket == null) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (chunked && remaining == 0 && !nextChunk()) {
+                return -1;
+            }
+            if (remaining != untilClosed) {
+                len = (int) Math.min(len, remaining);
+            }
+            int count = socket.in.read(b, off, len);
+            if (count == -1) {
+                done = true;
+                finish(false);
+                if (remaining != untilClosed) {
+                    throw new EOFException("Response body is truncated.");
+                }
+                return -1;
+            }
+            if (remaining != untilClosed) {
+                remaining -= count;
+                if (remaining == 0) {
+                    if (chunked) {
+                        readLine(socket.in); // CRLF after the chunk data
+                    } else {
+                        done = true;
+                        finish(keepAlive);
+                    }
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (done || socket == null) {
+                return 0;
+            }
+            int available = socket.in.available();
+            return remaining == untilClosed
+                    ? available : (int) Math.min(available, remaining);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!done) {
+                done = true;
+                finish(false);
+            }
+        }
+
+        // Reads the rest of a short body so the socket can be reused.
+        private void drain() throws IOException {
+            byte[] buffer = new byte[4096];
+            long drained = 0;
+            while (drained <= maxDrain) {
+                int count = read(buffer, 0, buffer.length);
+                if (count == -1) {
+                    return;
+                }
+                drained += count;
+            }
+            close();
+        }
+
+        // Reads the next chunk size, or the trailers after the last chunk.
+        private boolean nextChunk() throws IOException {
+            String line = readLine(socket.in);
+            if (line == null) {
+                throw new EOFException("Response body is truncated.");
+            }
+            int semicolon = line.indexOf(';');
+            if (semicolon != -1) {
+                line = line.substring(0, semicolon);
+            }
+            remaining = parseLength(line.trim(), 16);
+            if (remaining < 0) {
+                done = true;
+                finish(false);
+                throw new ProtocolException("Invalid chunk size: " + line);
+            }
+            if (remaining == 0) {
+                while ((line = readLine(socket.in)) != null
+                        && !line.isEmpty()) {
+                    // Discard trailers
+                }
+                done = true;
+                finish(keepAlive);
+                return false;
+            }
+            return true;
+        }
+    }
+}
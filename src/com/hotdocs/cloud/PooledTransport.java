@@ -0,0 +1,491 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A Transport that keeps TLS connections to HotDocs Cloud Services open
+ * and reuses them across requests, so that most requests skip the TCP
+ * and TLS handshakes.
+ *
+ * Each host has its own pool of idle connections, kept apart by proxy,
+ * SSLSocketFactory and HostnameVerifier so that a connection is only
+ * reused with the same trust and host name checks that opened it. Use
+ * one factory and verifier instance across connections, or nothing is
+ * reused.
+ *
+ * Each host keeps at most maxIdlePerHost idle connections, idle
+ * connections are evicted after an idle timeout, and every connection is
+ * retired once it reaches its maximum lifetime. Whenever a connection to
+ * a host is leased or returned, that host's idle connections are swept
+ * for expired ones; call evictIdle to sweep every host, e.g. from a timer
+ * when the load drops to nothing. The number of leased connections isn't
+ * limited; a RequestLimiter on the Client bounds the requests in flight.
+ *
+ * Only https URLs are pooled. Other URLs are opened with
+ * URL.openConnection.
+ */
+public class PooledTransport implements Transport {
+
+    private static final int defaultMaxIdlePerHost = 8;
+    private static final long defaultIdleTimeout = 30 * 1000;
+    private static final long defaultMaxLifetime = 10 * 60 * 1000;
+    private static final long probeAfterIdle = 2 * 1000;
+
+    private final int maxIdlePerHost;
+    private final long idleTimeout;
+    private final long maxLifetime;
+    private final ConcurrentMap<PoolKey, Deque<PooledSocket>> pools =
+            new ConcurrentHashMap<PoolKey, Deque<PooledSocket>>();
+
+    private final AtomicInteger leasedCount = new AtomicInteger();
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong reusedCount = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+
+    /**
+     * PooledTransport constructor with default limits: 8 idle connections
+     * per host, a 30 second idle timeout and a 10 minute maximum lifetime.
+     */
+    public PooledTransport() {
+        this(defaultMaxIdlePerHost, defaultIdleTimeout, defaultMaxLifetime);
+    }
+
+    /**
+     * PooledTransport constructor
+     *
+     * @param maxIdlePerHost
+     *            The maximum number of idle connections kept per host
+     * @param idleTimeout
+     *            Milliseconds an idle connection is kept before it is closed
+     * @param maxLifetime
+     *            Milliseconds after which a connection is no longer reused
+     */
+    public PooledTransport(
+            int maxIdlePerHost,
+            long idleTimeout,
+            long maxLifetime) {
+        this.maxIdlePerHost = maxIdlePerHost;
+        this.idleTimeout = idleTimeout;
+        this.maxLifetime = maxLifetime;
+    }
+
+    @Override
+    public HttpURLConnection openConnection(URL url, Proxy proxy)
+            throws IOException {
+        if (!url.getProtocol().equals("https")) {
+            return (HttpURLConnection) url.openConnection(proxy);
+        }
+        return new PooledHttpsConnection(url, proxy, this);
+    }
+
+    @Override
+    public void release(HttpURLConnection conn) {
+        if (conn instanceof PooledHttpsConnection) {
+            ((PooledHttpsConnection) conn).release();
+        } else {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Closes idle connections that have passed their idle timeout or
+     * maximum lifetime.
+     */
+    public void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Deque<PooledSocket> pool : pools.values()) {
+            sweep(pool, now);
+        }
+    }
+
+    /**
+     * Closes all idle connections. Leased connections are closed when
+     * they are returned.
+     */
+    public void close() {
+        for (Deque<PooledSocket> pool : pools.values()) {
+            synchronized (pool) {
+                PooledSocket s;
+                while ((s = pool.pollFirst()) != null) {
+                    evict(s);
+                }
+            }
+        }
+    }
+
+    // Pool metrics
+
+    /**
+     * @return The number of idle connections across all hosts
+     */
+    public int getIdleCount() {
+        int count = 0;
+        for (Deque<PooledSocket> pool : pools.values()) {
+            synchronized (pool) {
+                count += pool.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of connections currently in use
+     */
+    public int getLeasedCount() {
+        return leasedCount.get();
+    }
+
+    /**
+     * @return The number of connections opened since the pool was created
+     */
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    /**
+     * @return The number of times an idle connection was reused
+     */
+    public long getReusedCount() {
+        return reusedCount.get();
+    }
+
+    /**
+     * @return The number of idle connections closed by eviction
+     */
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    /**
+     * Leases a connection to the URL's host, reusing an idle one if
+     * allowed and available. Only the owner can return it.
+     */
+    PooledSocket lease(
+            Object owner,
+            URL url,
+            Proxy proxy,
+            SSLSocketFactory factory,
+            HostnameVerifier verifier,
+            int connectTimeout,
+            boolean allowReuse)
+            throws IOException {
+        String host = url.getHost();
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        PoolKey key = new PoolKey(host, port, proxy, factory, verifier);
+
+        PooledSocket s = allowReuse ? takeIdle(key) : null;
+        if (s != null) {
+            reusedCount.incrementAndGet();
+        } else {
+            s = open(key, host, port, proxy, factory, verifier,
+                    connectTimeout);
+            createdCount.incrementAndGet();
+        }
+        s.owner.set(owner);
+        leasedCount.incrementAndGet();
+        return s;
+    }
+
+    /**
+     * Returns a leased connection whose response has been fully read.
+     */
+    void recycle(PooledSocket s, Object owner) {
+        if (!s.owner.compareAndSet(owner, null)) {
+            return; // Already returned
+        }
+        leasedCount.decrementAndGet();
+        long now = System.currentTimeMillis();
+        if (!isExpired(s, now)) {
+            Deque<PooledSocket> pool = pools.get(s.key);
+            if (pool == null) {
+                Deque<PooledSocket> newPool = new ArrayDeque<PooledSocket>();
+                pool = pools.putIfAbsent(s.key, newPool);
+                if (pool == null) {
+                    pool = newPool;
+                }
+            }
+            sweep(pool, now);
+            synchronized (pool) {
+                if (pool.size() < maxIdlePerHost) {
+                    s.idleSince = now;
+                    s.reused = true;
+                    pool.addFirst(s);
+                    return;
+                }
+            }
+        }
+        evict(s);
+    }
+
+    /**
+     * Closes a leased connection that cannot be reused. A connection may
+     * be discarded from another thread, to cancel its request, so one
+     * that has already been returned, and perhaps leased again, is left
+     * alone.
+     */
+    void discard(PooledSocket s, Object owner) {
+        if (!s.owner.compareAndSet(owner, null)) {
+            return; // Already returned
+        }
+        leasedCount.decrementAndGet();
+        s.close();
+    }
+
+    // Takes the most recently used idle connection, so that the others
+    // can reach their idle timeout when the load drops.
+    private PooledSocket takeIdle(PoolKey key) {
+        Deque<PooledSocket> pool = pools.get(key);
+        if (pool == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        sweep(pool, now);
+        while (true) {
+            PooledSocket s;
+            synchronized (pool) {
+                s = pool.pollFirst();
+            }
+            if (s == null) {
+                return null;
+            }
+            if (!isExpired(s, now) && !s.isStale(now)) {
+                return s;
+            }
+            evict(s);
+        }
+    }
+
+    // Closes a host's idle connections that have passed their idle
+    // timeout or maximum lifetime. Since connections are taken from the
+    // front, the ones at the back would otherwise never be looked at
+    // while the host is busy.
+    private void sweep(Deque<PooledSocket> pool, long now) {
+        synchronized (pool) {
+            Iterator<PooledSocket> it = pool.iterator();
+            while (it.hasNext()) {
+                PooledSocket s = it.next();
+                if (isExpired(s, now)) {
+                    it.remove();
+                    evict(s);
+                }
+            }
+        }
+    }
+
+    private boolean isExpired(PooledSocket s, long now) {
+        return now - s.createdAt >= maxLifetime
+                || (s.idleSince != 0 && now - s.idleSince >= idleTimeout)
+                || s.socket.isClosed();
+    }
+
+    private void evict(PooledSocket s) {
+        evictedCount.incrementAndGet();
+        s.close();
+    }
+
+    // Opens and handshakes a new TLS connection, tunneling through
+    // the proxy if there is one.
+    private static PooledSocket open(
+            PoolKey key,
+            String host,
+            int port,
+            Proxy proxy,
+            SSLSocketFactory factory,
+            HostnameVerifier verifier,
+            int connectTimeout)
+            throws IOException {
+        Socket raw;
+        if (proxy != null && proxy.type() == Proxy.Type.HTTP) {
+            raw = new Socket();
+            raw.connect(proxy.address(), connectTimeout);
+            tunnel(raw, host, port);
+        } else {
+            raw = proxy != null ? new Socket(proxy) : new Socket();
+            raw.connect(new InetSocketAddress(host, port), connectTimeout);
+        }
+
+        SSLSocket socket = (SSLSocket) factory.createSocket(
+                raw, host, port, true);
+        try {
+            if (verifier == HttpsURLConnection.getDefaultHostnameVerifier()) {
+                // Let the TLS layer check the host name, as the JDK does.
+                SSLParameters params = socket.getSSLParameters();
+                params.setEndpointIdentificationAlgorithm("HTTPS");
+                socket.setSSLParameters(params);
+                socket.startHandshake();
+            } else {
+                socket.startHandshake();
+                if (!verifier.verify(host, socket.getSession())) {
+                    throw new SSLPeerUnverifiedException(
+                            "Host name " + host + " was not verified.");
+                }
+            }
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+        return new PooledSocket(key, socket);
+    }
+
+    // Sets up an HTTP CONNECT tunnel through a web proxy.
+    private static void tunnel(Socket raw, String host, int port)
+            throws IOException {
+        String target = host + ":" + port;
+        OutputStream out = raw.getOutputStream();
+        out.write(("CONNECT " + target + " HTTP/1.1\r\nHost: " + target
+                + "\r\n\r\n").getBytes("ISO-8859-1"));
+        out.flush();
+
+        // Read unbuffered, so no TLS bytes are consumed with the reply.
+        InputStream in = raw.getInputStream();
+        String status = PooledHttpsConnection.readLine(in);
+        String line = status;
+        while (line != null && !line.isEmpty()) {
+            line = PooledHttpsConnection.readLine(in);
+        }
+        if (status == null || !status.matches("HTTP/1\\.\\d 2\\d\\d.*")) {
+            raw.close();
+            throw new IOException("Unable to tunnel through proxy: " + status);
+        }
+    }
+
+    /**
+     * Identifies the connections that are interchangeable. The factory
+     * and verifier are compared by identity, since an equal-looking one
+     * may trust different certificates.
+     */
+    private static final class PoolKey {
+        private final String host;
+        private final int port;
+        private final String proxyAddress;
+        private final SSLSocketFactory factory;
+        private final HostnameVerifier verifier;
+
+        private PoolKey(
+                String host,
+                int port,
+                Proxy proxy,
+                SSLSocketFactory factory,
+                HostnameVerifier verifier) {
+            this.host = host;
+            this.port = port;
+            this.proxyAddress = proxy != null
+                    && proxy.type() != Proxy.Type.DIRECT
+                    ? proxy.type() + " " + proxy.address() : null;
+            this.factory = factory;
+            this.verifier = verifier;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof PoolKey)) {
+                return false;
+            }
+            PoolKey other = (PoolKey) obj;
+            return host.equals(other.host) && port == other.port
+                    && (proxyAddress == null ? other.proxyAddress == null
+                            : proxyAddress.equals(other.proxyAddress))
+                    && factory == other.factory
+                    && verifier == other.verifier;
+        }
+
+        @Override
+        public int hashCode() {
+            return (host.hashCode() * 31 + port) * 31
+                    + System.identityHashCode(factory) * 31
+                    + System.identityHashCode(verifier);
+        }
+    }
+
+    /**
+     * A pooled TLS socket with its buffered streams.
+     */
+    static class PooledSocket {
+        private final PoolKey key;
+        final SSLSocket socket;
+        final InputStream in;
+        final OutputStream out;
+        final long createdAt = System.currentTimeMillis();
+        long idleSince;
+        boolean reused;
+        final AtomicReference<Object> owner = new AtomicReference<Object>();
+
+        private PooledSocket(PoolKey key, SSLSocket socket) throws IOException {
+            this.key = key;
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        // An idle connection is stale if the server has closed it, or has
+        // sent something we didn't ask for. Unread bytes are checked every
+        // time. A close is only noticed by reading, which blocks for 1 ms
+        // when the socket is fine, so that probe is left to connections
+        // idle long enough for the server to have dropped them. A request
+        // on a connection that turns out to be closed is resent on a new
+        // one.
+        private boolean isStale(long now) {
+            try {
+                if (in.available() > 0) {
+                    return true;
+                }
+                if (now - idleSince < probeAfterIdle) {
+                    return false;
+                }
+                int timeout = socket.getSoTimeout();
+                socket.setSoTimeout(1);
+                try {
+                    in.read();
+                    return true;
+                } catch (SocketTimeoutException ex) {
+                    return false;
+                } finally {
+                    socket.setSoTimeout(timeout);
+                }
+            } catch (IOException ex) {
+                return true;
+            }
+        }
+
+        private void close() {
+            try {
+                // Closing a TLS socket waits up to the read timeout for
+                // the server's close_notify, which a stalled server never
+                // sends. The socket is being thrown away, so don't wait.
+                socket.setSoTimeout(1);
+                socket.close();
+            } catch (IOException ex) {
+                // The socket is being thrown away, so ignore it.
+            }
+        }
+    }
+}
@@ -6,6 +6,10 @@ package com.hotdocs.cloud;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
 import java.util.Collection;
 
 /**
@@ -102,6 +106,45 @@ abstract class Request {
         this.templateName = templateName;
     }
     
+    // Builds the URL of the request.
+    URL getUrl(String address, String subscriberId)
+            throws URISyntaxException, MalformedURLException {
+        String path = String.format("%s/%s", getPathPrefix(), subscriberId);
+
+        if (getPackageId() != null) {
+            path += "/" + getPackageId();
+        }
+
+        if (getTemplateName() != null) {
+            path += "/" + getTemplateName();
+        }
+
+        // Use the URI constructor to percent-encode the URL
+        return (new URI("https", address, path, getQuery(), null)).toURL();
+    }
+
+    // Whether the request body may be compressed. Overridden by requests
+    // whose bodies are answers or other compressible text.
+    boolean isCompressible() {
+        return false;
+    }
+
+    // Whether sending the request twice has the same effect as sending it
+    // once, so that it may be retried after a failure that could have
+    // happened after the server received it. GET and PUT requests are
+    // idempotent; POST requests override this if they are.
+    boolean isIdempotent() {
+        String method = getMethod();
+        return method.equals("GET") || method.equals("PUT");
+    }
+
+    // Whether the response depends only on the request, so that it may be
+    // cached and reused for an identical request. Overridden by requests
+    // that only read from their package.
+    boolean isCacheable() {
+        return false;
+    }
+
     // The following methods must be implemented
     // in derived classes.
     abstract String getPathPrefix();
@@ -0,0 +1,233 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate and concurrency of the requests a Client sends, so
+ * that heavy use, such as a batch job, runs at the throughput HotDocs
+ * Cloud Services can sustain instead of swinging between idle and
+ * throttled. All threads that use the Client, or any Client that shares
+ * the limiter, share its limits.
+ *
+ * The rate limit is a token bucket: requests may be sent in bursts of up
+ * to burst requests, and at requestsPerSecond on average. Requests that
+ * would exceed it wait their turn.
+ *
+ * The concurrency limit adapts to how the service responds (additive
+ * increase, multiplicative decrease). Each response that comes back
+ * promptly raises the limit a little, so that it grows by about one each
+ * time a full limit's worth of requests completes. A 429 or 503 response,
+ * a timeout, or response times rising to twice the usual for the
+ * request type cuts the limit by a quarter. Response times are compared
+ * as two moving averages, one of the last few responses and one of
+ * many, so a single slow response doesn't count. Cuts are at least
+ * 100 ms apart, so a burst of failures from one overload counts once.
+ * Requests over the limit wait until another request completes.
+ *
+ * A request waits no longer than its total timeout allows. Running out
+ * of it while waiting is the client's own queueing rather than a sign of
+ * overload, so it doesn't cut the limit.
+ */
+public class RequestLimiter {
+
+    private static final int defaultInitialConcurrency = 16;
+    private static final int defaultMaxConcurrency = 256;
+    private static final double decreaseFactor = 0.75;
+    private static final double latencyTolerance = 2;
+    private static final double shortLatencyWeight = 0.25;
+    private static final double longLatencyWeight = 0.02;
+    private static final long decreaseInterval = 100 * 1000 * 1000;
+
+    // Rate limit
+    private final double requestsPerSecond;
+    private final double burst;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    // Concurrency limit
+    private final int minConcurrency = 1;
+    private final int maxConcurrency;
+    private double limit;
+    private int inFlight;
+    private long lastDecrease;
+    private final Map<String, double[]> averageLatency =
+            new HashMap<String, double[]>();
+
+    /**
+     * RequestLimiter constructor with no rate limit, and a concurrency
+     * limit that starts at 16 and may grow to 256.
+     */
+    public RequestLimiter() {
+        this(0, 0, defaultInitialConcurrency, defaultMaxConcurrency);
+    }
+
+    /**
+     * RequestLimiter constructor
+     *
+     * @param requestsPerSecond
+     *            The average rate at which requests may be sent, or 0 for
+     *            no rate limit
+     * @param burst
+     *            The most requests that may be sent at once when the
+     *            rate limit hasn't been reached for a while
+     * @param initialConcurrency
+     *            The starting limit on requests in flight
+     * @param maxConcurrency
+     *            The most the limit on requests in flight may grow to
+     */
+    public RequestLimiter(
+            double requestsPerSecond,
+            int burst,
+            int initialConcurrency,
+            int maxConcurrency) {
+        if (initialConcurrency < 1 || maxConcurrency < initialConcurrency) {
+            throw new IllegalArgumentException(
+                    "Concurrency must be at least 1 and at most the maximum.");
+        }
+        this.requestsPerSecond = requestsPerSecond;
+        this.burst = Math.max(burst, 1);
+        this.tokens = this.burst;
+        this.limit = initialConcurrency;
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * @return The current limit on requests in flight
+     */
+    public synchronized int getConcurrencyLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return The number of requests in flight
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Waits until a request may be sent under both limits, or until the
+     * timeout is up or the request is cancelled.
+     *
+     * @param timeoutMillis
+     *            The most milliseconds to wait, or Long.MAX_VALUE for no
+     *            limit
+     * @param metrics
+     *            The request's metrics, whose cancel wakes the wait
+     * @return Whether the request may be sent. If not, release mustn't be
+     *         called.
+     * @throws InterruptedIOException
+     */
+    boolean acquire(long timeoutMillis, RequestMetrics metrics)
+            throws InterruptedIOException {
+        long start = System.nanoTime();
+        long timeout = timeoutMillis >= Long.MAX_VALUE / 1000000
+                ? Long.MAX_VALUE : timeoutMillis * 1000000;
+        metrics.setWaitingOn(this);
+        try {
+            long wait = reserve();
+            if (wait > timeout) {
+                return false; // The token is spent anyway
+            }
+            synchronized (this) {
+                // Wait out the rate limit, then for room under the
+                // concurrency limit.
+                while (!metrics.isCancelled()) {
+                    long elapsed = System.nanoTime() - start;
+                    if (elapsed >= wait && inFlight < (int) limit) {
+                        inFlight++;
+                        return true;
+                    }
+                    long left = (elapsed < wait ? wait : timeout) - elapsed;
+                    if (left <= 0) {
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                }
+                return false;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted while waiting to send a request.");
+        } finally {
+            metrics.setWaitingOn(null);
+        }
+    }
+
+    /**
+     * Gives back a permit from acquire without sending a request, and lets
+     * a waiting request go.
+     */
+    synchronized void cancel() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Records the outcome of a request sent after acquire, and lets a
+     * waiting request go.
+     *
+     * @param requestType
+     * @param nanos
+     *            The time spent waiting for the response
+     * @param overloaded
+     *            Whether the response or failure showed the service to be
+     *            overloaded
+     */
+    synchronized void release(String requestType, long nanos,
+            boolean overloaded) {
+        boolean atLimit = inFlight >= (int) limit;
+        inFlight--;
+
+        // Throttled responses and timeouts say nothing about how long a
+        // request usually takes, so only other responses are averaged.
+        // Slow ones are included, so the long average follows a lasting
+        // change.
+        if (!overloaded) {
+            double[] average = averageLatency.get(requestType);
+            if (average == null) {
+                averageLatency.put(requestType,
+                        new double[] { nanos, nanos });
+            } else {
+                average[0] += (nanos - average[0]) * shortLatencyWeight;
+                average[1] += (nanos - average[1]) * longLatencyWeight;
+                overloaded = average[0] > average[1] * latencyTolerance;
+            }
+        }
+
+        long now = System.nanoTime();
+        if (overloaded) {
+            if (now - lastDecrease >= decreaseInterval) {
+                limit = Math.max(limit * decreaseFactor, minConcurrency);
+                lastDecrease = now;
+            }
+        } else if (atLimit) {
+            // Only grow the limit when it is what held requests back.
+            limit = Math.min(limit + 1 / limit, maxConcurrency);
+        }
+        notifyAll();
+    }
+
+    // Takes a token from the rate limit bucket, and returns the
+    // nanoseconds until it may be used. Tokens may be borrowed from the
+    // future, so that waiting requests are served in turn.
+    private synchronized long reserve() {
+        if (requestsPerSecond <= 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(burst,
+                tokens + (now - lastRefill) / 1e9 * requestsPerSecond);
+        lastRefill = now;
+        tokens--;
+        return tokens >= 0 ? 0 : (long) (-tokens / requestsPerSecond * 1e9);
+    }
+}
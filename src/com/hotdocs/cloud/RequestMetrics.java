@@ -0,0 +1,319 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The metrics of one request: how long each phase took, how many bytes
+ * were sent and received, the final status code, and whether the package
+ * had to be uploaded and the request retried.
+ *
+ * The client fills these in as the request runs, and passes them to its
+ * MetricsCollector when the request completes. Phases that happen more
+ * than once, such as when the request is retried, are added up. For
+ * sendRequestStreaming, the response is read after the request
+ * completes, so ReadResponse and the bytes received aren't recorded.
+ *
+ * A hedge attempt has metrics of its own, which are passed to the
+ * collector when the attempt finishes, whether it won or lost. If it
+ * won, the response is read under the request's metrics.
+ */
+public final class RequestMetrics {
+
+    private final String requestType;
+    private final long startNanos = System.nanoTime();
+    private final long[] phaseNanos = new long[Phase.values().length];
+    private int statusCode = -1;
+    private long bytesSent;
+    private long bytesReceived;
+    private boolean packageUploaded;
+    private int retries;
+    private Exception exception;
+    private boolean hedged;
+    private boolean hedgeWon;
+    private boolean cacheHit;
+    private final boolean hedgeAttempt;
+
+    // The cached response being revalidated, whose validators are sent
+    // with the request
+    private volatile CachedResponse revalidating;
+
+    // The connection in use, so that a hedged attempt that loses can be
+    // cancelled from another thread
+    private volatile HttpURLConnection connection;
+    private volatile boolean cancelled;
+    private volatile Object waitingOn; // The lock a wait is on, if any
+
+    RequestMetrics(Request request) {
+        this(request, false);
+    }
+
+    RequestMetrics(Request request, boolean hedgeAttempt) {
+        this.requestType = request.getClass().getSimpleName();
+        this.hedgeAttempt = hedgeAttempt;
+        Arrays.fill(phaseNanos, -1);
+    }
+
+    // Getters
+
+    /**
+     * @return The simple class name of the request, e.g.
+     *         AssembleDocumentRequest
+     */
+    public String getRequestType() {
+        return requestType;
+    }
+
+    /**
+     * @param phase
+     * @return The nanoseconds spent in the phase, or -1 if the request
+     *         didn't go through it
+     */
+    public long getNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+
+    /**
+     * @return The HTTP status code of the response, or -1 if there was no
+     *         response
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return The number of request body bytes written, after compression
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return The number of response body bytes read, before decompression
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * @return Whether the package was uploaded, or an upload by another
+     *         thread was waited for, because it wasn't in the cache
+     */
+    public boolean isPackageUploaded() {
+        return packageUploaded;
+    }
+
+    /**
+     * @return The number of times the request was sent again
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * @return Whether a hedge attempt was sent because the response was
+     *         slow
+     */
+    public boolean isHedged() {
+        return hedged;
+    }
+
+    /**
+     * @return Whether the response came from the hedge attempt
+     */
+    public boolean isHedgeWon() {
+        return hedgeWon;
+    }
+
+    /**
+     * @return Whether these are the metrics of a hedge attempt rather
+     *         than of a request
+     */
+    public boolean isHedgeAttempt() {
+        return hedgeAttempt;
+    }
+
+    /**
+     * @return Whether the response came from the response cache, either
+     *         because it was fresh or because the server said it hadn't
+     *         changed
+     */
+    public boolean isCacheHit() {
+        return cacheHit;
+    }
+
+    /**
+     * @return The exception the request failed with, or null
+     */
+    public Exception getException() {
+        return exception;
+    }
+
+    // Recording, by the client
+
+    void addNanos(Phase phase, long nanos) {
+        int i = phase.ordinal();
+        phaseNanos[i] = Math.max(phaseNanos[i], 0) + nanos;
+    }
+
+    // Adds the time since start to a phase.
+    void addSince(Phase phase, long start) {
+        addNanos(phase, System.nanoTime() - start);
+    }
+
+    void setStatusCode(int statusCode) {
+        this.statusCode = statusCode;
+    }
+
+    void setPackageUploaded() {
+        packageUploaded = true;
+    }
+
+    void addRetry() {
+        retries++;
+    }
+
+    void setException(Exception exception) {
+        this.exception = exception;
+    }
+
+    void setHedged(boolean hedgeWon) {
+        this.hedged = true;
+        this.hedgeWon = hedgeWon;
+    }
+
+    void setCacheHit() {
+        cacheHit = true;
+    }
+
+    CachedResponse getRevalidating() {
+        return revalidating;
+    }
+
+    void setRevalidating(CachedResponse revalidating) {
+        this.revalidating = revalidating;
+    }
+
+    // Records the connection an attempt is using, and disconnects it if
+    // the attempt has been cancelled.
+    void setConnection(HttpURLConnection connection) throws IOException {
+        this.connection = connection;
+        if (cancelled) {
+            connection.disconnect();
+        }
+        checkCancelled();
+    }
+
+    // Fails an attempt that has been cancelled before it could start
+    // something slow, like waiting for a permit or uploading a package.
+    void checkCancelled() throws IOException {
+        if (cancelled) {
+            throw new IOException("The request was cancelled.");
+        }
+    }
+
+    // Cancels the attempt by disconnecting its connection, which makes
+    // the thread using it fail, or by waking it if it is waiting.
+    void cancel() {
+        cancelled = true;
+        HttpURLConnection conn = connection;
+        if (conn != null) {
+            conn.disconnect();
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+        Object lock = waitingOn;
+        if (lock != null) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    // Sets the lock that the attempt is about to wait on, so that cancel
+    // can wake it. The waiter must check isCancelled after setting it.
+    void setWaitingOn(Object lock) {
+        waitingOn = lock;
+    }
+
+    // Waits before a retry, waking early if the attempt is cancelled.
+    synchronized void sleep(long millis) throws InterruptedException {
+        long end = System.nanoTime() + millis * 1000000;
+        long left;
+        while (!cancelled && (left = end - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    // The time since the request started, which its total timeout
+    // limits.
+    long getElapsedMillis() {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    void finish() {
+        phaseNanos[Phase.Total.ordinal()] = System.nanoTime() - startNanos;
+    }
+
+    // Wraps a request body stream so the bytes written are counted.
+    OutputStream countSent(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesSent++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytesSent += len;
+            }
+        };
+    }
+
+    // Wraps a response body stream so the bytes read are counted.
+    InputStream countReceived(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = in.read();
+                if (b != -1) {
+                    bytesReceived++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = in.read(b, off, len);
+                if (n > 0) {
+                    bytesReceived += n;
+                }
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = in.skip(n);
+                bytesReceived += skipped;
+                return skipped;
+            }
+        };
+    }
+}
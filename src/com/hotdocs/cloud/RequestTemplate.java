@@ -0,0 +1,212 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The constant parts of an AssembleDocument request, for assembling one
+ * template many times with different answers.
+ *
+ * The query string and the canonicalized HMAC parameters are computed
+ * once, when the template is created, and the percent-encoded URL is
+ * computed on first use and then reused. The requests it creates only
+ * add their answers; the client adds the timestamp when it signs them.
+ * A request whose settings are changed falls back to building its own
+ * query, URL and HMAC parameters, starting from the template's settings.
+ *
+ * A RequestTemplate is immutable and can be shared between threads.
+ */
+public final class RequestTemplate {
+
+    private final String packageId;
+    private final String packageFile;
+    private final String billingRef;
+    private final String templateName;
+    private final OutputFormat format;
+    private final Map<String, String> settings;
+    private final String query;
+    private final Collection<Object> hmacParams;
+    private volatile CachedUrl cachedUrl;
+
+    /**
+     * RequestTemplate constructor
+     *
+     * @param packageId
+     *            The ID of the package in the HotDocs Cloud Services cache
+     * @param packageFile
+     *            The local file path of the package
+     * @param billingRef
+     *            The billing reference, which may be null
+     * @param templateName
+     *            The name of the template to assemble
+     * @param format
+     *            The output format
+     * @param settings
+     *            The assembly settings, which may be null. The map is
+     *            copied, so later changes to it have no effect.
+     */
+    public RequestTemplate(
+            String packageId,
+            String packageFile,
+            String billingRef,
+            String templateName,
+            OutputFormat format,
+            Map<String, String> settings) {
+        this.packageId = packageId;
+        this.packageFile = packageFile;
+        this.billingRef = billingRef;
+        this.templateName = templateName;
+        this.format = format;
+        this.settings = settings != null
+                ? new HashMap<String, String>(settings)
+                : new HashMap<String, String>();
+
+        AssembleDocumentRequest prototype = new AssembleDocumentRequest(
+                packageId, packageFile, billingRef, templateName, null,
+                format);
+        for (Map.Entry<String, String> setting : this.settings.entrySet()) {
+            prototype.setSetting(setting.getKey(), setting.getValue());
+        }
+        this.query = prototype.getQuery();
+
+        // Canonicalizing the parameters and then including the result as
+        // a single string parameter gives the same canonical string, so
+        // the request parameters are only canonicalized here.
+        this.hmacParams = Collections.<Object>singletonList(
+                Hmac.canonicalize(prototype.getHmacParams()));
+    }
+
+    /**
+     * Convenience constructor for a template with no settings.
+     */
+    public RequestTemplate(
+            String packageId,
+            String packageFile,
+            String billingRef,
+            String templateName,
+            OutputFormat format) {
+        this(packageId, packageFile, billingRef, templateName, format,
+                new HashMap<String, String>());
+    }
+
+    /**
+     * Creates a request that assembles the template with the given answers.
+     *
+     * @param answers
+     *            The XML answer set
+     * @return The request
+     */
+    public AssembleDocumentRequest newRequest(String answers) {
+        return new TemplatedRequest(new StringInputStreamGetter(answers));
+    }
+
+    /**
+     * Creates a request that assembles the template with answers that are
+     * read from an InputStreamGetter each time the request is sent.
+     *
+     * @param answers
+     *            Gets the UTF-8 answer XML
+     * @return The request
+     */
+    public AssembleDocumentRequest newRequest(InputStreamGetter answers) {
+        return new TemplatedRequest(answers);
+    }
+
+    // Getters
+
+    public String getPackageId() {
+        return packageId;
+    }
+
+    public String getTemplateName() {
+        return templateName;
+    }
+
+    public OutputFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * A URL and the client values it was built from.
+     */
+    private static class CachedUrl {
+        private final String address;
+        private final String subscriberId;
+        private final URL url;
+
+        private CachedUrl(String address, String subscriberId, URL url) {
+            this.address = address;
+            this.subscriberId = subscriberId;
+            this.url = url;
+        }
+    }
+
+    /**
+     * An AssembleDocument request that takes everything but its answers
+     * from the template, until one of its settings is changed.
+     */
+    private class TemplatedRequest extends AssembleDocumentRequest {
+
+        private boolean customized;
+
+        private TemplatedRequest(InputStreamGetter answers) {
+            super(RequestTemplate.this.packageId,
+                    RequestTemplate.this.packageFile,
+                    RequestTemplate.this.billingRef,
+                    RequestTemplate.this.templateName,
+                    null,
+                    RequestTemplate.this.format);
+            this.contentStreamGetter = answers;
+        }
+
+        // Copies the template's settings on the first change, after which
+        // the query, URL and HMAC parameters are built as usual.
+        @Override
+        public void setSetting(String name, String value) {
+            if (!customized) {
+                customized = true;
+                for (Map.Entry<String, String> setting : settings.entrySet()) {
+                    super.setSetting(setting.getKey(), setting.getValue());
+                }
+            }
+            super.setSetting(name, value);
+        }
+
+        // Reuses the last URL built if the client's address and
+        // subscriber ID are the same.
+        @Override
+        URL getUrl(String address, String subscriberId)
+                throws URISyntaxException, MalformedURLException {
+            if (customized) {
+                return super.getUrl(address, subscriberId);
+            }
+            CachedUrl cached = cachedUrl;
+            if (cached != null && cached.address.equals(address)
+                    && cached.subscriberId.equals(subscriberId)) {
+                return cached.url;
+            }
+            URL url = super.getUrl(address, subscriberId);
+            cachedUrl = new CachedUrl(address, subscriberId, url);
+            return url;
+        }
+
+        @Override
+        String getQuery() {
+            return customized ? super.getQuery() : query;
+        }
+
+        @Override
+        Collection<Object> getHmacParams() {
+            return customized ? super.getHmacParams() : hmacParams;
+        }
+    }
+}
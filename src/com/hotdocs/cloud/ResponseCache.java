@@ -0,0 +1,43 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+/**
+ * Stores responses to requests whose response depends only on the
+ * request, i.e. GetComponentInfoRequest and GetInterviewRequest, so that
+ * a Client can answer a repeated request without sending it.
+ *
+ * Keys are built by the client from the request's method, URL and body.
+ * The cache decides what to keep and for how long; the client decides
+ * whether a response it gets back is still fresh, and revalidates one
+ * that isn't with HotDocs Cloud Services if it has an ETag or
+ * Last-Modified date. So a cache should keep returning a response after
+ * it expires, for as long as it has room for it.
+ *
+ * Implementations must be thread-safe, and must not throw: a cache that
+ * can't read or write an entry should treat it as missing.
+ */
+public interface ResponseCache {
+    /**
+     * @param key
+     * @return The cached response, fresh or not, or null if there is none
+     */
+    CachedResponse get(String key);
+
+    /**
+     * Stores a response, replacing any already stored under the key.
+     *
+     * @param key
+     * @param response
+     */
+    void put(String key, CachedResponse response);
+
+    /**
+     * Removes the response stored under the key, if there is one.
+     *
+     * @param key
+     */
+    void remove(String key);
+}
@@ -56,6 +56,11 @@ public class ResumeSessionRequest extends Request {
         return "POST";
     }
 
+    @Override
+    boolean isCompressible() {
+        return true;
+    }
+
     @Override
     Collection<Object> getHmacParams() {
         return Arrays.asList((Object)snapshot);
@@ -0,0 +1,233 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether a Client retries a request that failed for a reason
+ * that may pass, and how long it waits first.
+ *
+ * A request is retried when:
+ * <ul>
+ * <li>the connection couldn't be opened, or the response is 429 (Too
+ * Many Requests) or 503 (Service Unavailable), since the server didn't
+ * act on it; or</li>
+ * <li>the request is idempotent, and the connection was reset or timed
+ * out, or the response is 500, 502 or 504. GetComponentInfoRequest,
+ * GetInterviewRequest and package uploads are idempotent. Assembling a
+ * document or creating a session is not, so those requests aren't resent
+ * once the server may have received them.</li>
+ * </ul>
+ *
+ * The wait before each retry is chosen at random between zero and an
+ * exponentially growing limit ("full jitter"), so clients that failed
+ * together don't retry together. If the response has a Retry-After
+ * header, that wait is used instead, unless it is longer than the
+ * maximum delay, in which case the request isn't retried.
+ *
+ * Every retry also takes a token from a budget that refills at a fixed
+ * rate. When the budget is empty, failures are returned to the caller
+ * instead of being retried, so an outage doesn't multiply the load on
+ * HotDocs Cloud Services. Clients that share a policy share its budget.
+ *
+ * Each attempt is signed afresh, with a new x-hd-date.
+ */
+public class RetryPolicy {
+
+    private static final int defaultMaxAttempts = 3;
+    private static final long defaultBaseDelay = 100;
+    private static final long defaultMaxDelay = 10 * 1000;
+    private static final int defaultBudget = 20;
+    private static final double defaultBudgetPerSecond = 2;
+
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final double budgetSize;
+    private final double budgetPerSecond;
+
+    // Retry budget, refilled lazily when a token is taken
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * RetryPolicy constructor with the defaults: 3 attempts, a 100 ms
+     * base delay, a 10 second maximum delay, and a budget of 20 retries
+     * that refills at 2 per second.
+     */
+    public RetryPolicy() {
+        this(defaultMaxAttempts, defaultBaseDelay, defaultMaxDelay,
+                defaultBudget, defaultBudgetPerSecond);
+    }
+
+    /**
+     * RetryPolicy constructor
+     *
+     * @param maxAttempts
+     *            The most times a request is sent, including the first
+     * @param baseDelay
+     *            Milliseconds; the wait before the nth retry is at most
+     *            baseDelay * 2^(n-1)
+     * @param maxDelay
+     *            The longest wait in milliseconds, and the longest
+     *            Retry-After that is honored
+     * @param budget
+     *            The most retries that can happen in a burst
+     * @param budgetPerSecond
+     *            The rate at which the budget refills
+     */
+    public RetryPolicy(
+            int maxAttempts,
+            long baseDelay,
+            long maxDelay,
+            int budget,
+            double budgetPerSecond) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException(
+                    "There must be at least 1 attempt.");
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.budgetSize = budget;
+        this.budgetPerSecond = budgetPerSecond;
+        this.tokens = budget;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @return The number of retries the budget allows right now
+     */
+    public synchronized int getBudgetRemaining() {
+        refill();
+        return (int) tokens;
+    }
+
+    /**
+     * Gets the wait before retrying a request whose attempt threw an
+     * exception.
+     *
+     * @param request
+     * @param ex
+     * @param attempt
+     *            The number of the attempt that failed, from 1
+     * @return Milliseconds to wait, or -1 to not retry
+     */
+    long getDelay(Request request, IOException ex, int attempt) {
+        if (ex instanceof TotalTimeoutException) {
+            return -1; // No time is left for another attempt
+        }
+        boolean notReceived = ex instanceof ConnectException
+                || ex instanceof NoRouteToHostException;
+        boolean transientFailure = ex instanceof SocketException
+                || ex instanceof SocketTimeoutException
+                || ex instanceof EOFException;
+        if (notReceived || (transientFailure && request.isIdempotent())) {
+            return getDelay(attempt, -1);
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the wait before retrying a request whose attempt got an error
+     * response.
+     *
+     * @param request
+     * @param conn
+     * @param attempt
+     *            The number of the attempt that failed, from 1
+     * @return Milliseconds to wait, or -1 to not retry
+     * @throws IOException
+     */
+    long getDelay(Request request, HttpURLConnection conn, int attempt)
+            throws IOException {
+        int status = conn.getResponseCode();
+        boolean notProcessed = status == 429 || status == 503;
+        boolean transientError = status == 500 || status == 502
+                || status == 504;
+        if (notProcessed || (transientError && request.isIdempotent())) {
+            long retryAfter = getRetryAfter(
+                    conn.getHeaderField("Retry-After"));
+            if (retryAfter > maxDelay) {
+                return -1;
+            }
+            return getDelay(attempt, retryAfter);
+        }
+        return -1;
+    }
+
+    // Gets the jittered backoff, or the server's Retry-After if it gave
+    // one, if there are attempts and budget left.
+    private long getDelay(int attempt, long retryAfter) {
+        if (attempt >= maxAttempts || !takeToken()) {
+            return -1;
+        }
+        if (retryAfter > -1) {
+            return retryAfter;
+        }
+        long limit = Math.min(baseDelay << Math.min(attempt - 1, 30),
+                maxDelay);
+        return ThreadLocalRandom.current().nextLong(limit + 1);
+    }
+
+    private synchronized boolean takeToken() {
+        refill();
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(budgetSize,
+                tokens + (now - lastRefill) / 1e9 * budgetPerSecond);
+        lastRefill = now;
+    }
+
+    /**
+     * Parses a Retry-After header, which is either a number of seconds
+     * or an HTTP date.
+     *
+     * @param value
+     * @return Milliseconds, or -1 if there is no valid value
+     */
+    static long getRetryAfter(String value) {
+        if (value == null) {
+            return -1;
+        }
+        value = value.trim();
+        try {
+            long seconds = Long.parseLong(value);
+            return Math.min(Math.max(seconds, 0), Long.MAX_VALUE / 1000)
+                    * 1000;
+        } catch (NumberFormatException ex) {
+            // Not a number of seconds, so try a date.
+        }
+        try {
+            long at = ZonedDateTime.parse(value,
+                    DateTimeFormatter.RFC_1123_DATE_TIME)
+                    .toInstant().toEpochMilli();
+            return Math.max(at - System.currentTimeMillis(), 0);
+        } catch (DateTimeParseException ex) {
+            return -1;
+        }
+    }
+}
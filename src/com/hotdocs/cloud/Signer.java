@@ -0,0 +1,172 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Signs HotDocs Cloud Services requests with a subscriber's signing key.
+ *
+ * The key is encoded once, and initialized Mac instances are pooled and
+ * reused, so signing doesn't repeat the provider lookup and key setup
+ * for every request. A Signer is thread-safe; the pool grows to the
+ * number of threads that sign at the same time.
+ *
+ * The canonicalized parameters are encoded as UTF-8 straight into each
+ * Mac's own buffer, so the canonical string and its byte array are
+ * never built.
+ */
+class Signer {
+
+    private final String signingKey;
+    private final SecretKeySpec key;
+    private final Queue<MacWriter> writers =
+            new ConcurrentLinkedQueue<MacWriter>();
+
+    /**
+     * Signer constructor
+     * 
+     * @param signingKey
+     *            The subscriber's unique signing key
+     */
+    Signer(String signingKey) {
+        this.signingKey = signingKey;
+        key = new SecretKeySpec(
+                signingKey.getBytes(StandardCharsets.UTF_8), "HmacSHA1");
+    }
+
+    /**
+     * Creates a BASE64-encoded HMAC-SHA1 hash from a
+     * collection of parameters.
+     * 
+     * @param params
+     *            The parameters to be hashed
+     * @return The BASE64-encoded HMAC
+     * @throws HmacException
+     */
+    String sign(Iterable<Object> params) throws HmacException {
+        MacWriter writer = takeWriter();
+        try {
+            Hmac.canonicalize(params, writer);
+            return writer.finish();
+        } finally {
+            // finish leaves the Mac initialized with the same key.
+            writers.offer(writer);
+        }
+    }
+
+    /**
+     * @return True if this Signer signs with the given key
+     */
+    boolean hasKey(String signingKey) {
+        return this.signingKey.equals(signingKey);
+    }
+
+    private MacWriter takeWriter() throws HmacException {
+        MacWriter writer = writers.poll();
+        if (writer != null) {
+            return writer;
+        }
+        try {
+            Mac mac = Mac.getInstance("HmacSHA1");
+            mac.init(key);
+            return new MacWriter(mac);
+        } catch (NoSuchAlgorithmException | InvalidKeyException ex) {
+            throw new HmacException(ex.getClass().getName()
+                    + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * A CanonicalWriter that encodes UTF-8 into a small buffer and passes
+     * it to a Mac each time the buffer fills.
+     */
+    private static class MacWriter extends CanonicalWriter {
+        private final Mac mac;
+        private final byte[] buffer = new byte[512];
+        private final byte[] result;
+        private int length;
+
+        private MacWriter(Mac mac) {
+            this.mac = mac;
+            this.result = new byte[mac.getMacLength()];
+        }
+
+        @Override
+        void reset() {
+            super.reset();
+            mac.reset();
+            length = 0;
+        }
+
+        private String finish() throws HmacException {
+            flush();
+            try {
+                mac.doFinal(result, 0);
+            } catch (ShortBufferException ex) {
+                throw new HmacException(ex.getClass().getName()
+                        + ": " + ex.getMessage());
+            }
+            return Base64.getEncoder().encodeToString(result);
+        }
+
+        @Override
+        protected void writeAscii(char c) {
+            if (length == buffer.length) {
+                flush();
+            }
+            buffer[length++] = (byte) c;
+        }
+
+        @Override
+        protected void writeString(String s) {
+            if (s == null) {
+                s = "null";
+            }
+            int n = s.length();
+            for (int i = 0; i < n; i++) {
+                // Leave room for the longest (4 byte) sequence.
+                if (length > buffer.length - 4) {
+                    flush();
+                }
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    buffer[length++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[length++] = (byte) (0xc0 | (c >> 6));
+                    buffer[length++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < n
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buffer[length++] = (byte) (0xf0 | (cp >> 18));
+                    buffer[length++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    buffer[length++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    buffer[length++] = (byte) (0x80 | (cp & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    // Unpaired surrogates encode as '?', as getBytes does.
+                    buffer[length++] = (byte) '?';
+                } else {
+                    buffer[length++] = (byte) (0xe0 | (c >> 12));
+                    buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buffer[length++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+        }
+
+        private void flush() {
+            mac.update(buffer, 0, length);
+            length = 0;
+        }
+    }
+}
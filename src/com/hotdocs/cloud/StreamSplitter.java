@@ -7,6 +7,7 @@ package com.hotdocs.cloud;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 
 /**
  * This class is a helper for the MultipartMimeParser class.
@@ -27,14 +28,26 @@ class StreamSplitter {
     private int physicalSize;
     private InputStream streamIn;
 
+    // Search state for indexOf
+    private byte[] searchPattern;
+    private int[] searchShift;
+    private byte[] previousPattern;
+    private int[] previousShift;
+    private int scanned; // Bytes from head known not to start the pattern
+
     StreamSplitter() {
         buffer = new byte[defaultBufferSize];
         physicalSize = defaultBufferSize;
     }
 
     StreamSplitter(int bufferSize) {
-        buffer = new byte[bufferSize];
-        physicalSize = bufferSize;
+        this(new byte[bufferSize]);
+    }
+
+    // Uses the given array, e.g. one from a BufferPool, as the ring buffer.
+    StreamSplitter(byte[] buffer) {
+        this.buffer = buffer;
+        physicalSize = buffer.length;
     }
 
     /**
@@ -46,6 +59,7 @@ class StreamSplitter {
         this.streamIn = streamIn;
         head = 0;
         virtualSize = 0;
+        scanned = 0;
     }
 
     /**
@@ -102,6 +116,44 @@ class StreamSplitter {
         return bytesWritten;
     }
 
+    /**
+     * Reads from the input stream into an array until it finds the pattern.
+     * Returns -1 once the pattern is reached, and skips the pattern in the
+     * input.
+     * 
+     * @param b
+     * @param off
+     * @param len
+     * @param pattern
+     * @return The number of bytes read, or -1 at the pattern.
+     * @throws IOException
+     */
+    int readUntilPattern(byte[] b, int off, int len, byte[] pattern)
+            throws IOException {
+        while (true) {
+            int bytesRead = fillFromStream();
+            int indexOfPattern = indexOf(pattern);
+            int available;
+            if (indexOfPattern == 0) {
+                skip(pattern.length);
+                return -1;
+            } else if (indexOfPattern > 0) {
+                available = indexOfPattern;
+            } else {
+                // As in writeUntilPattern, hold back pattern.length-1 bytes
+                // in case they are the start of the pattern.
+                available = virtualSize - (pattern.length - 1);
+                if (available <= 0) {
+                    if (bytesRead == 0) { // End of stream
+                        throw new IOException("Pattern not found.");
+                    }
+                    continue;
+                }
+            }
+            return readToArray(b, off, Math.min(len, available));
+        }
+    }
+
     /**
      * Reads as many bytes as it can to fill the empty space in the buffer.
      * 
@@ -171,6 +223,25 @@ class StreamSplitter {
         return oldVirtualSize - virtualSize;
     }
 
+    /**
+     * Copies N bytes from the front of the buffer into an array.
+     * N must not be greater than the number of bytes available.
+     * 
+     * @param b
+     * @param off
+     * @param count
+     * @return The number of bytes copied.
+     */
+    private int readToArray(byte[] b, int off, int count) {
+        int firstPart = Math.min(count, physicalSize - head);
+        System.arraycopy(buffer, head, b, off, firstPart);
+        if (count > firstPart) {
+            System.arraycopy(buffer, 0, b, off + firstPart, count - firstPart);
+        }
+        skip(count);
+        return count;
+    }
+
     // Add two numbers, wrapping at the end of the buffer.
     private int plus(int i, int j) {
         return (i + j) % buffer.length;
@@ -191,19 +262,104 @@ class StreamSplitter {
     private void skip(int count) {
         head = plus(head, count);
         virtualSize -= count;
+        scanned = Math.max(scanned - count, 0);
     }
 
-    // This uses a naive search algorithm that backtracks after
-    // partial matches, which is fine for our purposes.
+    // Find the pattern in the virtual buffer with the Boyer-Moore-Horspool
+    // algorithm. The search resumes where the previous search for the same
+    // pattern stopped, since the bytes it already ruled out haven't changed.
+    // The buffer is searched as two contiguous segments, the one from head
+    // to the end of the physical buffer and the one that wraps around to
+    // the beginning, so only windows that straddle the wrap point need
+    // wrapped indexing.
     private int indexOf(byte[] pattern) {
-        int count = virtualSize - (pattern.length - 1);
-        for (int i = 0; i < count; i++) {
-            for (int j = 0; getByte(i + j) == pattern[j]; j++) {
-                if (j == pattern.length - 1) {
-                    return i;
-                }
+        int[] shift = getShiftTable(pattern);
+        int last = pattern.length - 1;
+        byte lastByte = pattern[last];
+        int firstSegment = Math.min(virtualSize, physicalSize - head);
+        int end = virtualSize - pattern.length; // Last possible match
+        int i = scanned;
+
+        // Windows within the first segment
+        int end1 = Math.min(end, firstSegment - pattern.length);
+        while (i <= end1) {
+            byte b = buffer[head + i + last];
+            if (b == lastByte && matchesAt(head + i, pattern)) {
+                return found(i);
+            }
+            i += shift[b & 0xff];
+        }
+
+        // Windows that straddle the wrap point
+        while (i <= end && i < firstSegment) {
+            byte b = getByte(i + last);
+            if (b == lastByte && matchesWrappedAt(i, pattern)) {
+                return found(i);
+            }
+            i += shift[b & 0xff];
+        }
+
+        // Windows within the second segment
+        while (i <= end) {
+            byte b = buffer[i - firstSegment + last];
+            if (b == lastByte && matchesAt(i - firstSegment, pattern)) {
+                return found(i);
             }
+            i += shift[b & 0xff];
         }
+
+        scanned = i;
         return -1;
     }
+
+    private int found(int i) {
+        scanned = i;
+        return i;
+    }
+
+    // Compare all but the last byte of the pattern with the physical buffer.
+    private boolean matchesAt(int position, byte[] pattern) {
+        for (int j = pattern.length - 2; j >= 0; j--) {
+            if (buffer[position + j] != pattern[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Compare all but the last byte of the pattern with the virtual buffer.
+    private boolean matchesWrappedAt(int i, byte[] pattern) {
+        for (int j = pattern.length - 2; j >= 0; j--) {
+            if (getByte(i + j) != pattern[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Get the Horspool shift table for a pattern. The parser alternates
+    // between two patterns (the boundary and CR-LF), so the tables for
+    // the two most recent patterns are kept.
+    private int[] getShiftTable(byte[] pattern) {
+        if (pattern != searchPattern) {
+            scanned = 0;
+            if (pattern == previousPattern) {
+                previousPattern = searchPattern;
+                searchPattern = pattern;
+                int[] swap = previousShift;
+                previousShift = searchShift;
+                searchShift = swap;
+            } else {
+                previousPattern = searchPattern;
+                previousShift = searchShift;
+                searchPattern = pattern;
+                searchShift = new int[256];
+                Arrays.fill(searchShift, pattern.length);
+                for (int j = 0; j < pattern.length - 1; j++) {
+                    searchShift[pattern[j] & 0xff] = pattern.length - 1 - j;
+                }
+            }
+        }
+        return searchShift;
+    }
 }
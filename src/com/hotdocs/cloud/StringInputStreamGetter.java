@@ -5,15 +5,24 @@
 package com.hotdocs.cloud;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 
 /**
  * An InputStreamGetter that gets a stream from a string.
+ *
+ * The string is encoded as UTF-8 the first time it is needed, and the
+ * bytes are reused for every later stream, such as when a request is
+ * resent after its package is uploaded. The getter lets go of the string
+ * once it is encoded, so only one copy of large answer XML is kept. As
+ * a request body, the bytes are written to the connection in one call.
  */
-public class StringInputStreamGetter implements InputStreamGetter {
+public class StringInputStreamGetter implements ContentWriter {
     
-    private String str;
+    private String str; // Until it is encoded
+    private volatile byte[] bytes;
     
     public StringInputStreamGetter(String str) {
         this.str = str;
@@ -21,19 +30,37 @@ public class StringInputStreamGetter implements InputStreamGetter {
     
     @Override
     public int getLength() {
-        return str.length();
+        return getBytes().length;
+    }
+
+    @Override
+    public long getContentLength() {
+        return getLength();
     }
 
     @Override
     public InputStream getStream() {
-        try {
-            return new ByteArrayInputStream(str.getBytes("UTF-8"));
-        }
-        catch (UnsupportedEncodingException ex) {
-            // Since UTF-8 is supported everywhere,
-            // this exception should never occur.
-            return null;
+        return new ByteArrayInputStream(getBytes());
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(getBytes());
+    }
+
+    private byte[] getBytes() {
+        byte[] b = bytes;
+        if (b == null) {
+            synchronized (this) {
+                b = bytes;
+                if (b == null) {
+                    b = str.getBytes(StandardCharsets.UTF_8);
+                    bytes = b;
+                    str = null;
+                }
+            }
         }
+        return b;
     }
 
 }
@@ -0,0 +1,63 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Supplier;
+
+/**
+ * An InputStreamGetter that gets a new stream from a Supplier each time
+ * one is needed, e.g. to generate answer XML as it is sent. The supplier
+ * may be called more than once, since a request is resent after its
+ * package is uploaded, and it must return a stream with the same
+ * content each time. If the request may be hedged (see HedgePolicy), it
+ * may also be called from two threads at once.
+ */
+public class SupplierInputStreamGetter implements InputStreamGetter {
+
+    private Supplier<? extends InputStream> supplier;
+    private int length;
+
+    /**
+     * SupplierInputStreamGetter constructor for streams of unknown length
+     *
+     * @param supplier
+     *            Supplies the streams
+     */
+    public SupplierInputStreamGetter(Supplier<? extends InputStream> supplier) {
+        this(supplier, -1);
+    }
+
+    /**
+     * SupplierInputStreamGetter constructor
+     *
+     * @param supplier
+     *            Supplies the streams
+     * @param length
+     *            The length of each stream, or -1 if it is unknown
+     */
+    public SupplierInputStreamGetter(
+            Supplier<? extends InputStream> supplier,
+            int length) {
+        this.supplier = supplier;
+        this.length = length;
+    }
+
+    @Override
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public InputStream getStream() throws IOException {
+        InputStream stream = supplier.get();
+        if (stream == null) {
+            throw new IOException("The supplier returned no stream.");
+        }
+        return stream;
+    }
+
+}
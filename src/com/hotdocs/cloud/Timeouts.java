@@ -0,0 +1,63 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+/**
+ * How long a Client waits for HotDocs Cloud Services before it gives up
+ * on a request. All times are in milliseconds, and 0 means no limit.
+ *
+ * The connect timeout limits opening a connection, and the read timeout
+ * limits each wait for data from the server, such as the wait for an
+ * assembly to finish. The total timeout limits the whole request,
+ * including any package upload, retries and the waits between them; each
+ * attempt's connect and read timeouts are cut to the time that is left.
+ * Reading a response body once it has started is limited only by the
+ * read timeout.
+ *
+ * A request that times out throws a SocketTimeoutException, which is a
+ * TotalTimeoutException if the total timeout ran out.
+ *
+ * Timeouts are immutable and can be shared between threads.
+ */
+public final class Timeouts {
+
+    /**
+     * A 30 second connect timeout, and no read or total timeout.
+     */
+    public static final Timeouts defaults = new Timeouts(30 * 1000, 0, 0);
+
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final long totalTimeout;
+
+    /**
+     * Timeouts constructor
+     *
+     * @param connectTimeout
+     * @param readTimeout
+     * @param totalTimeout
+     */
+    public Timeouts(int connectTimeout, int readTimeout, long totalTimeout) {
+        if (connectTimeout < 0 || readTimeout < 0 || totalTimeout < 0) {
+            throw new IllegalArgumentException(
+                    "Timeouts can't be negative.");
+        }
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.totalTimeout = totalTimeout;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    public long getTotalTimeout() {
+        return totalTimeout;
+    }
+}
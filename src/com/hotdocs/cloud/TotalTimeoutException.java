@@ -0,0 +1,19 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.net.SocketTimeoutException;
+
+/**
+ * Thrown when a request runs out of its total timeout, including while
+ * it waits for the RequestLimiter or before a retry. Unlike other
+ * timeouts, it says nothing about how the service is doing.
+ */
+@SuppressWarnings("serial")
+public class TotalTimeoutException extends SocketTimeoutException {
+    public TotalTimeoutException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,39 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+
+/**
+ * Opens the HTTP connections that a Client uses to send requests to
+ * HotDocs Cloud Services, and takes them back when the Client is done
+ * with them.
+ */
+public interface Transport {
+    /**
+     * Opens an unconnected HttpURLConnection to the given URL.
+     *
+     * @param url
+     *            The request URL
+     * @param proxy
+     *            The proxy to use, or Proxy.NO_PROXY
+     * @return The connection
+     * @throws IOException
+     */
+    HttpURLConnection openConnection(URL url, Proxy proxy) throws IOException;
+
+    /**
+     * Called when the Client no longer needs a connection and will not
+     * read its response. Implementations may keep the underlying socket
+     * open for reuse.
+     *
+     * @param conn
+     *            A connection returned by openConnection
+     */
+    void release(HttpURLConnection conn);
+}
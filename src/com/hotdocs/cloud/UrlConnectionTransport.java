@@ -0,0 +1,28 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+
+/**
+ * The default Transport. Connections are opened with URL.openConnection,
+ * and connection reuse is left to the JVM's built-in keep-alive cache.
+ */
+public class UrlConnectionTransport implements Transport {
+
+    @Override
+    public HttpURLConnection openConnection(URL url, Proxy proxy)
+            throws IOException {
+        return (HttpURLConnection) url.openConnection(proxy);
+    }
+
+    @Override
+    public void release(HttpURLConnection conn) {
+        conn.disconnect();
+    }
+}
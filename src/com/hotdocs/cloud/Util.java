@@ -8,12 +8,19 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.KeyManagementException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
-import java.util.Scanner;
+import java.util.Arrays;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
@@ -28,21 +35,223 @@ import javax.net.ssl.X509TrustManager;
  */
 class Util {
 
+    private static final ThreadLocal<ReadBuffer> readBuffers =
+            new ThreadLocal<ReadBuffer>() {
+                @Override
+                protected ReadBuffer initialValue() {
+                    return new ReadBuffer();
+                }
+            };
+
+    private static final int copyBufferSize = 16 * 1024;
+    private static final int fileCopyBufferSize = 64 * 1024;
+    private static final char[] hexDigits = "0123456789abcdef".toCharArray();
+
+    /**
+     * Reads a whole stream into a string and closes it.
+     * 
+     * @param stream
+     * @param charset
+     *            The charset in which the stream is encoded
+     * @param expectedLength
+     *            The length of the stream if it is known, e.g. from
+     *            Content-Length, or -1
+     * @param maxLength
+     *            The maximum number of bytes to read
+     * @return
+     * @throws IOException
+     *             If the stream is longer than maxLength
+     */
+    static String readString(
+            InputStream stream,
+            Charset charset,
+            long expectedLength,
+            int maxLength)
+            throws IOException {
+        ReadBuffer buffer = readBuffers.get();
+        try {
+            buffer.read(stream, expectedLength, maxLength);
+            return new String(buffer.bytes, 0, buffer.length, charset);
+        } finally {
+            buffer.release();
+        }
+    }
+
     /**
-     * Reads a whole stream into a string.
+     * Reads a whole stream into a byte array and closes it.
      * 
      * @param stream
+     * @param expectedLength
+     *            The length of the stream if it is known, e.g. from
+     *            Content-Length, or -1
+     * @param maxLength
+     *            The maximum number of bytes to read
+     * @return
+     * @throws IOException
+     *             If the stream is longer than maxLength
+     */
+    static byte[] readBytes(
+            InputStream stream,
+            long expectedLength,
+            int maxLength)
+            throws IOException {
+        if (expectedLength > -1 && expectedLength <= maxLength) {
+            // Read straight into an array of the right size.
+            byte[] bytes = new byte[(int) expectedLength];
+            int length = readFully(stream, bytes, 0, bytes.length);
+            int next = length == bytes.length ? stream.read() : -1;
+            if (next == -1) {
+                stream.close();
+                return length == bytes.length
+                        ? bytes : Arrays.copyOf(bytes, length);
+            }
+            // The stream is longer than expected, so carry on below.
+            ReadBuffer buffer = readBuffers.get();
+            try {
+                buffer.append(bytes, length, maxLength);
+                buffer.append(new byte[] { (byte) next }, 1, maxLength);
+                buffer.read(stream, -1, maxLength);
+                return Arrays.copyOf(buffer.bytes, buffer.length);
+            } finally {
+                buffer.release();
+            }
+        }
+
+        ReadBuffer buffer = readBuffers.get();
+        try {
+            buffer.read(stream, expectedLength, maxLength);
+            return Arrays.copyOf(buffer.bytes, buffer.length);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Gets the charset named in a Content-Type header, or UTF-8 if there
+     * is none or it isn't supported.
+     * 
+     * @param contentType
      * @return
      */
-    static String readString(InputStream stream) {
-        try (Scanner scanner = new Scanner(stream)) {
-            scanner.useDelimiter("\\A");
-            return scanner.hasNext() ? scanner.next() : "";
+    static Charset getCharset(String contentType) {
+        String name = contentType != null
+                ? getNamedValue(contentType, ";", "charset") : null;
+        if (name != null) {
+            name = name.trim();
+            if (name.length() > 1 && name.startsWith("\"")
+                    && name.endsWith("\"")) {
+                name = name.substring(1, name.length() - 1);
+            }
+            try {
+                return Charset.forName(name);
+            } catch (IllegalArgumentException ex) {
+                // Fall back to UTF-8, which is what HDCS sends.
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    // Reads until the array is full or the stream ends, and returns the
+    // number of bytes read.
+    private static int readFully(InputStream stream, byte[] b, int off,
+            int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int n = stream.read(b, off + total, len - total);
+            if (n == -1) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * A growable buffer, one per thread, that readString and readBytes
+     * read into. Buffers up to 256 KB are kept for the next read, so
+     * typical responses don't allocate one.
+     */
+    private static class ReadBuffer {
+        private static final int initialSize = 8 * 1024;
+        private static final int maxRetainedSize = 256 * 1024;
+
+        private byte[] bytes = new byte[initialSize];
+        private int length;
+
+        private void read(InputStream stream, long expectedLength,
+                int maxLength) throws IOException {
+            try {
+                if (expectedLength > maxLength) {
+                    throw tooLong(maxLength);
+                }
+                if (expectedLength > -1) {
+                    ensureCapacity(length + (int) expectedLength, maxLength);
+                }
+                while (true) {
+                    if (length == bytes.length) {
+                        // Check for the end of the stream before growing,
+                        // so a buffer sized from the expected length
+                        // isn't doubled just to find it.
+                        int next = stream.read();
+                        if (next == -1) {
+                            break;
+                        }
+                        ensureCapacity(length + 1, maxLength);
+                        bytes[length++] = (byte) next;
+                        continue;
+                    }
+                    int n = stream.read(bytes, length, bytes.length - length);
+                    if (n == -1) {
+                        break;
+                    }
+                    length += n;
+                }
+                if (length > maxLength) {
+                    throw tooLong(maxLength);
+                }
+            } finally {
+                stream.close();
+            }
+        }
+
+        private void append(byte[] b, int len, int maxLength)
+                throws IOException {
+            ensureCapacity(length + len, maxLength);
+            System.arraycopy(b, 0, bytes, length, len);
+            length += len;
+        }
+
+        // Grows the buffer to at least the given capacity, or to one byte
+        // more than the maximum, so that a longer stream can be detected.
+        private void ensureCapacity(int capacity, int maxLength)
+                throws IOException {
+            if (capacity <= bytes.length) {
+                return;
+            }
+            if (capacity - 1 > maxLength) {
+                throw tooLong(maxLength);
+            }
+            long size = Math.max(capacity, (long) bytes.length * 2);
+            size = Math.min(size, (long) maxLength + 1);
+            size = Math.min(size, Integer.MAX_VALUE - 8);
+            bytes = Arrays.copyOf(bytes, (int) size);
+        }
+
+        private void release() {
+            length = 0;
+            if (bytes.length > maxRetainedSize) {
+                bytes = new byte[initialSize];
+            }
+        }
+
+        private static IOException tooLong(int maxLength) {
+            return new IOException("The response is longer than the "
+                    + "maximum of " + maxLength + " bytes.");
         }
     }
 
     /**
-     * Copies one stream to another.
+     * Copies one stream to another, and closes both.
      * 
      * @param from
      * @param to
@@ -50,7 +259,20 @@ class Util {
      */
     static void copyStream(InputStream from, OutputStream to)
             throws IOException {
-        byte[] buffer = new byte[1024];
+        copyStream(from, to, new byte[copyBufferSize]);
+    }
+
+    /**
+     * Copies one stream to another through the given buffer, and closes
+     * both.
+     * 
+     * @param from
+     * @param to
+     * @param buffer
+     * @throws IOException
+     */
+    static void copyStream(InputStream from, OutputStream to, byte[] buffer)
+            throws IOException {
         int len;
         while ((len = from.read(buffer)) != -1) {
             to.write(buffer, 0, len);
@@ -59,6 +281,32 @@ class Util {
         to.close();
     }
 
+    /**
+     * Writes a file to a stream. The file is read from its channel into a
+     * buffer sized to the file, up to 64 KB, so a small file takes one
+     * read and one write. The buffer is on the heap, since the stream
+     * takes a byte array, so the JDK copies each block through a
+     * temporary direct buffer of its own. The stream is not closed.
+     * 
+     * @param path
+     * @param to
+     * @throws IOException
+     */
+    static void writeFile(Path path, OutputStream to) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ)) {
+            long size = channel.size();
+            byte[] buffer = new byte[
+                    (int) Math.max(1, Math.min(size, fileCopyBufferSize))];
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            int len;
+            while ((len = channel.read(wrapped)) != -1) {
+                to.write(buffer, 0, len);
+                wrapped.clear();
+            }
+        }
+    }
+
     /**
      * Determines whether an HTTP request was successful.
      * 
@@ -72,7 +320,8 @@ class Util {
     }
 
     /**
-     * Returns the body of the response.
+     * Returns the body of the response, decompressed if the server
+     * compressed it. Call this once per response.
      * 
      * @param conn
      * @return
@@ -80,7 +329,27 @@ class Util {
      */
     static InputStream getResponseStream(HttpURLConnection conn)
             throws IOException {
-        return httpOk(conn) ? conn.getInputStream() : conn.getErrorStream();
+        return getResponseStream(conn, null);
+    }
+
+    /**
+     * Returns the body of the response, as getResponseStream does, and
+     * counts the bytes read from the connection in the metrics.
+     * 
+     * @param conn
+     * @param metrics
+     *            The request's metrics, or null
+     * @return
+     * @throws IOException
+     */
+    static InputStream getResponseStream(HttpURLConnection conn,
+            RequestMetrics metrics) throws IOException {
+        InputStream stream = httpOk(conn)
+                ? conn.getInputStream() : conn.getErrorStream();
+        if (stream != null && metrics != null) {
+            stream = metrics.countReceived(stream);
+        }
+        return Compression.decompress(conn.getContentEncoding(), stream);
     }
 
     /**
@@ -107,6 +376,35 @@ class Util {
         return buffer.toString();
     }
 
+    /**
+     * Gets a new SHA-256 digest.
+     * 
+     * @return
+     */
+    static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Encodes bytes, e.g. a digest, as lowercase hex.
+     * 
+     * @param bytes
+     * @return
+     */
+    static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = hexDigits[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = hexDigits[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
     /**
      * Get a value from a string of name-value pairs formatted like:
      *   name1=value1;name2=value2;name3=value3
@@ -150,14 +448,19 @@ class Util {
      * @param conn
      */
     static void setConnToIgnoreHostNameErrors(HttpsURLConnection conn) {
-        conn.setHostnameVerifier(new HostnameVerifier() {
-            @Override
-            public boolean verify(String hostname, SSLSession session) {
-                return true;
-            }
-        });
+        conn.setHostnameVerifier(ignoreHostNameErrors);
     }
 
+    // Shared, so that a PooledTransport can reuse connections that were
+    // opened with it.
+    private static final HostnameVerifier ignoreHostNameErrors =
+            new HostnameVerifier() {
+                @Override
+                public boolean verify(String hostname, SSLSession session) {
+                    return true;
+                }
+            };
+
     /**
      * Custom trust manager that ignores cert errors.
      * For testing only! Do not use this in a production deployment!
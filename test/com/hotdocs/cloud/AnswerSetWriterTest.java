@@ -0,0 +1,158 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+/**
+ * The answer XML that AnswerSetWriter writes.
+ */
+public class AnswerSetWriterTest {
+
+    private static final String head = "<?xml version=\"1.0\" "
+            + "encoding=\"UTF-8\" standalone=\"yes\"?>\n";
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    @Test
+    public void writesEachValueType() throws Exception {
+        AnswerSetWriter writer = new AnswerSetWriter(out, "Title");
+        writer.answer("T").text("Jane");
+        writer.answer("N").number(42);
+        writer.answer("D").number(2.50);
+        writer.answer("B").number(new BigDecimal("1E+3"));
+        writer.answer("Date").date(LocalDate.of(2013, 3, 7));
+        writer.answer("TF").trueFalse(true);
+        writer.answer("MC").multipleChoice("One", "Two");
+        writer.finish();
+
+        assertEquals(head + "<AnswerSet title=\"Title\" version=\"1.1\">"
+                + "<Answer name=\"T\"><TextValue>Jane</TextValue></Answer>"
+                + "<Answer name=\"N\"><NumValue>42</NumValue></Answer>"
+                + "<Answer name=\"D\"><NumValue>2.5</NumValue></Answer>"
+                + "<Answer name=\"B\"><NumValue>1000</NumValue></Answer>"
+                + "<Answer name=\"Date\"><DateValue>7/3/2013</DateValue>"
+                + "</Answer>"
+                + "<Answer name=\"TF\"><TFValue>true</TFValue></Answer>"
+                + "<Answer name=\"MC\"><MCValue><SelValue>One</SelValue>"
+                + "<SelValue>Two</SelValue></MCValue></Answer>"
+                + "</AnswerSet>", written());
+    }
+
+    @Test
+    public void writesUnansweredValues() throws Exception {
+        AnswerSetWriter writer = new AnswerSetWriter(out);
+        writer.answer("T").text(null);
+        writer.answer("D").date(null);
+        writer.answer("MC").multipleChoice();
+        writer.finish();
+
+        assertEquals(head + "<AnswerSet title=\"\" version=\"1.1\">"
+                + "<Answer name=\"T\"><TextValue unans=\"true\" /></Answer>"
+                + "<Answer name=\"D\"><DateValue unans=\"true\" /></Answer>"
+                + "<Answer name=\"MC\"><MCValue unans=\"true\" /></Answer>"
+                + "</AnswerSet>", written());
+    }
+
+    @Test
+    public void writesNestedRepeats() throws Exception {
+        AnswerSetWriter writer = new AnswerSetWriter(out);
+        writer.answer("R").startRepeat()
+                .startRepeat().text("a").text(null).endRepeat()
+                .text("b")
+                .endRepeat();
+        writer.answer("After").trueFalse(false);
+        writer.finish();
+
+        assertEquals(head + "<AnswerSet title=\"\" version=\"1.1\">"
+                + "<Answer name=\"R\"><RptValue><RptValue>"
+                + "<TextValue>a</TextValue><TextValue unans=\"true\" />"
+                + "</RptValue><TextValue>b</TextValue></RptValue></Answer>"
+                + "<Answer name=\"After\"><TFValue>false</TFValue></Answer>"
+                + "</AnswerSet>", written());
+    }
+
+    @Test
+    public void escapesSpecialCharacters() throws Exception {
+        AnswerSetWriter writer = new AnswerSetWriter(out, "\"A\" & B");
+        writer.answer("<Name>").text("a < b & c > d\r\n\"e\"\t\u00e9");
+        writer.finish();
+
+        assertEquals(head + "<AnswerSet title=\"&quot;A&quot; &amp; B\" "
+                + "version=\"1.1\"><Answer name=\"&lt;Name&gt;\">"
+                + "<TextValue>a &lt; b &amp; c &gt; d&#13;\n&quot;e&quot;"
+                + "\t\u00e9</TextValue></Answer></AnswerSet>", written());
+        Document doc = parse();
+        assertEquals("a < b & c > d\r\n\"e\"\t\u00e9",
+                doc.getElementsByTagName("TextValue").item(0)
+                        .getTextContent());
+    }
+
+    @Test
+    public void replacesCharactersXmlDoesNotAllow() throws Exception {
+        AnswerSetWriter writer = new AnswerSetWriter(out);
+        writer.answer("N\u0000").text("a\u0001b\u001fc\ufffed\ud800e"
+                + "\ud83d\ude00");
+        writer.finish();
+
+        Document doc = parse();
+        assertEquals("a\ufffdb\ufffdc\ufffdd\ufffde\ud83d\ude00",
+                doc.getElementsByTagName("TextValue").item(0)
+                        .getTextContent());
+        assertEquals("N\ufffd", doc.getDocumentElement().getFirstChild()
+                .getAttributes().getNamedItem("name").getNodeValue());
+    }
+
+    @Test
+    public void rejectsValueWithoutAnswer() throws IOException {
+        AnswerSetWriter writer = new AnswerSetWriter(out);
+        try {
+            writer.text("orphan");
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException ex) {
+            // Expected
+        }
+        writer.answer("A");
+        try {
+            writer.finish();
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void rejectsNumbersThatAreNotFinite() throws IOException {
+        AnswerSetWriter writer = new AnswerSetWriter(out);
+        writer.answer("N");
+        try {
+            writer.number(Double.NaN);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
+    private String written() throws IOException {
+        return out.toString("UTF-8");
+    }
+
+    private Document parse() throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new ByteArrayInputStream(out.toByteArray()));
+    }
+}
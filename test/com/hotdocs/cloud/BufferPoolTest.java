@@ -0,0 +1,77 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * BufferPool sizing and bounds.
+ */
+public class BufferPoolTest {
+
+    @Test
+    public void roundsSizesToPowersOfTwo() {
+        BufferPool pool = new BufferPool(3000, 100 * 1000, true);
+        assertEquals(4096, pool.getMinSize());
+        assertEquals(128 * 1024, pool.getMaxSize());
+        assertEquals(4096, pool.sizeFor(0));
+        assertEquals(8192, pool.sizeFor(4097));
+        assertEquals(64 * 1024, pool.sizeFor(-1));
+        assertEquals(128 * 1024, pool.sizeFor(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void acceptsLargestSize() {
+        BufferPool pool = new BufferPool(BufferPool.minAllowedSize,
+                BufferPool.maxAllowedSize, false);
+        assertEquals(1 << 30, pool.getMaxSize());
+        assertEquals(1 << 30, pool.sizeFor((1 << 29) + 1));
+        assertEquals(1 << 30, pool.sizeFor(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void rejectsSizesOutOfRange() {
+        assertRejected(BufferPool.minAllowedSize - 1, 4096);
+        assertRejected(0, 4096);
+        assertRejected(4096, BufferPool.maxAllowedSize + 1);
+        assertRejected(4096, Integer.MAX_VALUE);
+        assertRejected(8192, 4096);
+    }
+
+    @Test
+    public void reusesReleasedBuffers() {
+        BufferPool pool = new BufferPool(1024, 8192, true);
+        byte[] buffer = pool.acquire(2000);
+        assertEquals(2048, buffer.length);
+        pool.release(buffer);
+        assertSame(buffer, pool.acquire(1500));
+    }
+
+    @Test
+    public void clientRejectsSizesOutOfRange() {
+        Client client = new Client("SUBSCRIBER_ID", "SIGNING_KEY");
+        try {
+            client.setBufferSizes(4096, Integer.MAX_VALUE);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+        client.setBufferSizes(1024, 1 << 30);
+    }
+
+    private static void assertRejected(int minSize, int maxSize) {
+        try {
+            new BufferPool(minSize, maxSize, true);
+            fail("Expected IllegalArgumentException for " + minSize + ", "
+                    + maxSize);
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+
+import org.junit.Test;
+
+import com.hotdocs.cloud.CircuitBreaker.State;
+
+/**
+ * CircuitBreaker's states, and how it counts probes and failures.
+ */
+public class CircuitBreakerTest {
+
+    private static final String address = "https://cloud.hotdocs.ws";
+
+    @Test
+    public void opensAfterFailuresInARow() throws IOException {
+        CircuitBreaker breaker = new CircuitBreaker(3, 60 * 1000, 1);
+        recordFailure(breaker);
+        recordFailure(breaker);
+        recordSuccess(breaker); // Starts the count again
+        recordFailure(breaker);
+        recordFailure(breaker);
+        assertEquals(State.Closed, breaker.getState(address));
+        recordFailure(breaker);
+        assertEquals(State.Open, breaker.getState(address));
+        assertRejected(breaker);
+    }
+
+    @Test
+    public void keepsAddressesApart() throws IOException {
+        CircuitBreaker breaker = new CircuitBreaker(1, 60 * 1000, 1);
+        recordFailure(breaker);
+        assertEquals(State.Open, breaker.getState(address));
+        assertFalse(breaker.acquire("https://other"));
+    }
+
+    @Test
+    public void closesWhenProbeSucceeds() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 50, 1);
+        recordFailure(breaker);
+        Thread.sleep(60);
+        assertEquals(State.HalfOpen, breaker.getState(address));
+
+        assertTrue(breaker.acquire(address));
+        assertRejected(breaker); // Only one probe at a time
+        breaker.record(address, true, false);
+        assertEquals(State.Closed, breaker.getState(address));
+        assertFalse(breaker.acquire(address));
+    }
+
+    @Test
+    public void reopensWhenProbeFails() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 50, 1);
+        recordFailure(breaker);
+        Thread.sleep(60);
+        assertTrue(breaker.acquire(address));
+        breaker.record(address, true, true);
+        assertEquals(State.Open, breaker.getState(address));
+        assertRejected(breaker);
+    }
+
+    @Test
+    public void cancelledProbeFreesItsPlace() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 50, 2);
+        recordFailure(breaker);
+        Thread.sleep(60);
+        assertTrue(breaker.acquire(address));
+        assertTrue(breaker.acquire(address));
+        assertRejected(breaker);
+
+        breaker.cancel(address, true);
+        assertEquals(State.HalfOpen, breaker.getState(address));
+        assertTrue(breaker.acquire(address));
+    }
+
+    @Test
+    public void ignoresRequestsSentBeforeItOpened() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 50, 1);
+        assertFalse(breaker.acquire(address)); // Let through while closed
+        recordFailure(breaker);
+        breaker.record(address, false, false);
+        assertEquals(State.Open, breaker.getState(address));
+
+        Thread.sleep(60);
+        assertTrue(breaker.acquire(address));
+        breaker.record(address, false, true); // The earlier request
+        breaker.cancel(address, false);
+        assertEquals(State.HalfOpen, breaker.getState(address));
+        assertRejected(breaker); // The probe is still out
+    }
+
+    @Test
+    public void resetCloses() throws IOException {
+        CircuitBreaker breaker = new CircuitBreaker(1, 60 * 1000, 1);
+        recordFailure(breaker);
+        breaker.reset(address);
+        assertEquals(State.Closed, breaker.getState(address));
+        assertFalse(breaker.acquire(address));
+    }
+
+    @Test
+    public void countsOnlyServiceFailures() {
+        assertTrue(CircuitBreaker.isFailure(new ConnectException()));
+        assertTrue(CircuitBreaker.isFailure(new SocketTimeoutException()));
+        assertTrue(CircuitBreaker.isFailure(new EOFException()));
+        assertFalse(CircuitBreaker.isFailure(
+                new TotalTimeoutException("Out of time")));
+        assertFalse(CircuitBreaker.isFailure(new IOException("No file")));
+        assertTrue(CircuitBreaker.isFailure(503));
+        assertFalse(CircuitBreaker.isFailure(500));
+        assertFalse(CircuitBreaker.isFailure(429));
+    }
+
+    private static void recordFailure(CircuitBreaker breaker)
+            throws IOException {
+        boolean probe = breaker.acquire(address);
+        breaker.record(address, probe, true);
+    }
+
+    private static void recordSuccess(CircuitBreaker breaker)
+            throws IOException {
+        boolean probe = breaker.acquire(address);
+        breaker.record(address, probe, false);
+    }
+
+    private static void assertRejected(CircuitBreaker breaker) {
+        try {
+            breaker.acquire(address);
+            fail("Expected CircuitOpenException");
+        } catch (CircuitOpenException ex) {
+            // Expected
+        }
+    }
+}
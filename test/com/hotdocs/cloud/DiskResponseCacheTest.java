@@ -0,0 +1,101 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * DiskResponseCache with damaged and leftover files.
+ */
+public class DiskResponseCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsWhatWasPut() throws IOException {
+        DiskResponseCache cache = newCache();
+        cache.put("key", newResponse(100));
+        CachedResponse response = cache.get("key");
+        assertArrayEquals(new byte[100], response.getBody());
+        assertEquals("\"etag\"", response.getETag());
+    }
+
+    @Test
+    public void deletesFileWithNegativeLength() throws IOException {
+        checkDamagedLength(-1);
+    }
+
+    @Test
+    public void deletesFileWithHugeLength() throws IOException {
+        checkDamagedLength(Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void deletesTruncatedFile() throws IOException {
+        DiskResponseCache cache = newCache();
+        cache.put("key", newResponse(100));
+        File file = getOnlyFile(".response");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 10);
+        }
+        assertNull(cache.get("key"));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void deletesStaleTempFiles() throws IOException {
+        File stale = folder.newFile("put123.tmp");
+        stale.setLastModified(System.currentTimeMillis() - 10 * 60 * 1000);
+        File recent = folder.newFile("put456.tmp");
+
+        DiskResponseCache cache = newCache();
+        assertEquals(0, cache.getSize());
+        assertFalse(stale.exists());
+        assertTrue(recent.exists()); // A put may still be writing it
+    }
+
+    private void checkDamagedLength(int length) throws IOException {
+        DiskResponseCache cache = newCache();
+        cache.put("key", newResponse(100));
+        File file = getOnlyFile(".response");
+        // The body length is the int just before the body.
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() - 100 - 4);
+            raf.writeInt(length);
+        }
+        assertNull(cache.get("key"));
+        assertFalse(file.exists());
+        assertEquals(0, cache.getSize());
+    }
+
+    private DiskResponseCache newCache() {
+        return new DiskResponseCache(folder.getRoot().getPath(), 1 << 20);
+    }
+
+    private static CachedResponse newResponse(int size) {
+        return new CachedResponse(new byte[size], "text/html", "\"etag\"",
+                null, Long.MAX_VALUE);
+    }
+
+    private File getOnlyFile(String suffix) {
+        File[] files = folder.getRoot().listFiles();
+        assertEquals(1, files.length);
+        assertTrue(files[0].getName().endsWith(suffix));
+        return files[0];
+    }
+}
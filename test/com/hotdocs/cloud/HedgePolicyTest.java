@@ -0,0 +1,48 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Which requests a HedgePolicy hedges.
+ */
+public class HedgePolicyTest {
+
+    @Test
+    public void hedgesInterviewsByDefault() {
+        HedgePolicy policy = new HedgePolicy();
+        assertEquals(GetInterviewRequest.class, policy.getHedgedType(
+                new GetInterviewRequest("pkg", null)));
+        assertNull(policy.getHedgedType(
+                new CreateSessionRequest("pkg", null)));
+        assertNull(policy.getHedgedType(
+                new AssembleDocumentRequest("pkg", null)));
+    }
+
+    @Test
+    public void skipsNonIdempotentTypesUnlessOptedIn() {
+        HedgePolicy policy = new HedgePolicy(95, 1000, 50, 8,
+                GetInterviewRequest.class, CreateSessionRequest.class);
+        assertNull(policy.getHedgedType(
+                new CreateSessionRequest("pkg", null)));
+
+        policy.hedgeNonIdempotent(CreateSessionRequest.class);
+        assertEquals(CreateSessionRequest.class, policy.getHedgedType(
+                new CreateSessionRequest("pkg", null)));
+    }
+
+    @Test
+    public void matchesSuperclasses() {
+        HedgePolicy policy = new HedgePolicy(95, 1000, 50, 8, Request.class);
+        assertEquals(Request.class, policy.getHedgedType(
+                new GetComponentInfoRequest("pkg", null)));
+        assertNull(policy.getHedgedType(
+                new AssembleDocumentRequest("pkg", null)));
+    }
+}
@@ -0,0 +1,328 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+
+/**
+ * Checks Hmac.canonicalize, CanonicalWriter and Signer against the
+ * original implementation, which built the canonical string with a
+ * StringBuilder and SimpleDateFormat and hashed its UTF-8 bytes.
+ */
+public class HmacTest {
+
+    private static final String key = "SIGNING_KEY";
+    private static final Date timestamp = new Date(1381234567000L);
+
+    // Golden vectors, computed with the original implementation.
+
+    @Test
+    public void matchesGoldenVector() throws Exception {
+        Map<String, String> settings = new HashMap<String, String>();
+        settings.put("b", "2");
+        settings.put("a", "\u00fc");
+        settings.put("C", "3");
+        List<Object> params = Arrays.<Object>asList(timestamp,
+                "SUBSCRIBER_ID",
+                "R\u00e9sum\u00e9 \u2013 \u5c65\u6b74\u66f8 \ud83d\ude00.docx",
+                Boolean.FALSE, null, Integer.valueOf(-42), OutputFormat.PDF,
+                settings, "\ud800x");
+
+        assertEquals("2013-10-08T12:16:07Z\nSUBSCRIBER_ID\n"
+                + "R\u00e9sum\u00e9 \u2013 \u5c65\u6b74\u66f8 \ud83d\ude00.docx"
+                + "\nFalse\n\n-42\nPDF\nC=3\na=\u00fc\nb=2\n\ud800x",
+                Hmac.canonicalize(params));
+        assertEquals("Lx+aVPVMK0p3EiXTkfPReOthA+o=",
+                new Signer(key).sign(params));
+        assertEquals("Lx+aVPVMK0p3EiXTkfPReOthA+o=",
+                Hmac.calculateHmac(key, params));
+    }
+
+    @Test
+    public void matchesGoldenVectorWithEmptyValues() throws Exception {
+        List<Object> params = Arrays.<Object>asList(new Date(-1L), "", null,
+                new HashMap<String, String>(), Boolean.TRUE);
+
+        assertEquals("1969-12-31T23:59:59Z\n\n\n\nTrue",
+                Hmac.canonicalize(params));
+        assertEquals("M0HMXv5NML5Fu8RhVieSeyfJDTY=",
+                new Signer(key).sign(params));
+    }
+
+    // Every request type, as the client signs it.
+
+    @Test
+    public void matchesAssembleDocumentRequest() throws Exception {
+        AssembleDocumentRequest request = new AssembleDocumentRequest(
+                "Employment Agreement", "EmploymentAgreement.hdpkg",
+                "billing-ref", "Employment Agreement.docx", "<AnswerSet/>",
+                OutputFormat.PDF);
+        request.setSetting("UnansweredFormat", "Underscores");
+        request.setSetting("OutputOptions", "PdfTaggedPdf");
+        assertMatchesLegacy(signed(request));
+
+        assertMatchesLegacy(signed(new AssembleDocumentRequest(
+                "pkg", null, null, null, null, null)));
+    }
+
+    @Test
+    public void matchesCreateSessionRequest() throws Exception {
+        CreateSessionRequest request = new CreateSessionRequest(
+                "Employment Agreement", "EmploymentAgreement.hdpkg",
+                "billing-ref", "<AnswerSet/>", InterviewFormat.JavaScript,
+                OutputFormat.DOCX, "Theme", true);
+        request.setSetting("ShowAllResourceButtons", "true");
+        assertMatchesLegacy(signed(request));
+
+        assertMatchesLegacy(signed(new CreateSessionRequest("pkg", null)));
+    }
+
+    @Test
+    public void matchesGetInterviewRequest() throws Exception {
+        assertMatchesLegacy(signed(new GetInterviewRequest(
+                "Employment Agreement", "EmploymentAgreement.hdpkg",
+                "billing-ref", "Employment Agreement.docx", "<AnswerSet/>",
+                InterviewFormat.Silverlight,
+                new String[] { "Employee Name", "Start Date" },
+                "https://example.com/temp")));
+
+        assertMatchesLegacy(signed(new GetInterviewRequest("pkg", null)));
+    }
+
+    @Test
+    public void matchesGetComponentInfoRequest() throws Exception {
+        assertMatchesLegacy(signed(new GetComponentInfoRequest(
+                "Employment Agreement", "EmploymentAgreement.hdpkg",
+                "Employment Agreement.docx", true)));
+        assertMatchesLegacy(signed(new GetComponentInfoRequest(
+                "pkg", null, null, false)));
+    }
+
+    @Test
+    public void matchesResumeSessionRequest() throws Exception {
+        assertMatchesLegacy(signed(new ResumeSessionRequest(
+                "{\"PackageID\":\"pkg\",\"BillingRef\":\"\u00e9\"}")));
+    }
+
+    @Test
+    public void matchesUploadPackageRequest() throws Exception {
+        assertMatchesLegacy(signed(new UploadPackageRequest("pkg",
+                new StringInputStreamGetter("package"))));
+    }
+
+    @Test
+    public void matchesTemplatedRequest() throws Exception {
+        Map<String, String> settings = new HashMap<String, String>();
+        settings.put("UnansweredFormat", "Underscores");
+        settings.put("OutputOptions", "PdfTaggedPdf");
+        RequestTemplate template = new RequestTemplate(
+                "Employment Agreement", "EmploymentAgreement.hdpkg",
+                "R\u00e9f\u00e9rence", "Employment Agreement.docx",
+                OutputFormat.PDF, settings);
+        AssembleDocumentRequest prototype = new AssembleDocumentRequest(
+                "Employment Agreement", "EmploymentAgreement.hdpkg",
+                "R\u00e9f\u00e9rence", "Employment Agreement.docx", null,
+                OutputFormat.PDF);
+        prototype.setSetting("UnansweredFormat", "Underscores");
+        prototype.setSetting("OutputOptions", "PdfTaggedPdf");
+
+        // The template's parameters are pre-canonicalized, but must sign
+        // the same as the request they stand for.
+        assertEquals(legacyHmac(signed(prototype)),
+                new Signer(key).sign(signed(
+                        template.newRequest("<AnswerSet/>"))));
+
+        // Changing a setting falls back to the request's own parameters.
+        AssembleDocumentRequest changed = template.newRequest("<AnswerSet/>");
+        changed.setSetting("UnansweredFormat", "Nothing");
+        prototype.setSetting("UnansweredFormat", "Nothing");
+        assertEquals(prototype.getQuery(), changed.getQuery());
+        assertEquals(legacyHmac(signed(prototype)),
+                new Signer(key).sign(signed(changed)));
+    }
+
+    // Individual parameter types
+
+    @Test
+    public void matchesNulls() throws Exception {
+        assertMatchesLegacy(Arrays.<Object>asList((Object) null));
+        assertMatchesLegacy(Arrays.<Object>asList(null, null, null));
+        assertMatchesLegacy(Arrays.<Object>asList("a", null, "b", null));
+        assertMatchesLegacy(Collections.<Object>emptyList());
+    }
+
+    @Test
+    public void matchesDates() throws Exception {
+        long[] times = {
+            0L, -1L, 999L, -1000L, -1001L,
+            -2208988800000L, // 1900-01-01, not a leap year
+            946684799999L, // 1999-12-31T23:59:59.999
+            951782400000L, // 2000-02-29
+            4107456000000L, // 2100-03-01
+            253402300799000L, // 9999-12-31T23:59:59
+        };
+        for (long time : times) {
+            assertMatchesLegacy(Arrays.<Object>asList(new Date(time)));
+        }
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            long time = -2208988800000L
+                    + (long) (random.nextDouble() * 255611289599000L);
+            assertMatchesLegacy(Arrays.<Object>asList(new Date(time), "x"));
+        }
+    }
+
+    @Test
+    public void matchesMaps() throws Exception {
+        assertMatchesLegacy(Arrays.<Object>asList(
+                new HashMap<String, String>(), "after"));
+        assertMatchesLegacy(Arrays.<Object>asList("before",
+                Collections.singletonMap("key", "value")));
+
+        // More keys than the writer's initial sort array holds
+        Map<String, String> large = new HashMap<String, String>();
+        for (int i = 0; i < 40; i++) {
+            large.put("key" + (i * 7919 % 40), "value\u00e9" + i);
+        }
+        large.put("Zebra", "upper case sorts first");
+        large.put("\u00e9t\u00e9", "non-ASCII sorts last");
+        large.put("", "empty key");
+        assertMatchesLegacy(Arrays.<Object>asList(large, large, "end"));
+        assertMatchesLegacy(Arrays.<Object>asList(new TreeMap<String, String>(
+                Collections.singletonMap("a", "1")), null));
+    }
+
+    @Test
+    public void matchesBooleansAndNumbers() throws Exception {
+        assertMatchesLegacy(Arrays.<Object>asList(Boolean.TRUE, Boolean.FALSE,
+                Integer.valueOf(0), Integer.valueOf(-1), Integer.valueOf(10),
+                Integer.valueOf(Integer.MAX_VALUE),
+                Integer.valueOf(Integer.MIN_VALUE)));
+        // Types that aren't canonicalized become empty strings.
+        assertMatchesLegacy(Arrays.<Object>asList(Long.valueOf(5),
+                new String[] { "a" }, new Object(), "x"));
+    }
+
+    @Test
+    public void matchesNonAsciiStrings() throws Exception {
+        assertMatchesLegacy(Arrays.<Object>asList("\u00e9", "\u20ac",
+                "\u5c65\u6b74\u66f8", "\ud83d\ude00", "line\nbreak",
+                "\u0000\u007f\u0080\u07ff\u0800\uffff"));
+        // Unpaired surrogates encode as '?'.
+        assertMatchesLegacy(Arrays.<Object>asList("\ud800", "\udc00x",
+                "x\ud83d", "\ude00\ud83d"));
+
+        // Long enough to cross the signer's buffer with multi-byte
+        // sequences split at every offset.
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            s.append('a').append("\u00e9\u20ac\ud83d\ude00", 0, i % 5);
+        }
+        assertMatchesLegacy(Arrays.<Object>asList(s.toString(), "x",
+                s.toString()));
+    }
+
+    @Test
+    public void reusesSignerAcrossRequests() throws Exception {
+        Signer signer = new Signer(key);
+        List<Object> a = Arrays.<Object>asList("a", Boolean.TRUE);
+        List<Object> b = Arrays.<Object>asList(timestamp, "\u00e9", null);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(legacyHmac(a), signer.sign(a));
+            assertEquals(legacyHmac(b), signer.sign(b));
+        }
+        assertEquals(legacyHmac(key + "2", a),
+                Hmac.calculateHmac(key + "2", a));
+        assertEquals(legacyHmac(a), Hmac.calculateHmac(key, a));
+    }
+
+    // The parameters the client signs for a request
+    private static List<Object> signed(Request request) {
+        List<Object> params = new ArrayList<Object>();
+        params.add(timestamp);
+        params.add("SUBSCRIBER_ID");
+        params.addAll(request.getHmacParams());
+        return params;
+    }
+
+    private static void assertMatchesLegacy(List<Object> params)
+            throws Exception {
+        String canonical = legacyCanonicalize(params);
+        assertEquals(canonical, Hmac.canonicalize(params));
+        String hmac = legacyHmac(params);
+        assertEquals(canonical, hmac, new Signer(key).sign(params));
+        assertEquals(canonical, hmac, Hmac.calculateHmac(key, params));
+    }
+
+    private static String legacyHmac(List<Object> params) throws Exception {
+        return legacyHmac(key, params);
+    }
+
+    private static String legacyHmac(String signingKey, List<Object> params)
+            throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA1");
+        mac.init(new SecretKeySpec(
+                signingKey.getBytes(StandardCharsets.UTF_8), "HmacSHA1"));
+        byte[] signature = mac.doFinal(
+                legacyCanonicalize(params).getBytes("UTF-8"));
+        return Base64.getEncoder().encodeToString(signature);
+    }
+
+    private static String legacyCanonicalize(List<Object> params) {
+        SimpleDateFormat dateFormat =
+                new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+        StringBuilder sb = new StringBuilder();
+        for (Object p : params) {
+            if (p instanceof String || p instanceof Integer) {
+                sb.append(p.toString());
+            } else if (p instanceof Boolean) {
+                sb.append((Boolean) p ? "True" : "False");
+            } else if (p instanceof Enum) {
+                sb.append(((Enum<?>) p).name());
+            } else if (p instanceof Date) {
+                sb.append(dateFormat.format((Date) p));
+            } else if (p instanceof Map<?, ?>) {
+                @SuppressWarnings("unchecked")
+                Map<String, String> map = (Map<String, String>) p;
+                if (!map.isEmpty()) {
+                    for (Map.Entry<String, String> entry
+                            : new TreeMap<String, String>(map).entrySet()) {
+                        sb.append(entry.getKey());
+                        sb.append('=');
+                        sb.append(entry.getValue());
+                        sb.append('\n');
+                    }
+                    continue;
+                }
+            }
+            sb.append('\n');
+        }
+        if (sb.length() > 0) {
+            sb.deleteCharAt(sb.length() - 1);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,414 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * PooledTransport and PooledHttpsConnection against a scripted server.
+ */
+public class PooledTransportTest {
+
+    private static final String ok = "HTTP/1.1 200 OK\r\n"
+            + "Content-Length: 2\r\n\r\nOK";
+
+    private ScriptedServer server;
+    private PooledTransport transport;
+    private SSLSocketFactory factory;
+    private final HostnameVerifier verifier = new AcceptAllVerifier();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ScriptedServer();
+        transport = new PooledTransport();
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(null, new TrustManager[] { new TrustAllManager() }, null);
+        factory = ctx.getSocketFactory();
+    }
+
+    @After
+    public void tearDown() {
+        transport.close();
+        server.stop();
+    }
+
+    @Test
+    public void readsChunkedResponse() throws IOException {
+        server.reply("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5;name=value\r\nHello\r\n"
+                + "7\r\n, world\r\n"
+                + "0\r\nTrailer: ignored\r\n\r\n");
+        server.reply(ok);
+
+        HttpsURLConnection conn = open("/chunked", null);
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("Hello, world", read(conn.getInputStream()));
+
+        // The trailers were consumed, so the connection is reused.
+        assertEquals("OK", read(open("/next", null).getInputStream()));
+        assertEquals(1, server.getConnectionCount());
+        assertEquals(1, transport.getReusedCount());
+    }
+
+    @Test
+    public void writesChunkedRequest() throws IOException {
+        server.reply(ok);
+
+        HttpsURLConnection conn = open("/upload", null);
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        OutputStream out = conn.getOutputStream();
+        out.write("Hello".getBytes("UTF-8"));
+        out.write(", world".getBytes("UTF-8"));
+        assertEquals("OK", read(conn.getInputStream()));
+        assertEquals(Arrays.asList("Hello, world"), server.getBodies());
+    }
+
+    @Test
+    public void drainsUnreadBodyForReuse() throws IOException {
+        server.reply("HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\n0123456789");
+        server.reply(ok);
+
+        HttpsURLConnection conn = open("/unread", null);
+        assertEquals(200, conn.getResponseCode());
+        transport.release(conn);
+        assertEquals(1, transport.getIdleCount());
+
+        assertEquals("OK", read(open("/next", null).getInputStream()));
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void closesLongUnreadBody() throws IOException {
+        char[] body = new char[100 * 1024];
+        Arrays.fill(body, 'x');
+        server.reply("HTTP/1.1 200 OK\r\nContent-Length: " + body.length
+                + "\r\n\r\n" + new String(body));
+        server.reply(ok);
+
+        HttpsURLConnection conn = open("/large", null);
+        assertEquals(200, conn.getResponseCode());
+        transport.release(conn);
+        assertEquals(0, transport.getIdleCount());
+        assertEquals(0, transport.getLeasedCount());
+
+        assertEquals("OK", read(open("/next", null).getInputStream()));
+        assertEquals(2, server.getConnectionCount());
+    }
+
+    @Test
+    public void sweepsExpiredConnectionsBehindBusyOne() throws Exception {
+        transport.close();
+        transport = new PooledTransport(8, 1000, 10 * 60 * 1000);
+        for (int i = 0; i < 4; i++) {
+            server.reply(ok);
+        }
+
+        // Two connections go idle together.
+        HttpsURLConnection first = open("/first", null);
+        HttpsURLConnection second = open("/second", null);
+        assertEquals(200, first.getResponseCode());
+        assertEquals(200, second.getResponseCode());
+        read(first.getInputStream());
+        read(second.getInputStream());
+        assertEquals(2, transport.getIdleCount());
+
+        // One keeps being reused, while the other passes its timeout.
+        Thread.sleep(600);
+        assertEquals("OK", read(open("/third", null).getInputStream()));
+        Thread.sleep(600);
+        assertEquals("OK", read(open("/fourth", null).getInputStream()));
+
+        assertEquals(1, transport.getEvictedCount());
+        assertEquals(1, transport.getIdleCount());
+        assertEquals(2, server.getConnectionCount());
+    }
+
+    @Test
+    public void resendsOnStaleConnection() throws IOException {
+        server.replyAndClose(ok);
+        server.reply(ok);
+
+        assertEquals("OK", read(open("/first", null).getInputStream()));
+        assertEquals(1, transport.getIdleCount());
+
+        // The pooled connection was closed by the server, so the request
+        // fails on it and is sent again on a new one.
+        assertEquals("OK", read(open("/second", null).getInputStream()));
+        assertEquals(2, server.getConnectionCount());
+        assertEquals(Arrays.asList("GET /first HTTP/1.1",
+                "GET /second HTTP/1.1"), server.getRequests());
+        assertEquals(0, transport.getLeasedCount());
+    }
+
+    @Test
+    public void rejectsInvalidContentLength() throws IOException {
+        server.reply("HTTP/1.1 200 OK\r\nContent-Length: 12x\r\n\r\n");
+
+        try {
+            open("/bad", null).getResponseCode();
+            fail("Expected ProtocolException");
+        } catch (ProtocolException ex) {
+            // Expected
+        }
+        assertEquals(0, transport.getLeasedCount());
+        assertEquals(0, transport.getIdleCount());
+    }
+
+    @Test
+    public void rejectsNegativeContentLength() throws IOException {
+        server.reply("HTTP/1.1 200 OK\r\nContent-Length: -1\r\n\r\n");
+
+        try {
+            open("/bad", null).getResponseCode();
+            fail("Expected ProtocolException");
+        } catch (ProtocolException ex) {
+            // Expected
+        }
+        assertEquals(0, transport.getLeasedCount());
+    }
+
+    @Test
+    public void rejectsInvalidChunkSize() throws IOException {
+        server.reply("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "zz\r\n");
+
+        HttpsURLConnection conn = open("/bad", null);
+        assertEquals(200, conn.getResponseCode());
+        try {
+            read(conn.getInputStream());
+            fail("Expected ProtocolException");
+        } catch (ProtocolException ex) {
+            // Expected
+        }
+        assertEquals(0, transport.getLeasedCount());
+        assertEquals(0, transport.getIdleCount());
+    }
+
+    @Test
+    public void keepsVerifiersApart() throws IOException {
+        server.reply(ok);
+        server.reply(ok);
+
+        assertEquals("OK", read(open("/first", null).getInputStream()));
+        HttpsURLConnection conn = open("/second", null);
+        conn.setHostnameVerifier(new AcceptAllVerifier());
+        assertEquals("OK", read(conn.getInputStream()));
+
+        assertEquals(2, transport.getCreatedCount());
+        assertEquals(0, transport.getReusedCount());
+    }
+
+    @Test
+    public void tunnelsThroughProxy() throws Exception {
+        TunnelProxy proxy = new TunnelProxy(true);
+        try {
+            server.reply(ok);
+            server.reply(ok);
+            Proxy p = proxy.getProxy();
+
+            HttpsURLConnection conn = open("/proxied", p);
+            assertTrue(conn.usingProxy());
+            assertEquals("OK", read(conn.getInputStream()));
+            assertEquals("OK", read(open("/again", p).getInputStream()));
+
+            assertEquals("CONNECT localhost:" + server.getPort()
+                    + " HTTP/1.1", proxy.connectLine);
+            assertEquals(1, proxy.connectionCount);
+            assertEquals(1, transport.getReusedCount());
+        } finally {
+            proxy.stop();
+        }
+    }
+
+    @Test
+    public void failsWhenProxyRefusesTunnel() throws Exception {
+        TunnelProxy proxy = new TunnelProxy(false);
+        try {
+            open("/proxied", proxy.getProxy()).getResponseCode();
+            fail("Expected IOException");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("407"));
+        } finally {
+            proxy.stop();
+        }
+        assertEquals(0, transport.getLeasedCount());
+        assertEquals(0, server.getConnectionCount());
+    }
+
+    private HttpsURLConnection open(String path, Proxy proxy)
+            throws IOException {
+        URL url = new URL("https://localhost:" + server.getPort() + path);
+        HttpsURLConnection conn = (HttpsURLConnection) transport
+                .openConnection(url, proxy);
+        conn.setSSLSocketFactory(factory);
+        conn.setHostnameVerifier(verifier);
+        conn.setConnectTimeout(5 * 1000);
+        conn.setReadTimeout(5 * 1000);
+        return conn;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Util.copyStream(in, out);
+        in.close();
+        return out.toString("UTF-8");
+    }
+
+    private static class AcceptAllVerifier implements HostnameVerifier {
+        @Override
+        public boolean verify(String hostname, SSLSession session) {
+            return true;
+        }
+    }
+
+    private static class TrustAllManager implements X509TrustManager {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain,
+                String authType) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain,
+                String authType) {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+
+    /**
+     * A web proxy that only handles CONNECT, and either tunnels to the
+     * requested host or refuses with 407.
+     */
+    private static class TunnelProxy {
+        private final ServerSocket serverSocket;
+        private final boolean allow;
+        private volatile String connectLine;
+        private volatile int connectionCount;
+
+        private TunnelProxy(boolean allow) throws IOException {
+            this.allow = allow;
+            serverSocket = new ServerSocket(0, 50,
+                    InetAddress.getByName("localhost"));
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    accept();
+                }
+            }, "tunnel-proxy");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private Proxy getProxy() {
+            return new Proxy(Proxy.Type.HTTP, new InetSocketAddress(
+                    serverSocket.getInetAddress(),
+                    serverSocket.getLocalPort()));
+        }
+
+        private void stop() throws IOException {
+            serverSocket.close();
+        }
+
+        private void accept() {
+            try {
+                while (true) {
+                    Socket client = serverSocket.accept();
+                    connectionCount++;
+                    tunnel(client);
+                }
+            } catch (IOException ex) {
+                // Stopped
+            }
+        }
+
+        private void tunnel(Socket client) throws IOException {
+            InputStream in = client.getInputStream();
+            OutputStream out = client.getOutputStream();
+            connectLine = PooledHttpsConnection.readLine(in);
+            String line;
+            while ((line = PooledHttpsConnection.readLine(in)) != null
+                    && !line.isEmpty()) {
+                // Skip the headers
+            }
+            if (!allow) {
+                out.write(("HTTP/1.1 407 Proxy Authentication Required\r\n"
+                        + "Content-Length: 0\r\n\r\n").getBytes("ISO-8859-1"));
+                client.close();
+                return;
+            }
+            String[] target = connectLine.split(" ")[1].split(":");
+            Socket upstream = new Socket(target[0],
+                    Integer.parseInt(target[1]));
+            out.write("HTTP/1.1 200 Connection established\r\n\r\n"
+                    .getBytes("ISO-8859-1"));
+            out.flush();
+            pipe(in, upstream.getOutputStream(), upstream);
+            pipe(upstream.getInputStream(), out, client);
+        }
+
+        // Copies bytes one way on its own thread, and closes the other
+        // side once the source ends.
+        private static void pipe(
+                final InputStream from,
+                final OutputStream to,
+                final Socket toSocket) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[8 * 1024];
+                    try {
+                        int count;
+                        while ((count = from.read(buffer)) != -1) {
+                            to.write(buffer, 0, count);
+                            to.flush();
+                        }
+                    } catch (IOException ex) {
+                        // One side went away
+                    } finally {
+                        try {
+                            toSocket.close();
+                        } catch (IOException ex) {
+                            // Closing anyway
+                        }
+                    }
+                }
+            }, "tunnel-proxy-pipe");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+}
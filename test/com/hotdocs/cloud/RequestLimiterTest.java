@@ -0,0 +1,204 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * RequestLimiter's adaptive concurrency limit and rate limit.
+ */
+public class RequestLimiterTest {
+
+    private static final long ms = 1000 * 1000;
+    private static final long noTimeout = Long.MAX_VALUE;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void growsByOneAfterALimitOfPromptResponses()
+            throws InterruptedIOException {
+        RequestLimiter limiter = new RequestLimiter(0, 0, 4, 8);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(acquire(limiter, noTimeout));
+        }
+        // Each response at the limit adds 1/limit.
+        int releases = 0;
+        while (limiter.getConcurrencyLimit() == 4) {
+            limiter.release("A", ms, false);
+            assertTrue(acquire(limiter, noTimeout));
+            releases++;
+        }
+        assertEquals(5, releases);
+        assertEquals(5, limiter.getConcurrencyLimit());
+    }
+
+    @Test
+    public void doesNotGrowBelowTheLimit() throws InterruptedIOException {
+        RequestLimiter limiter = new RequestLimiter(0, 0, 4, 8);
+        for (int i = 0; i < 20; i++) {
+            assertTrue(acquire(limiter, noTimeout));
+            limiter.release("A", ms, false);
+        }
+        assertEquals(4, limiter.getConcurrencyLimit());
+    }
+
+    @Test
+    public void cutsByAQuarterOnOverloadAtMostEvery100Ms()
+            throws Exception {
+        RequestLimiter limiter = new RequestLimiter(0, 0, 16, 16);
+        overloaded(limiter);
+        assertEquals(12, limiter.getConcurrencyLimit());
+        overloaded(limiter); // Part of the same overload
+        assertEquals(12, limiter.getConcurrencyLimit());
+        Thread.sleep(150);
+        overloaded(limiter);
+        assertEquals(9, limiter.getConcurrencyLimit());
+    }
+
+    @Test
+    public void neverCutsBelowOne() throws Exception {
+        RequestLimiter limiter = new RequestLimiter(0, 0, 1, 4);
+        overloaded(limiter);
+        assertEquals(1, limiter.getConcurrencyLimit());
+    }
+
+    @Test
+    public void cutsWhenResponseTimesKeepRising()
+            throws InterruptedIOException {
+        RequestLimiter limiter = new RequestLimiter(0, 0, 16, 16);
+        for (int i = 0; i < 200; i++) {
+            respond(limiter, "A", ms);
+        }
+        // One response three times slower doesn't count, nor does a
+        // request type seen for the first time.
+        respond(limiter, "A", 3 * ms);
+        respond(limiter, "B", 30 * ms);
+        assertEquals(16, limiter.getConcurrencyLimit());
+
+        // Three times slower for a few responses does.
+        for (int i = 0; i < 5; i++) {
+            respond(limiter, "A", 3 * ms);
+        }
+        assertEquals(12, limiter.getConcurrencyLimit());
+    }
+
+    @Test
+    public void cancelGivesBackPermitWithoutAdapting()
+            throws InterruptedIOException {
+        RequestLimiter limiter = new RequestLimiter(0, 0, 2, 4);
+        assertTrue(acquire(limiter, noTimeout));
+        assertTrue(acquire(limiter, noTimeout));
+        limiter.cancel();
+        assertEquals(1, limiter.getInFlight());
+        assertEquals(2, limiter.getConcurrencyLimit());
+    }
+
+    @Test
+    public void waitsForRoomUnderTheLimit() throws Exception {
+        final RequestLimiter limiter = new RequestLimiter(0, 0, 1, 1);
+        assertTrue(acquire(limiter, noTimeout));
+        Future<Boolean> waiter = executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws InterruptedIOException {
+                return acquire(limiter, noTimeout);
+            }
+        });
+        Thread.sleep(50);
+        assertFalse(waiter.isDone());
+        limiter.release("A", ms, false);
+        assertTrue(waiter.get(5, TimeUnit.SECONDS));
+        assertEquals(1, limiter.getInFlight());
+    }
+
+    @Test
+    public void givesUpWhenTheTimeoutIsUp() throws InterruptedIOException {
+        RequestLimiter limiter = new RequestLimiter(0, 0, 1, 1);
+        assertTrue(acquire(limiter, noTimeout));
+        long start = System.nanoTime();
+        assertFalse(acquire(limiter, 50));
+        assertTrue(System.nanoTime() - start >= 40 * ms);
+        assertEquals(1, limiter.getInFlight());
+        assertEquals(1, limiter.getConcurrencyLimit());
+    }
+
+    @Test
+    public void cancelWakesAWaitingRequest() throws Exception {
+        final RequestLimiter limiter = new RequestLimiter(0, 0, 1, 1);
+        assertTrue(acquire(limiter, noTimeout));
+        final RequestMetrics metrics = newMetrics();
+        Future<Boolean> waiter = executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws InterruptedIOException {
+                return limiter.acquire(noTimeout, metrics);
+            }
+        });
+        Thread.sleep(50);
+        metrics.cancel();
+        assertFalse(waiter.get(5, TimeUnit.SECONDS));
+        assertEquals(1, limiter.getInFlight());
+    }
+
+    @Test
+    public void spacesRequestsAfterABurst() throws InterruptedIOException {
+        RequestLimiter limiter = new RequestLimiter(50, 2, 16, 16);
+        long start = System.nanoTime();
+        for (int i = 0; i < 7; i++) {
+            assertTrue(acquire(limiter, noTimeout));
+            limiter.release("A", ms, false);
+        }
+        // Two at once, then one every 20 ms
+        long elapsed = System.nanoTime() - start;
+        assertTrue("Took " + elapsed / ms + " ms", elapsed >= 90 * ms);
+    }
+
+    @Test
+    public void givesUpAtOnceWhenTheRateLimitWaitIsTooLong()
+            throws InterruptedIOException {
+        RequestLimiter limiter = new RequestLimiter(1, 1, 16, 16);
+        assertTrue(acquire(limiter, noTimeout));
+        long start = System.nanoTime();
+        assertFalse(acquire(limiter, 100));
+        assertTrue(System.nanoTime() - start < 90 * ms);
+        assertEquals(1, limiter.getInFlight());
+    }
+
+    private static boolean acquire(RequestLimiter limiter, long timeout)
+            throws InterruptedIOException {
+        return limiter.acquire(timeout, newMetrics());
+    }
+
+    private static void respond(RequestLimiter limiter, String type,
+            long nanos) throws InterruptedIOException {
+        assertTrue(acquire(limiter, noTimeout));
+        limiter.release(type, nanos, false);
+    }
+
+    private static void overloaded(RequestLimiter limiter)
+            throws InterruptedIOException {
+        assertTrue(acquire(limiter, noTimeout));
+        limiter.release("A", ms, true);
+    }
+
+    private static RequestMetrics newMetrics() {
+        return new RequestMetrics(new GetInterviewRequest("pkg", null));
+    }
+}
@@ -0,0 +1,156 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+
+import org.junit.Test;
+
+/**
+ * Which failures RetryPolicy retries, its jittered delays and its retry
+ * budget.
+ */
+public class RetryPolicyTest {
+
+    private static final Request idempotent =
+            new GetInterviewRequest("pkg", null);
+    private static final Request notIdempotent =
+            new AssembleDocumentRequest("pkg", null);
+
+    @Test
+    public void jitterStaysWithinExponentialLimit() {
+        RetryPolicy policy = new RetryPolicy(10, 100, 1000, 100000, 0);
+        long[] limits = { 100, 200, 400, 800, 1000, 1000 };
+        for (int attempt = 1; attempt <= limits.length; attempt++) {
+            long limit = limits[attempt - 1];
+            long min = Long.MAX_VALUE;
+            long max = 0;
+            for (int i = 0; i < 2000; i++) {
+                long delay = policy.getDelay(idempotent,
+                        new ConnectException(), attempt);
+                assertTrue(delay >= 0 && delay <= limit);
+                min = Math.min(min, delay);
+                max = Math.max(max, delay);
+            }
+            // Spread over the whole range, not bunched near the limit
+            assertTrue("Attempt " + attempt, min < limit / 5);
+            assertTrue("Attempt " + attempt, max > limit * 4 / 5);
+        }
+    }
+
+    @Test
+    public void stopsAfterMaxAttempts() {
+        RetryPolicy policy = new RetryPolicy(3, 100, 1000, 100, 0);
+        assertTrue(policy.getDelay(idempotent, new ConnectException(), 2)
+                >= 0);
+        assertEquals(-1, policy.getDelay(idempotent,
+                new ConnectException(), 3));
+    }
+
+    @Test
+    public void budgetLimitsRetries() {
+        RetryPolicy policy = new RetryPolicy(10, 100, 1000, 3, 0);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(policy.getDelay(idempotent, new ConnectException(), 1)
+                    >= 0);
+        }
+        assertEquals(0, policy.getBudgetRemaining());
+        assertEquals(-1, policy.getDelay(idempotent,
+                new ConnectException(), 1));
+    }
+
+    @Test
+    public void budgetRefills() throws InterruptedException {
+        RetryPolicy policy = new RetryPolicy(10, 100, 1000, 2, 100);
+        policy.getDelay(idempotent, new ConnectException(), 1);
+        policy.getDelay(idempotent, new ConnectException(), 1);
+        assertEquals(0, policy.getBudgetRemaining());
+        Thread.sleep(50);
+        assertEquals(2, policy.getBudgetRemaining()); // Capped at the size
+    }
+
+    @Test
+    public void retriesOnlyIdempotentRequestsThatMayHaveBeenReceived() {
+        RetryPolicy policy = new RetryPolicy(10, 100, 1000, 100, 0);
+        assertTrue(policy.getDelay(notIdempotent, new ConnectException(), 1)
+                >= 0);
+        assertTrue(policy.getDelay(idempotent,
+                new SocketTimeoutException(), 1) >= 0);
+        assertEquals(-1, policy.getDelay(notIdempotent,
+                new SocketTimeoutException(), 1));
+        assertEquals(-1, policy.getDelay(idempotent,
+                new TotalTimeoutException("Out of time"), 1));
+        assertEquals(-1, policy.getDelay(idempotent,
+                new IOException("Other"), 1));
+    }
+
+    @Test
+    public void retriesErrorResponses() throws IOException {
+        RetryPolicy policy = new RetryPolicy(10, 100, 1000, 100, 0);
+        assertTrue(policy.getDelay(notIdempotent, response(503, null), 1)
+                >= 0);
+        assertTrue(policy.getDelay(idempotent, response(502, null), 1)
+                >= 0);
+        assertEquals(-1, policy.getDelay(notIdempotent,
+                response(500, null), 1));
+        assertEquals(-1, policy.getDelay(idempotent, response(404, null), 1));
+    }
+
+    @Test
+    public void honorsRetryAfter() throws IOException {
+        RetryPolicy policy = new RetryPolicy(10, 100, 5000, 100, 0);
+        assertEquals(2000, policy.getDelay(idempotent, response(429, "2"),
+                1));
+        // Longer than the maximum delay, so not worth waiting for
+        assertEquals(-1, policy.getDelay(idempotent, response(429, "60"),
+                1));
+    }
+
+    @Test
+    public void parsesRetryAfter() {
+        assertEquals(120 * 1000, RetryPolicy.getRetryAfter(" 120 "));
+        assertEquals(0, RetryPolicy.getRetryAfter("-5"));
+        assertEquals(0, RetryPolicy.getRetryAfter(
+                "Wed, 21 Oct 2015 07:28:00 GMT"));
+        assertEquals(-1, RetryPolicy.getRetryAfter("soon"));
+        assertEquals(-1, RetryPolicy.getRetryAfter(null));
+    }
+
+    private static HttpURLConnection response(final int status,
+            final String retryAfter) throws IOException {
+        return new HttpURLConnection(new URL("https://localhost/")) {
+            @Override
+            public int getResponseCode() {
+                return status;
+            }
+
+            @Override
+            public String getHeaderField(String name) {
+                return name.equalsIgnoreCase("Retry-After")
+                        ? retryAfter : null;
+            }
+
+            @Override
+            public void connect() {
+            }
+
+            @Override
+            public void disconnect() {
+            }
+
+            @Override
+            public boolean usingProxy() {
+                return false;
+            }
+        };
+    }
+}
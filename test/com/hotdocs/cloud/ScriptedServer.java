@@ -0,0 +1,209 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * A local TLS server that reads each request and answers it with the next
+ * scripted reply, written exactly as given, so tests can send responses
+ * that a well-behaved server wouldn't. Each connection is served on its
+ * own thread.
+ */
+class ScriptedServer {
+
+    // Making a key pair runs keytool, so every server shares one.
+    private static SSLContext context;
+
+    private final ServerSocket serverSocket;
+    private final BlockingQueue<Reply> replies =
+            new LinkedBlockingQueue<Reply>();
+    private final List<String> requests =
+            Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> bodies =
+            Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicInteger connectionCount = new AtomicInteger();
+
+    ScriptedServer() throws Exception {
+        serverSocket = getContext().getServerSocketFactory()
+                .createServerSocket(0, 50, InetAddress.getByName("localhost"));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "scripted-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Queues a reply and keeps the connection open after sending it.
+     */
+    void reply(String response) {
+        replies.add(new Reply(response, false));
+    }
+
+    /**
+     * Queues a reply and closes the connection after sending it, without
+     * telling the client.
+     */
+    void replyAndClose(String response) {
+        replies.add(new Reply(response, true));
+    }
+
+    /**
+     * @return The request lines received, e.g. "GET /path HTTP/1.1"
+     */
+    List<String> getRequests() {
+        return requests;
+    }
+
+    /**
+     * @return The request bodies received, decoded as UTF-8
+     */
+    List<String> getBodies() {
+        return bodies;
+    }
+
+    int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    void stop() {
+        try {
+            serverSocket.close();
+        } catch (IOException ex) {
+            // Stopping anyway
+        }
+    }
+
+    private static synchronized SSLContext getContext() throws Exception {
+        if (context == null) {
+            context = LoopbackServer.createSSLContext();
+        }
+        return context;
+    }
+
+    private void accept() {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException ex) {
+                return; // Stopped
+            }
+            connectionCount.incrementAndGet();
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, "scripted-server-connection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setSoTimeout(10 * 1000);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            String requestLine;
+            while ((requestLine = PooledHttpsConnection.readLine(in)) != null) {
+                long length = 0;
+                boolean chunked = false;
+                String line;
+                while ((line = PooledHttpsConnection.readLine(in)) != null
+                        && !line.isEmpty()) {
+                    String[] header = line.split(":", 2);
+                    String name = header[0].trim();
+                    if (name.equalsIgnoreCase("Content-Length")) {
+                        length = Long.parseLong(header[1].trim());
+                    } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                        chunked = header[1].trim().equalsIgnoreCase("chunked");
+                    }
+                }
+                bodies.add(chunked ? readChunked(in) : read(in, length));
+                requests.add(requestLine);
+
+                Reply reply = replies.poll(10, TimeUnit.SECONDS);
+                if (reply == null) {
+                    return;
+                }
+                out.write(reply.response.getBytes("UTF-8"));
+                out.flush();
+                if (reply.close) {
+                    return;
+                }
+            }
+        } catch (IOException | InterruptedException ex) {
+            // The client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // Closing anyway
+            }
+        }
+    }
+
+    private static String readChunked(InputStream in) throws IOException {
+        StringBuilder body = new StringBuilder();
+        while (true) {
+            long size = Long.parseLong(PooledHttpsConnection.readLine(in), 16);
+            if (size == 0) {
+                PooledHttpsConnection.readLine(in); // Empty trailers
+                return body.toString();
+            }
+            body.append(read(in, size));
+            PooledHttpsConnection.readLine(in);
+        }
+    }
+
+    private static String read(InputStream in, long length)
+            throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (long i = 0; i < length; i++) {
+            int b = in.read();
+            if (b == -1) {
+                throw new IOException("Request body is truncated.");
+            }
+            body.write(b);
+        }
+        return body.toString("UTF-8");
+    }
+
+    private static class Reply {
+        private final String response;
+        private final boolean close;
+
+        private Reply(String response, boolean close) {
+            this.response = response;
+            this.close = close;
+        }
+    }
+}
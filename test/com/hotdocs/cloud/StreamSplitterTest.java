@@ -0,0 +1,223 @@
+/* Copyright (c) 2013, HotDocs Limited
+   Use, modification and redistribution of this source is subject
+   to the New BSD License as set out in LICENSE.TXT. */
+
+package com.hotdocs.cloud;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * StreamSplitter's pattern search, checked against a plain search over
+ * small ring buffers, so that matches often straddle the wrap point, and
+ * streams that arrive a few bytes at a time, so that searches resume.
+ */
+public class StreamSplitterTest {
+
+    private static final byte[] boundary = ascii("\r\n--b0undary");
+    private static final byte[] crlf = ascii("\r\n");
+    private static final byte[] alphabet = ascii("ab-\r\n0undry");
+
+    @Test
+    public void findsPatternStraddlingWrapPoint() throws IOException {
+        StreamSplitter splitter = new StreamSplitter(16);
+        splitter.init(new ByteArrayInputStream(
+                ascii("0123456789abcWXYZtailWXYZ")));
+        byte[] pattern = ascii("WXYZ");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(13, splitter.writeUntilPattern(out, pattern));
+        assertEquals("0123456789abc", out.toString("US-ASCII"));
+
+        out.reset();
+        assertEquals(4, splitter.writeUntilPattern(out, pattern));
+        assertEquals("tail", out.toString("US-ASCII"));
+    }
+
+    @Test
+    public void failsWhenPatternIsMissing() throws IOException {
+        StreamSplitter splitter = new StreamSplitter(16);
+        splitter.init(new ByteArrayInputStream(ascii("no pattern in here")));
+        try {
+            splitter.writeUntilPattern(new ByteArrayOutputStream(),
+                    ascii("WXYZ"));
+            fail("Expected IOException");
+        } catch (IOException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void writesSegmentsBetweenAlternatingPatterns()
+            throws IOException {
+        Random random = new Random(1);
+        for (int run = 0; run < 500; run++) {
+            int bufferSize = boundary.length + random.nextInt(40);
+            List<byte[]> patterns = new ArrayList<byte[]>();
+            List<byte[]> segments = new ArrayList<byte[]>();
+            byte[] stream = newStream(random, patterns, segments);
+
+            StreamSplitter splitter = new StreamSplitter(bufferSize);
+            splitter.init(new TrickleStream(stream, random));
+            for (int i = 0; i < segments.size(); i++) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                int written = splitter.writeUntilPattern(out, patterns.get(i));
+                assertArrayEquals("Run " + run + ", segment " + i,
+                        segments.get(i), out.toByteArray());
+                assertEquals(segments.get(i).length, written);
+            }
+        }
+    }
+
+    @Test
+    public void readsSegmentsBetweenAlternatingPatterns() throws IOException {
+        Random random = new Random(2);
+        for (int run = 0; run < 500; run++) {
+            int bufferSize = boundary.length + random.nextInt(40);
+            List<byte[]> patterns = new ArrayList<byte[]>();
+            List<byte[]> segments = new ArrayList<byte[]>();
+            byte[] stream = newStream(random, patterns, segments);
+
+            StreamSplitter splitter = new StreamSplitter(bufferSize);
+            splitter.init(new TrickleStream(stream, random));
+            for (int i = 0; i < segments.size(); i++) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] b = new byte[1 + random.nextInt(20)];
+                int count;
+                while ((count = splitter.readUntilPattern(b, 0,
+                        1 + random.nextInt(b.length), patterns.get(i)))
+                        != -1) {
+                    out.write(b, 0, count);
+                }
+                assertArrayEquals("Run " + run + ", segment " + i,
+                        segments.get(i), out.toByteArray());
+            }
+        }
+    }
+
+    @Test
+    public void rebuildsShiftTableForNewPattern() throws IOException {
+        // Three patterns in turn, and an equal pattern in a new array, so
+        // the two kept tables are replaced rather than swapped.
+        byte[][] patterns = { ascii("XY"), ascii("QRS"), ascii("--"),
+                ascii("XY") };
+        StreamSplitter splitter = new StreamSplitter(8);
+        splitter.init(new TrickleStream(ascii("aXYbbQRSccc--dXY"),
+                new Random(3)));
+        String[] expected = { "a", "bb", "ccc", "d" };
+        for (int i = 0; i < patterns.length; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            splitter.writeUntilPattern(out, patterns[i]);
+            assertEquals(expected[i], out.toString("US-ASCII"));
+        }
+    }
+
+    @Test
+    public void searchesAgainForDifferentPattern() throws IOException {
+        StreamSplitter splitter = new StreamSplitter(16);
+        splitter.init(new ByteArrayInputStream(
+                ascii("aBBcccccccccccccccZZZZ")));
+
+        // The search for ZZZZ rules out most of the buffer, but not for BB.
+        byte[] b = new byte[1];
+        assertEquals(1, splitter.readUntilPattern(b, 0, 1, ascii("ZZZZ")));
+        assertEquals('a', b[0]);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(0, splitter.writeUntilPattern(out, ascii("BB")));
+        assertEquals(15, splitter.writeUntilPattern(out, ascii("ZZZZ")));
+    }
+
+    // Makes a stream of random segments, each ended by the boundary or
+    // CR-LF, like the parts and header lines of a multipart response.
+    private static byte[] newStream(Random random, List<byte[]> patterns,
+            List<byte[]> segments) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        int count = 1 + random.nextInt(8);
+        for (int i = 0; i < count; i++) {
+            byte[] pattern = random.nextBoolean() ? boundary : crlf;
+            byte[] segment;
+            do {
+                segment = new byte[random.nextInt(60)];
+                for (int j = 0; j < segment.length; j++) {
+                    segment[j] = alphabet[random.nextInt(alphabet.length)];
+                }
+            } while (indexOf(concat(segment, pattern), pattern)
+                    != segment.length);
+            patterns.add(pattern);
+            segments.add(segment);
+            stream.write(segment, 0, segment.length);
+            stream.write(pattern, 0, pattern.length);
+        }
+        return stream.toByteArray();
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern) {
+        outer: for (int i = 0; i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) s.charAt(i);
+        }
+        return b;
+    }
+
+    /**
+     * A stream that returns a few bytes from each read.
+     */
+    private static class TrickleStream extends InputStream {
+        private final byte[] data;
+        private final Random random;
+        private int position;
+
+        private TrickleStream(byte[] data, Random random) {
+            this.data = data;
+            this.random = random;
+        }
+
+        @Override
+        public int read() {
+            return position < data.length ? data[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position == data.length) {
+                return -1;
+            }
+            int count = Math.min(Math.min(len, 1 + random.nextInt(7)),
+                    data.length - position);
+            System.arraycopy(data, position, b, off, count);
+            position += count;
+            return count;
+        }
+    }
+}